@@ -2,35 +2,191 @@ package com.asylumproject.asylumproject.broker;
 
 
 import com.asylumproject.asylumproject.dataaccess.UserDB;
+import com.asylumproject.asylumproject.payload.KeysetPage;
+import com.asylumproject.asylumproject.payload.KeysetPageRequest;
 import com.asylumproject.asylumproject.reports.ExistingUsers;
 import com.asylumproject.asylumproject.reports.ReportElement;
-import com.asylumproject.asylumproject.permission.Permission;
 import com.asylumproject.asylumproject.permission.PermissionName;
 import com.asylumproject.asylumproject.problemdomain.User;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Service
 public class AccountBroker {
 
+    /**
+     * Minimum number of usernames and email addresses the availability filters are sized for.
+     */
+    private static final int MIN_FILTER_SIZE = 10000;
+
+    /**
+     * Number of inserts sent to the database at once when users are imported.
+     */
+    private static final int IMPORT_BATCH_SIZE = 100;
+
+    /**
+     * Number of values in each IN query of the set based existence checks.
+     */
+    private static final int IN_QUERY_SIZE = 1000;
+
+    /**
+     * Pages of users, sortable by username or email address and filterable by the start of the names.
+     */
+    private static final KeysetPageQuery<User> USER_PAGES = new KeysetPageQuery<>(User.class,
+            KeysetPageQuery.attributes("userName", "emailAddress"),
+            KeysetPageQuery.attributes("userName", "emailAddress", "firstName", "lastName"));
+    private static final EntityPages<User> USER_VISITS = new EntityPages<>(User.class, "permissions");
+
     private UserDB userDB;
 
+    /**
+     * Usernames and email addresses in use, normalized. Rebuilt periodically so that they stay correctly sized
+     * and include the users added by other application nodes.
+     */
+    private volatile BloomFilter userNameFilter;
+    private volatile BloomFilter emailFilter;
+    private volatile boolean rebuildingFilters;
+    private final Queue<String[]> addedWhileRebuilding = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService filterRebuilder;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     @Autowired
     public AccountBroker(UserDB userDB){
         this.userDB = userDB;
     }
 
+    /**
+     * Used to build the username and email availability filters and rebuild them periodically.
+     */
+    @PostConstruct
+    private void initialize() {
+        try {
+            rebuildAvailabilityFilters();
+        } catch (Exception e) {
+            // Availability checks query the database until the filters are built.
+            e.printStackTrace();
+        }
+        filterRebuilder = Executors.newSingleThreadScheduledExecutor();
+        filterRebuilder.scheduleWithFixedDelay(() -> {
+            try {
+                rebuildAvailabilityFilters();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, 1, 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Used to rebuild the availability filters from the usernames and email addresses of a restored backup.
+     * @param event the restore event.
+     */
+    @EventListener
+    public void databaseRestored(DatabaseRestoredEvent event) {
+        try {
+            rebuildAvailabilityFilters();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        filterRebuilder.shutdownNow();
+    }
+
     /**
      * Creates a new user record based on a User object passed as parameter and sets the creator of that new user.
      * @param newUser the User object to add.
      * @return a reference to the User object recently created.
      */
     public User registerUser (User newUser){
-        return userDB.save(newUser);
+        User saved = userDB.save(newUser);
+        addToAvailabilityFilters(saved.getUsername(), saved.getEmail());
+        return saved;
+    }
+
+    /**
+     * Creates many new users in a single transaction. The inserts are sent to the database in JDBC batches.
+     * @param newUsers the User objects to add.
+     * @return the users created.
+     */
+    @Transactional
+    public List<User> registerUsers(List<User> newUsers) {
+        entityManager.unwrap(Session.class).setJdbcBatchSize(Math.max(1, Math.min(newUsers.size(), IMPORT_BATCH_SIZE)));
+        for(User newUser: newUsers) {
+            entityManager.persist(newUser);
+        }
+        entityManager.flush();
+        for(User newUser: newUsers) {
+            addToAvailabilityFilters(newUser.getUsername(), newUser.getEmail());
+        }
+        return newUsers;
+    }
+
+    /**
+     * Retrieve which of the provided usernames are in use, ignoring case.
+     * @param userNames the usernames to check.
+     * @return the usernames in use, in lower case.
+     */
+    public Set<String> findExistingUserNames(Collection<String> userNames) {
+        return findExisting(userNames, userDB::findExistingUserNames);
+    }
+
+    /**
+     * Retrieve which of the provided email addresses are in use, ignoring case.
+     * @param emails the email addresses to check.
+     * @return the email addresses in use, in lower case.
+     */
+    public Set<String> findExistingEmails(Collection<String> emails) {
+        return findExisting(emails, userDB::findExistingEmails);
+    }
+
+    /**
+     * Run an IN query over values in groups, so that the statement stays a reasonable size.
+     */
+    private static Set<String> findExisting(Collection<String> values, Function<Collection<String>, List<String>> query) {
+        Set<String> existing = new HashSet<>();
+        List<String> group = new ArrayList<>(IN_QUERY_SIZE);
+        Iterator<String> iterator = values.iterator();
+        while(iterator.hasNext()) {
+            group.add(iterator.next());
+            if(group.size() == IN_QUERY_SIZE || !iterator.hasNext()) {
+                for(String value: query.apply(group)) {
+                    existing.add(value.toLowerCase(Locale.ROOT));
+                }
+                group.clear();
+            }
+        }
+        return existing;
     }
 
     /**
@@ -47,7 +203,9 @@ public class AccountBroker {
      * @return a reference to the User object updated.
      */
     public User updateUserInfo(User user) {
-        return userDB.save(user);
+        User saved = userDB.save(user);
+        addToAvailabilityFilters(saved.getUsername(), saved.getEmail());
+        return saved;
     }
 
     /**
@@ -77,6 +235,16 @@ public class AccountBroker {
         return (List<User>) userDB.findAll();
     }
 
+    /**
+     * Visit every user that was not deleted, with their permissions, reading them one page at a time.
+     * Users are detached once their page is visited, so memory use does not grow with the number of users.
+     * @param consumer the action to perform on each user.
+     */
+    @Transactional(readOnly = true)
+    public void forEachUser(Consumer<User> consumer) {
+        USER_VISITS.forEach(entityManager, Collections.singletonMap("deleted", false), consumer);
+    }
+
     /**
      * Reset the password value for a User.
      * @param user the User object to reset the password value.
@@ -104,6 +272,106 @@ public class AccountBroker {
         return userDB.existsByEmailAddress(email);
     }
 
+    /**
+     * Check if a username exists, answering from the availability filter when it is definitely not in use.
+     * The filter misses the usernames registered on other application nodes since it was last rebuilt, so the
+     * answer is only a hint for forms and must not be used to accept a registration.
+     * @param userName username to check
+     * @return true if exists, otherwise false.
+     */
+    public boolean quickCheckUserNameExists(String userName) {
+        BloomFilter filter = userNameFilter;
+        if(filter != null && userName != null && !filter.mightContain(normalize(userName)))
+            return false;
+        return userDB.existsByUserName(userName);
+    }
+
+    /**
+     * Check if an email address exists, answering from the availability filter when it is definitely not in use.
+     * The filter misses the email addresses registered on other application nodes since it was last rebuilt, so
+     * the answer is only a hint for forms and must not be used to accept a registration.
+     * @param email email address to check.
+     * @return true if exists, otherwise false.
+     */
+    public boolean quickCheckEmailExists(String email) {
+        BloomFilter filter = emailFilter;
+        if(filter != null && email != null && !filter.mightContain(normalize(email)))
+            return false;
+        return userDB.existsByEmailAddress(email);
+    }
+
+    /**
+     * Build new availability filters from all the usernames and email addresses in use, including the ones of
+     * soft-deleted users, which are still taken.
+     */
+    private synchronized void rebuildAvailabilityFilters() {
+        addedWhileRebuilding.clear();
+        rebuildingFilters = true;
+        try {
+            List<Object[]> users = userDB.findAllUserNamesAndEmails();
+            int size = Math.max(MIN_FILTER_SIZE, users.size() * 2);
+            BloomFilter userNames = new BloomFilter(size, 0.01);
+            BloomFilter emails = new BloomFilter(size, 0.01);
+            for(Object[] user: users) {
+                if(user[0] != null)
+                    userNames.put(normalize((String) user[0]));
+                if(user[1] != null)
+                    emails.put(normalize((String) user[1]));
+            }
+            userNameFilter = userNames;
+            emailFilter = emails;
+        } finally {
+            rebuildingFilters = false;
+        }
+        // Users saved while the filters were being built may be missing from the query results.
+        String[] added;
+        while((added = addedWhileRebuilding.poll()) != null) {
+            addCommittedToAvailabilityFilters(added[0], added[1]);
+        }
+    }
+
+    /**
+     * Add a username and email address to the availability filters once they are committed, or right away if
+     * they are not saved in a transaction.
+     * @param userName the username.
+     * @param email the email address.
+     */
+    private void addToAvailabilityFilters(String userName, String email) {
+        if(TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    addCommittedToAvailabilityFilters(userName, email);
+                }
+            });
+        }
+        else {
+            addCommittedToAvailabilityFilters(userName, email);
+        }
+    }
+
+    private void addCommittedToAvailabilityFilters(String userName, String email) {
+        if(rebuildingFilters)
+            addedWhileRebuilding.add(new String[]{userName, email});
+        BloomFilter userNames = userNameFilter;
+        BloomFilter emails = emailFilter;
+        if(userNames != null && userName != null)
+            userNames.put(normalize(userName));
+        if(emails != null && email != null)
+            emails.put(normalize(email));
+    }
+
+    /**
+     * Normalize a username or email address the way the database compares them: ignoring case, accents and
+     * trailing spaces.
+     * @param value the username or email address.
+     * @return the normalized value.
+     */
+    private static String normalize(String value) {
+        String stripped = Normalizer.normalize(value, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return stripped.replaceAll("\\s+$", "").toLowerCase(Locale.ROOT);
+    }
+
     /**
      * Retrieves a user based on a username.
      * @param username the username to look for.
@@ -135,24 +403,19 @@ public class AccountBroker {
      * @return existing users.
      */
     public ExistingUsers getReportExistingUsers() {
-        int totalUsers = 0;
-        int numTeachers = 0;
-        int numCurators = 0;
-        int numSysAdmins = 0;
-        Iterable<User> users = userDB.findAll();
-        for(User u: users) {
-            totalUsers++;
-            Set<Permission> permissions = u.getPermissions();
-            for(Permission p: permissions) {
-                if(p.getName().equals(PermissionName.ROLE_CONTENT_CURATOR))
-                    numCurators++;
-                if(p.getName().equals(PermissionName.ROLE_SYSTEM_ADMIN))
-                    numSysAdmins++;
-                if(p.getName().equals(PermissionName.ROLE_TEACHER))
-                    numTeachers++;
-            }
-        }
-        return new ExistingUsers(totalUsers, numSysAdmins, numCurators, numTeachers);
+        List<Object[]> rows = userDB.countUsersPerPermission(PermissionName.ROLE_SYSTEM_ADMIN,
+                PermissionName.ROLE_CONTENT_CURATOR, PermissionName.ROLE_TEACHER);
+        Object[] counts = rows.isEmpty() ? new Object[4] : rows.get(0);
+        return new ExistingUsers(toInt(counts[0]), toInt(counts[1]), toInt(counts[2]), toInt(counts[3]));
+    }
+
+    /**
+     * Convert a count returned by an aggregate query to an int.
+     * @param count the count, null when there were no rows to aggregate.
+     * @return the count as an int.
+     */
+    private static int toInt(Object count) {
+        return count == null ? 0 : ((Number) count).intValue();
     }
 
     /**
@@ -178,4 +441,16 @@ public class AccountBroker {
     public List<User> getDeletedUsers() {
         return userDB.recycleBin();
     }
+
+    /**
+     * Retrieves a page of users.
+     * @param deleted true for the soft-deleted users only, false for the others, null for all users.
+     * @param request the page request.
+     * @return the page of users.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<User> getUsersPage(Boolean deleted, KeysetPageRequest request) {
+        return USER_PAGES.find(entityManager, deleted, request);
+    }
 }
@@ -0,0 +1,663 @@
+package com.asylumproject.asylumproject.broker;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the database, or the rows changed since a previous export, as a gzip compressed SQL script. Tables
+ * are read concurrently, each worker on its own connection, and the rows are turned into INSERT statements that
+ * a single writer compresses straight into the destination stream, so no intermediate files are written.
+ * All workers read from snapshots started while the tables are briefly locked with FLUSH TABLES WITH READ LOCK,
+ * so the export is consistent across tables. If the database user may not take that lock, the snapshots are
+ * started back to back instead, and the export is only consistent per table.
+ * The workers and the coordinator take at most half of the connection pool, leaving the rest to the application.
+ */
+@Service
+public class BackupBroker {
+
+    /**
+     * Maximum number of rows per INSERT statement.
+     */
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    /**
+     * Size of an INSERT statement after which no more rows are added to it.
+     */
+    private static final int STATEMENT_BYTES = 1 << 20;
+
+    /**
+     * Queued by a worker once it has no more tables to export.
+     */
+    private static final String WORKER_DONE = new String("");
+
+    /**
+     * How long a worker waits for room in the queue before checking again whether the export was abandoned.
+     */
+    private static final long QUEUE_WAIT_MILLIS = 100;
+
+    private DataSource dataSource;
+
+    /**
+     * Receives the progress of an export.
+     */
+    public interface Progress {
+
+        /**
+         * Called once the tables to export are known.
+         * @param tables the number of tables.
+         */
+        void started(int tables);
+
+        /**
+         * Called when a table has been exported.
+         * @param table the table name.
+         * @param rows the number of rows exported.
+         */
+        void tableExported(String table, long rows);
+    }
+
+    @Autowired
+    public BackupBroker(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Export the whole database.
+     * @param out the destination stream, which receives the compressed script and is closed at the end.
+     * @param threads the number of tables read at once.
+     * @param progress receives the export progress.
+     * @return the export result; the next incremental export starts from it.
+     * @throws SQLException if the database could not be read.
+     * @throws IOException if the destination could not be written.
+     * @throws InterruptedException if the export was interrupted.
+     */
+    public Result export(OutputStream out, int threads, Progress progress)
+            throws SQLException, IOException, InterruptedException {
+        return export(out, threads, null, progress);
+    }
+
+    /**
+     * Export the rows changed since a previous export. Rows of tables with the change timestamp column are
+     * exported if changed since the previous export started, rows of append only tables if added after the
+     * previous export's last id, and other tables are copied whole. Rows are written as REPLACE statements, so
+     * the script can be applied over the previous state. If the schema changed since the previous export, a full
+     * export is made instead.
+     * @param out the destination stream, which receives the compressed script and is closed at the end.
+     * @param threads the number of tables read at once.
+     * @param since the changes to export, null for a full export.
+     * @param progress receives the export progress.
+     * @return the export result; the next incremental export starts from it.
+     * @throws SQLException if the database could not be read.
+     * @throws IOException if the destination could not be written.
+     * @throws InterruptedException if the export was interrupted.
+     */
+    public Result export(OutputStream out, int threads, Since since, Progress progress)
+            throws SQLException, IOException, InterruptedException {
+        List<Connection> connections = new ArrayList<>();
+        ExecutorService workers = null;
+        AtomicBoolean abandoned = new AtomicBoolean();
+        try (Connection coordinator = dataSource.getConnection();
+             Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(out, 1 << 16),
+                     StandardCharsets.UTF_8), 1 << 16)) {
+
+            Map<String, String> tables = readTableDefinitions(coordinator);
+            List<String> routines = readRoutineDefinitions(coordinator);
+            String schemaHash = hash(new TreeMap<>(tables).values(), routines);
+            if(since != null && !schemaHash.equals(since.getSchemaHash()))
+                since = null;
+            boolean full = since == null;
+            Map<String, String> timestampTables = full ? new HashMap<>()
+                    : findTablesWithColumn(coordinator, since.getTimestampColumn());
+            Map<String, String> appendOnlyKeys = findIntegerPrimaryKeys(coordinator,
+                    full ? new ArrayList<>() : since.getAppendOnlyTables());
+            progress.started(tables.size());
+
+            int workerCount = Math.max(1, Math.min(Math.min(threads, maxWorkers()), tables.size()));
+            for(int i = 0; i < workerCount; i++) {
+                Connection connection = dataSource.getConnection();
+                connections.add(connection);
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                connection.setAutoCommit(false);
+            }
+            // Changes made from here on are picked up by the next incremental export.
+            Timestamp startedAt = new Timestamp(System.currentTimeMillis());
+            boolean consistent = startSnapshots(coordinator, connections);
+            Map<String, Long> lastIds = readLastIds(connections.get(0), appendOnlyKeys);
+
+            writer.write("-- Database backup\n");
+            writer.write("-- Type: " + (full ? "full" : "incremental") + "\n");
+            writer.write("-- Consistent: " + consistent + "\n");
+            writer.write("SET NAMES utf8mb4;\n");
+            writer.write("SET FOREIGN_KEY_CHECKS = 0;\n");
+            writer.write("SET UNIQUE_CHECKS = 0;\n\n");
+            if(full) {
+                for(Map.Entry<String, String> table: tables.entrySet()) {
+                    writer.write("DROP TABLE IF EXISTS " + quote(table.getKey()) + ";\n");
+                    writer.write(table.getValue() + ";\n\n");
+                }
+            }
+
+            BlockingQueue<String> statements = new ArrayBlockingQueue<>(workerCount * 4);
+            ConcurrentLinkedQueue<TableExport> pending = new ConcurrentLinkedQueue<>();
+            for(String table: tables.keySet()) {
+                if(full)
+                    pending.add(new TableExport(table, "INSERT INTO", null, null));
+                else if(timestampTables.containsKey(table))
+                    pending.add(new TableExport(table, "REPLACE INTO",
+                            quote(timestampTables.get(table)) + " >= ?", since.getChangedSince()));
+                else if(appendOnlyKeys.containsKey(table))
+                    pending.add(new TableExport(table, "REPLACE INTO",
+                            quote(appendOnlyKeys.get(table)) + " > ?", since.getLastIds().getOrDefault(table, 0L)));
+                else
+                    pending.add(new TableExport(table, "INSERT INTO", null, null));
+            }
+
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+                Thread thread = new Thread(runnable, "backup-export");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for(Connection connection: connections) {
+                workers.execute(() -> {
+                    try {
+                        TableExport table;
+                        while((table = pending.poll()) != null && failure.get() == null) {
+                            long rows = exportTable(connection, table, statements, !full);
+                            progress.tableExported(table.name, rows);
+                        }
+                        connection.commit();
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        // Once the writer has given up nobody drains the queue, so the worker must not wait on it.
+                        try {
+                            boolean queued = false;
+                            while(!queued && !abandoned.get())
+                                queued = statements.offer(WORKER_DONE, QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+
+            int running = workerCount;
+            while(running > 0) {
+                String statement = statements.take();
+                if(statement == WORKER_DONE)
+                    running--;
+                else
+                    writer.write(statement);
+            }
+            if(failure.get() != null) {
+                Exception e = failure.get();
+                if(e instanceof SQLException)
+                    throw (SQLException) e;
+                throw new IOException(e);
+            }
+
+            if(full) {
+                for(String routine: routines) {
+                    writer.write("DELIMITER ;;\n");
+                    writer.write(routine + ";;\n");
+                    writer.write("DELIMITER ;\n\n");
+                }
+            }
+            writer.write("SET UNIQUE_CHECKS = 1;\n");
+            writer.write("SET FOREIGN_KEY_CHECKS = 1;\n");
+            return new Result(full, consistent, startedAt, schemaHash, lastIds);
+        } finally {
+            abandoned.set(true);
+            if(workers != null)
+                workers.shutdownNow();
+            for(Connection connection: connections) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the tables that have a column, such as the change timestamp column.
+     * @return the column name per table name.
+     */
+    private static Map<String, String> findTablesWithColumn(Connection connection, String column) throws SQLException {
+        Map<String, String> tables = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT table_name, column_name " +
+                "FROM information_schema.columns WHERE table_schema = DATABASE() AND column_name = ?")) {
+            statement.setString(1, column);
+            try (ResultSet rs = statement.executeQuery()) {
+                while(rs.next())
+                    tables.put(rs.getString(1), rs.getString(2));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Find the single integer primary key column of each of the provided tables. Tables without one are left out.
+     * @return the primary key column per table name.
+     */
+    private static Map<String, String> findIntegerPrimaryKeys(Connection connection, Collection<String> tables)
+            throws SQLException {
+        Map<String, String> keys = new HashMap<>();
+        for(String table: tables) {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT k.column_name, c.data_type " +
+                    "FROM information_schema.key_column_usage k JOIN information_schema.columns c " +
+                    "ON c.table_schema = k.table_schema AND c.table_name = k.table_name AND c.column_name = k.column_name " +
+                    "WHERE k.table_schema = DATABASE() AND k.table_name = ? AND k.constraint_name = 'PRIMARY'")) {
+                statement.setString(1, table);
+                try (ResultSet rs = statement.executeQuery()) {
+                    List<String[]> columns = new ArrayList<>();
+                    while(rs.next())
+                        columns.add(new String[] {rs.getString(1), rs.getString(2)});
+                    if(columns.size() == 1 && columns.get(0)[1].toLowerCase(Locale.ROOT).endsWith("int"))
+                        keys.put(table, columns.get(0)[0]);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Read the highest id of each append only table from the snapshot.
+     */
+    private static Map<String, Long> readLastIds(Connection connection, Map<String, String> keys) throws SQLException {
+        Map<String, Long> lastIds = new HashMap<>();
+        for(Map.Entry<String, String> key: keys.entrySet()) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT MAX(" + quote(key.getValue()) + ") FROM " + quote(key.getKey()))) {
+                if(rs.next())
+                    lastIds.put(key.getKey(), rs.getLong(1));
+            }
+        }
+        return lastIds;
+    }
+
+    private static String hash(Collection<String> tables, List<String> routines) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for(String definition: tables) {
+                // The AUTO_INCREMENT counter changes with the data, not the schema.
+                digest.update(definition.replaceAll(" AUTO_INCREMENT=\\d+", "").getBytes(StandardCharsets.UTF_8));
+            }
+            for(String routine: routines) {
+                digest.update(routine.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for(byte b: digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Retrieve the CREATE TABLE statement of every table, largest tables first so that they start early.
+     */
+    private static Map<String, String> readTableDefinitions(Connection connection) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT table_name FROM information_schema.tables " +
+                     "WHERE table_schema = DATABASE() AND table_type = 'BASE TABLE' " +
+                     "ORDER BY data_length DESC")) {
+            while(rs.next())
+                names.add(rs.getString(1));
+        }
+        Map<String, String> tables = new LinkedHashMap<>();
+        for(String name: names) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SHOW CREATE TABLE " + quote(name))) {
+                if(rs.next())
+                    tables.put(name, rs.getString(2));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Retrieve the CREATE statement of every stored procedure and function.
+     */
+    private static List<String> readRoutineDefinitions(Connection connection) throws SQLException {
+        Map<String, String> names = new LinkedHashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT routine_name, routine_type FROM information_schema.routines " +
+                     "WHERE routine_schema = DATABASE()")) {
+            while(rs.next())
+                names.put(rs.getString(1), rs.getString(2));
+        }
+        List<String> routines = new ArrayList<>();
+        for(Map.Entry<String, String> routine: names.entrySet()) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SHOW CREATE " + routine.getValue() + " " + quote(routine.getKey()))) {
+                if(rs.next() && rs.getString(3) != null) {
+                    routines.add("DROP " + routine.getValue() + " IF EXISTS " + quote(routine.getKey()) + ";;\n"
+                            + rs.getString(3));
+                }
+            }
+        }
+        return routines;
+    }
+
+    /**
+     * Retrieve the number of worker connections an export may take, so that with its coordinator it takes at most
+     * half of the connection pool.
+     * @return the maximum number of workers.
+     */
+    private int maxWorkers() {
+        try {
+            if(dataSource.isWrapperFor(HikariDataSource.class))
+                return Math.max(1, dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize() / 2 - 1);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Start a snapshot on every worker connection, under a global read lock if allowed.
+     * @return true if the read lock was taken, so the snapshots are identical.
+     */
+    private static boolean startSnapshots(Connection coordinator, List<Connection> connections) throws SQLException {
+        boolean locked;
+        try (Statement statement = coordinator.createStatement()) {
+            statement.execute("FLUSH TABLES WITH READ LOCK");
+            locked = true;
+        } catch (SQLException e) {
+            locked = false;
+        }
+        try {
+            for(Connection connection: connections) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+                }
+            }
+        } finally {
+            if(locked) {
+                try (Statement statement = coordinator.createStatement()) {
+                    statement.execute("UNLOCK TABLES");
+                }
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Read the rows of a table from the worker's snapshot and queue them as INSERT or REPLACE statements.
+     * @param replaceAll true to queue a DELETE of the whole table before the rows of a table that is copied whole.
+     * @return the number of rows exported.
+     */
+    private static long exportTable(Connection connection, TableExport table, BlockingQueue<String> statements,
+                                    boolean replaceAll) throws SQLException, InterruptedException {
+        long rows = 0;
+        String sql = "SELECT * FROM " + quote(table.name) + (table.where != null ? " WHERE " + table.where : "");
+        try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            // Makes the MySQL driver stream the rows instead of loading the whole table.
+            statement.setFetchSize(Integer.MIN_VALUE);
+            if(table.parameter != null)
+                statement.setObject(1, table.parameter);
+            if(replaceAll && table.where == null)
+                statements.put("DELETE FROM " + quote(table.name) + ";\n");
+            try (ResultSet rs = statement.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int columns = meta.getColumnCount();
+                StringBuilder prefix = new StringBuilder(table.verb).append(' ').append(quote(table.name)).append(" (");
+                for(int c = 1; c <= columns; c++) {
+                    if(c > 1)
+                        prefix.append(", ");
+                    prefix.append(quote(meta.getColumnName(c)));
+                }
+                prefix.append(") VALUES\n");
+
+                StringBuilder insert = new StringBuilder(prefix);
+                int rowsInStatement = 0;
+                while(rs.next()) {
+                    if(rowsInStatement > 0)
+                        insert.append(",\n");
+                    insert.append('(');
+                    for(int c = 1; c <= columns; c++) {
+                        if(c > 1)
+                            insert.append(", ");
+                        appendValue(insert, rs, c, meta.getColumnType(c));
+                    }
+                    insert.append(')');
+                    rows++;
+                    if(++rowsInStatement == ROWS_PER_STATEMENT || insert.length() >= STATEMENT_BYTES) {
+                        statements.put(insert.append(";\n").toString());
+                        insert = new StringBuilder(prefix);
+                        rowsInStatement = 0;
+                    }
+                }
+                if(rowsInStatement > 0)
+                    statements.put(insert.append(";\n").toString());
+            }
+        }
+        return rows;
+    }
+
+    private static void appendValue(StringBuilder sql, ResultSet rs, int column, int type) throws SQLException {
+        switch(type) {
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB: {
+                byte[] bytes = rs.getBytes(column);
+                if(bytes == null) {
+                    sql.append("NULL");
+                }
+                else if(bytes.length == 0) {
+                    sql.append("''");
+                }
+                else {
+                    sql.append("0x");
+                    for(byte b: bytes) {
+                        sql.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                    }
+                }
+                return;
+            }
+            case Types.BIT:
+            case Types.BOOLEAN: {
+                long value = rs.getLong(column);
+                sql.append(rs.wasNull() ? "NULL" : String.valueOf(value));
+                return;
+            }
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE: {
+                String value = rs.getString(column);
+                sql.append(value == null ? "NULL" : value);
+                return;
+            }
+            default: {
+                String value = rs.getString(column);
+                if(value == null) {
+                    sql.append("NULL");
+                    return;
+                }
+                sql.append('\'');
+                for(int i = 0; i < value.length(); i++) {
+                    char ch = value.charAt(i);
+                    switch(ch) {
+                        case '\\': sql.append("\\\\"); break;
+                        case '\'': sql.append("\\'"); break;
+                        case '\n': sql.append("\\n"); break;
+                        case '\r': sql.append("\\r"); break;
+                        case '\u0000': sql.append("\\0"); break;
+                        case '\u001a': sql.append("\\Z"); break;
+                        default: sql.append(ch);
+                    }
+                }
+                sql.append('\'');
+            }
+        }
+    }
+
+    /**
+     * What to export from a previous export on: rows changed since it started and rows added after its last ids.
+     */
+    public static class Since {
+
+        private final Timestamp changedSince;
+        private final Map<String, Long> lastIds;
+        private final String schemaHash;
+        private final String timestampColumn;
+        private final List<String> appendOnlyTables;
+
+        /**
+         * A constructor for Since class.
+         *
+         * @param changedSince rows whose change timestamp is at or after this time are exported.
+         * @param lastIds rows of append only tables with a higher id are exported.
+         * @param schemaHash the schema hash of the previous export.
+         * @param timestampColumn the name of the change timestamp column.
+         * @param appendOnlyTables the tables whose rows are only ever added, such as the event log.
+         */
+        public Since(Timestamp changedSince, Map<String, Long> lastIds, String schemaHash,
+                     String timestampColumn, List<String> appendOnlyTables) {
+            this.changedSince = changedSince;
+            this.lastIds = lastIds;
+            this.schemaHash = schemaHash;
+            this.timestampColumn = timestampColumn;
+            this.appendOnlyTables = appendOnlyTables;
+        }
+
+        public Timestamp getChangedSince() {
+            return changedSince;
+        }
+
+        public Map<String, Long> getLastIds() {
+            return lastIds;
+        }
+
+        public String getSchemaHash() {
+            return schemaHash;
+        }
+
+        public String getTimestampColumn() {
+            return timestampColumn;
+        }
+
+        public List<String> getAppendOnlyTables() {
+            return appendOnlyTables;
+        }
+    }
+
+    /**
+     * The outcome of an export.
+     */
+    public static class Result {
+
+        private final boolean full;
+        private final boolean consistent;
+        private final Timestamp startedAt;
+        private final String schemaHash;
+        private final Map<String, Long> lastIds;
+
+        public Result(boolean full, boolean consistent, Timestamp startedAt, String schemaHash, Map<String, Long> lastIds) {
+            this.full = full;
+            this.consistent = consistent;
+            this.startedAt = startedAt;
+            this.schemaHash = schemaHash;
+            this.lastIds = lastIds;
+        }
+
+        /**
+         * Check whether the export was full, which it is when requested or when the schema changed.
+         * @return true for a full export.
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        public boolean isConsistent() {
+            return consistent;
+        }
+
+        public Timestamp getStartedAt() {
+            return startedAt;
+        }
+
+        public String getSchemaHash() {
+            return schemaHash;
+        }
+
+        public Map<String, Long> getLastIds() {
+            return lastIds;
+        }
+    }
+
+    /**
+     * A table to export, with the statement to write its rows with and the condition selecting them.
+     */
+    private static final class TableExport {
+
+        final String name;
+        final String verb;
+        final String where;
+        final Object parameter;
+
+        TableExport(String name, String verb, String where, Object parameter) {
+            this.name = name;
+            this.verb = verb;
+            this.where = where;
+            this.parameter = parameter;
+        }
+    }
+
+    /**
+     * Quote a table or column name.
+     */
+    static String quote(String identifier) {
+        return "`" + identifier.replace("`", "``") + "`";
+    }
+}
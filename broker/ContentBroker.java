@@ -1,36 +1,66 @@
 package com.asylumproject.asylumproject.broker;
 
 import com.asylumproject.asylumproject.dataaccess.*;
+import com.asylumproject.asylumproject.payload.KeysetPage;
+import com.asylumproject.asylumproject.payload.KeysetPageRequest;
 import com.asylumproject.asylumproject.reports.ReportElement;
 import com.asylumproject.asylumproject.problemdomain.*;
 import com.asylumproject.asylumproject.reports.responses.ReportStoriesPerCountry;
 import com.asylumproject.asylumproject.reports.responses.ReportStoriesPerCurator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.persistence.Tuple;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
 public class ContentBroker {
 
+    /**
+     * Number of ids in each set based state change.
+     */
+    private static final int IN_QUERY_SIZE = 1000;
+
+    private static final KeysetPageQuery<Content> CONTENT_PAGES = new KeysetPageQuery<>(Content.class,
+            KeysetPageQuery.attributes(), KeysetPageQuery.attributes());
+    private static final KeysetPageQuery<Tag> TAG_PAGES = new KeysetPageQuery<>(Tag.class,
+            KeysetPageQuery.attributes("tag"), KeysetPageQuery.attributes("tag"));
+    private static final EntityPages<Story> STORY_VISITS = new EntityPages<>(Story.class, "tags");
+    private static final EntityPages<Content> CONTENT_VISITS = new EntityPages<>(Content.class, "tags");
+
     private ContentDB contentDB;
     private LanguageDB languageDB;
     private TagDB tagDB;
     private StoryDB storyDB;
     private CountryDB countryDB;
     private ShortenedUrlDB shortenedUrlDB;
+    private StoryReportProjection storyReportProjection;
+
+    @PersistenceContext
+    private EntityManager entityManager;
 
     @Autowired
-    public ContentBroker(ContentDB contentDB, LanguageDB languageDB, TagDB tagDB, StoryDB storyDB, CountryDB countryDB, ShortenedUrlDB shortenedUrlDB) {
+    public ContentBroker(ContentDB contentDB, LanguageDB languageDB, TagDB tagDB, StoryDB storyDB, CountryDB countryDB, ShortenedUrlDB shortenedUrlDB,
+                         StoryReportProjection storyReportProjection) {
         this.contentDB = contentDB;
         this.languageDB = languageDB;
         this.tagDB = tagDB;
         this.storyDB = storyDB;
         this.countryDB = countryDB;
         this.shortenedUrlDB = shortenedUrlDB;
+        this.storyReportProjection = storyReportProjection;
     }
 
     /**
@@ -48,56 +78,190 @@ public class ContentBroker {
      * @return a reference to the edited Content object.
      */
     public Content editContent(Content updatedContent) {
-        return contentDB.save(updatedContent);
+        Content saved = contentDB.save(updatedContent);
+        storyReportProjection.contentSaved(saved);
+        return saved;
     }
 
     public Story editStory(Story updatedContent) {
-        return contentDB.save(updatedContent);
+        Story saved = contentDB.save(updatedContent);
+        storyReportProjection.contentSaved(saved);
+        return saved;
     }
     /**
      * Sets the status attribute of a Content to "pre-published".
      * @param content the Content object to be pre-published.
-     * @return a reference to the pre-published Content object.
+     * @return a reference to the pre-published Content object, or null if it is not a story that can be
+     * pre-published.
      */
     public Content prepublishContent(Content content) {
-        return null;
+        return changeStoryState(content, StoryTransition.PREPUBLISH);
     }
 
     /**
      * Sets the status attribute of a Content to "published".
      * @param content the Content object to be published.
-     * @return a reference to the published Content object.
+     * @return a reference to the published Content object, or null if it is not a story that can be published.
      */
     public Content publishContent(Content content) {
-        return null;
+        return changeStoryState(content, StoryTransition.PUBLISH);
     }
 
     /**
      * Sets the status attribute of a Content to "archived".
      * @param content the Content object to be archived.
-     * @return a reference to the archived Content object.
+     * @return a reference to the archived Content object, or null if it is not a story that can be archived.
      */
     public Content archiveContent(Content content) {
-        return null;
+        return changeStoryState(content, StoryTransition.ARCHIVE);
     }
 
     /**
      * Sets the status attribute of a Content to "un-archived".
      * @param content the Content object to be un-archived.
-     * @return a reference to the un-archived Content object.
+     * @return a reference to the un-archived Content object, or null if it is not a story that can be
+     * un-archived.
      */
     public Content unArchiveContent(Content content) {
-        return null;
+        return changeStoryState(content, StoryTransition.UNARCHIVE);
+    }
+
+    /**
+     * Moves a story through a workflow transition. Transactional itself, since the set based transition it calls
+     * within this class is not reached through the transactional proxy, and its lock must be held until the
+     * story is moved.
+     * @param content the story.
+     * @param transition the transition.
+     * @return the updated story, or null if the content is not a story or the transition is not allowed from
+     * its state.
+     */
+    @Transactional
+    public Content changeStoryState(Content content, StoryTransition transition) {
+        if(!(content instanceof Story))
+            return null;
+        List<Integer> changed = changeStoryStates(Collections.singletonList(content.getContentID()), transition);
+        return changed.isEmpty() ? null : contentDB.findByContentId(content.getContentID());
+    }
+
+    /**
+     * Moves several stories through a workflow transition with set based updates, one per group of ids. Stories
+     * that are deleted or whose state does not allow the transition are left as they are. The stories that can be
+     * moved are locked first, so the ids returned are exactly the ones this call moved, even while other
+     * transitions run at the same time.
+     * @param ids the story ids.
+     * @param transition the transition.
+     * @return the ids of the stories that were moved.
+     */
+    @Transactional
+    public List<Integer> changeStoryStates(Collection<Integer> ids, StoryTransition transition) {
+        List<Integer> changed = new ArrayList<>();
+        if(ids.isEmpty() || !transition.isSupported())
+            return changed;
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        // In id order, so concurrent transitions lock their stories in the same order and cannot deadlock.
+        List<Integer> all = new ArrayList<>(new TreeSet<>(ids));
+        for(int i = 0; i < all.size(); i += IN_QUERY_SIZE) {
+            List<Integer> group = all.subList(i, Math.min(all.size(), i + IN_QUERY_SIZE));
+            List<Integer> eligible = contentDB.lockStoryIdsInStates(group, transition.getSources());
+            if(!eligible.isEmpty()) {
+                contentDB.updateStoryStates(eligible, transition.getTarget(), now);
+                changed.addAll(eligible);
+            }
+        }
+        storyReportProjection.storiesStateChanged(changed, transition.getTarget());
+        return changed;
+    }
+
+    /**
+     * Retrieves the stories that become available within a window of time.
+     * @param from the start of the window, excluded, in epoch milliseconds.
+     * @param to the end of the window, included, in epoch milliseconds.
+     * @return a list of [contentId, availableDate] pairs.
+     */
+    public List<Object[]> getStoriesAvailableBetween(long from, long to) {
+        return contentDB.findStoriesAvailableBetween(new Timestamp(from), new Timestamp(to));
+    }
+
+    /**
+     * Retrieves the stories that end within a window of time.
+     * @param from the start of the window, excluded, in epoch milliseconds.
+     * @param to the end of the window, included, in epoch milliseconds.
+     * @return a list of [contentId, endDate] pairs.
+     */
+    public List<Object[]> getStoriesEndingBetween(long from, long to) {
+        return contentDB.findStoriesEndingBetween(new Timestamp(from), new Timestamp(to));
+    }
+
+    /**
+     * Retrieves the stories among several ids that are available by a given time.
+     * @param ids the story ids.
+     * @param now the time, in epoch milliseconds.
+     * @return the ids of the matching stories.
+     */
+    public List<Integer> getStoryIdsAvailableBy(Collection<Integer> ids, long now) {
+        return ids.isEmpty() ? new ArrayList<>() : contentDB.findStoryIdsAvailableBy(ids, new Timestamp(now));
+    }
+
+    /**
+     * Retrieves the stories among several ids that have ended by a given time.
+     * @param ids the story ids.
+     * @param now the time, in epoch milliseconds.
+     * @return the ids of the matching stories.
+     */
+    public List<Integer> getStoryIdsEndedBy(Collection<Integer> ids, long now) {
+        return ids.isEmpty() ? new ArrayList<>() : contentDB.findStoryIdsEndedBy(ids, new Timestamp(now));
+    }
+
+    /**
+     * Retrieves several contents in a single query.
+     * @param ids the content ids.
+     * @return the contents that exist.
+     */
+    public List<Content> getContents(Collection<Integer> ids) {
+        return ids.isEmpty() ? new ArrayList<>() : contentDB.findAllById(ids);
     }
 
     public Content createStory(Story story){
-        return contentDB.save(story);
+        Story saved = contentDB.save(story);
+        storyReportProjection.contentSaved(saved);
+        return saved;
     }
 
 
     public Content getContent(int contentId){
         return contentDB.findByContentId(contentId);
     }
+    /**
+     * Retrieves the titles of several stories.
+     * @param ids the story ids.
+     * @return the title per story id, stories that do not exist are left out.
+     */
+    public Map<Integer, String> getStoryTitles(Collection<Integer> ids) {
+        Map<Integer, String> titles = new HashMap<>();
+        if(ids.isEmpty())
+            return titles;
+        for(Object[] row: contentDB.findStoryTitles(ids)) {
+            titles.put((Integer) row[0], (String) row[1]);
+        }
+        return titles;
+    }
+
+    /**
+     * Retrieves the published stories among several content ids.
+     * @param ids the content ids.
+     * @return the published stories that were not deleted, by content id.
+     */
+    public Map<Integer, Story> getPublishedStories(Collection<Integer> ids) {
+        Map<Integer, Story> stories = new HashMap<>();
+        if(ids.isEmpty())
+            return stories;
+        for(Content content: contentDB.findAllById(ids)) {
+            if(content instanceof Story && !content.isDeleted() && ((Story) content).getState() == Story.State.PUBLISHED)
+                stories.put(content.getContentID(), (Story) content);
+        }
+        return stories;
+    }
+
     /**
      * Retrieves a collection of Story objects based on a filter that is passed as parameter.
      * Retrieved Content list will be filtered to only include Story objects.
@@ -108,6 +272,32 @@ public class ContentBroker {
     }
 
 
+    /**
+     * Visit every story that was not deleted, with its creator and tags, reading them one page at a time.
+     * Stories are detached once their page is visited, so memory use does not grow with the number of stories.
+     * @param consumer the action to perform on each story.
+     */
+    @Transactional(readOnly = true)
+    public void forEachStory(Consumer<Story> consumer) {
+        STORY_VISITS.forEach(entityManager, Collections.singletonMap("deleted", false), consumer);
+    }
+
+    /**
+     * Visit every content of a type that was not deleted, with its creator and tags, reading them one page at a
+     * time. Contents are detached once their page is visited, so memory use does not grow with the number of
+     * contents.
+     * @param dtype the content type (Story, Resource, FAQ).
+     * @param consumer the action to perform on each content.
+     */
+    @Transactional(readOnly = true)
+    public void forEachContent(String dtype, Consumer<Content> consumer) {
+        Map<String, Object> filters = new HashMap<>();
+        filters.put("deleted", false);
+        filters.put("dtype", dtype);
+        CONTENT_VISITS.forEach(entityManager, filters, consumer);
+    }
+
+
     /**
      * Retrieves a Story object based on a Content ID passed as parameter.
      * @param contentID the Content ID value corresponding to the Story object to be retrieved.
@@ -151,7 +341,7 @@ public class ContentBroker {
      * @return it returns a list of ReportElement objects.
      */
     public List<ReportElement> getReportExistingContents() {
-        return contentDB.findElementsReport();
+        return storyReportProjection.getContentsPerType();
     }
 
 
@@ -161,7 +351,7 @@ public class ContentBroker {
      * @return it returns a list of ReportStoriesPerCurator objects.
      */
     public List<ReportStoriesPerCurator> getStoriesPerCurator() {
-        return contentDB.findStoriesPerCurator();
+        return storyReportProjection.getStoriesPerCurator();
     }
 
 
@@ -171,7 +361,7 @@ public class ContentBroker {
      * @return it returns a list of Tuple objects.
      */
     public List<Tuple> getStoriesPerStatus() {
-        return contentDB.getStoriesPerStatus();
+        return storyReportProjection.getStoriesPerStatus();
     }
 
 
@@ -181,7 +371,7 @@ public class ContentBroker {
      * @return it returns a list of Tuple objects.
      */
     public List<Tuple> getStoriesPerLanguage() {
-        return contentDB.getStoriesPerLanguage();
+        return storyReportProjection.getStoriesPerLanguage();
     }
 
 
@@ -191,7 +381,7 @@ public class ContentBroker {
      * @return it returns a list of ReportStoriesPerCurator objects.
      */
     public List<ReportStoriesPerCountry> getStoriesPerCountry() {
-        return contentDB.findStoriesPerCountry();
+        return storyReportProjection.getStoriesPerCountry();
     }
 
 
@@ -252,6 +442,7 @@ public class ContentBroker {
      */
     public void deleteContent(int contentId) {
         contentDB.deleteById(contentId);
+        storyReportProjection.contentDeleted(contentId);
     }
 
 
@@ -326,4 +517,26 @@ public class ContentBroker {
     public Tag getTagByID(int tagID) {
         return tagDB.findByTagIdAndDeletedFalse(tagID);
     }
+
+    /**
+     * Retrieves a page of the soft-deleted contents.
+     * @param request the page request.
+     * @return the page of contents.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<Content> getDeletedContentsPage(KeysetPageRequest request) {
+        return CONTENT_PAGES.find(entityManager, true, request);
+    }
+
+    /**
+     * Retrieves a page of the soft-deleted tags.
+     * @param request the page request.
+     * @return the page of tags.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<Tag> getDeletedTagsPage(KeysetPageRequest request) {
+        return TAG_PAGES.find(entityManager, true, request);
+    }
 }
@@ -14,6 +14,8 @@ import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.asylumproject.asylumproject.dataaccess.ContentElementDB;
 import com.asylumproject.asylumproject.dataaccess.LanguageDB;
 import com.asylumproject.asylumproject.dataaccess.MapPointDB;
+import com.asylumproject.asylumproject.payload.KeysetPage;
+import com.asylumproject.asylumproject.payload.KeysetPageRequest;
 import com.asylumproject.asylumproject.problemdomain.Language;
 import com.asylumproject.asylumproject.problemdomain.Story;
 import com.asylumproject.asylumproject.reports.PieReportData;
@@ -24,9 +26,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.persistence.Tuple;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -37,12 +42,20 @@ import java.util.Optional;
 @Service
 public class ContentElementBroker {
 
+    private static final KeysetPageQuery<ContentElement> ELEMENT_PAGES = new KeysetPageQuery<>(ContentElement.class,
+            KeysetPageQuery.attributes(), KeysetPageQuery.attributes("fileType"));
+    private static final KeysetPageQuery<MapPoint> MAP_POINT_PAGES = new KeysetPageQuery<>(MapPoint.class,
+            KeysetPageQuery.attributes(), KeysetPageQuery.attributes());
+
     private ContentElementDB contentElementDB;
     private LanguageDB languageDB;
     private MapPointDB mapPointDB;
 
     private AmazonS3 s3client;
 
+    @PersistenceContext
+    private EntityManager entityManager;
+
     @Value("${aws.endpointUrl}")
     private String endpointUrl;
     @Value("${aws.bucketName}")
@@ -383,4 +396,26 @@ public class ContentElementBroker {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Retrieves a page of the soft-deleted content elements.
+     * @param request the page request.
+     * @return the page of content elements.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<ContentElement> getDeletedContentElementsPage(KeysetPageRequest request) {
+        return ELEMENT_PAGES.find(entityManager, true, request);
+    }
+
+    /**
+     * Retrieves a page of the soft-deleted map points.
+     * @param request the page request.
+     * @return the page of map points.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<MapPoint> getDeletedMapPointsPage(KeysetPageRequest request) {
+        return MAP_POINT_PAGES.find(entityManager, true, request);
+    }
 }
@@ -0,0 +1,19 @@
+package com.asylumproject.asylumproject.broker;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published once a backup was restored into the database, whether the restore completed or failed part way, so
+ * the data kept in memory is reloaded from the restored database.
+ */
+public class DatabaseRestoredEvent extends ApplicationEvent {
+
+    /**
+     * A constructor for DatabaseRestoredEvent class.
+     *
+     * @param source the object that restored the backup.
+     */
+    public DatabaseRestoredEvent(Object source) {
+        super(source);
+    }
+}
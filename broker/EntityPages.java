@@ -0,0 +1,105 @@
+package com.asylumproject.asylumproject.broker;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Visits every entity of a type one page at a time, so no database cursor stays open while the entities are used.
+ * Each page reads the next ids after the last id of the previous page, which the database finds through the
+ * primary key, then loads the entities of those ids with their associations fetched in the same query, so visiting
+ * an entity does not run more queries. The persistence context is cleared after each page, keeping memory use
+ * constant.
+ *
+ * @param <T> the type of entities.
+ */
+class EntityPages<T> {
+
+    /**
+     * Number of entities read per page.
+     */
+    private static final int PAGE_SIZE = 500;
+
+    private final Class<T> type;
+    private final String[] collections;
+
+    /**
+     * A constructor for EntityPages class.
+     *
+     * @param type the entity class.
+     * @param collections the collection attributes to fetch along with the entities. Singular associations are
+     *                    always fetched. At most one collection can be fetched without multiplying the rows.
+     */
+    EntityPages(Class<T> type, String... collections) {
+        this.type = type;
+        this.collections = collections;
+    }
+
+    /**
+     * Visit every entity matching the filters, in id order. Must be called inside a transaction.
+     * @param entityManager the entity manager.
+     * @param filters the attribute values the entities must be equal to.
+     * @param consumer the action to perform on each entity.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    void forEach(EntityManager entityManager, Map<String, ?> filters, Consumer<? super T> consumer) {
+        EntityType<T> entityType = entityManager.getMetamodel().entity(type);
+        String idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+
+        Comparable after = null;
+        while(true) {
+            CriteriaQuery<Comparable> idQuery = cb.createQuery(Comparable.class);
+            Root<T> root = idQuery.from(type);
+            Path<Comparable> id = root.get(idName);
+            List<Predicate> where = new ArrayList<>();
+            for(Map.Entry<String, ?> filter: filters.entrySet())
+                where.add(cb.equal(root.get(filter.getKey()), filter.getValue()));
+            if(after != null)
+                where.add(cb.greaterThan(id, after));
+            idQuery.select(id).where(where.toArray(new Predicate[0])).orderBy(cb.asc(id));
+            List<Comparable> ids = entityManager.createQuery(idQuery).setMaxResults(PAGE_SIZE).getResultList();
+            if(ids.isEmpty())
+                return;
+
+            CriteriaQuery<T> pageQuery = cb.createQuery(type);
+            Root<T> page = pageQuery.from(type);
+            for(SingularAttribute<? super T, ?> attribute: entityType.getSingularAttributes()) {
+                if(attribute.isAssociation())
+                    page.fetch(attribute.getName(), JoinType.LEFT);
+            }
+            for(String collection: collections)
+                page.fetch(collection, JoinType.LEFT);
+            pageQuery.select(page).distinct(true)
+                    .where(page.get(idName).in(ids))
+                    .orderBy(cb.asc(page.get(idName)));
+            for(T entity: entityManager.createQuery(pageQuery).getResultList())
+                consumer.accept(entity);
+
+            entityManager.clear();
+            if(ids.size() < PAGE_SIZE)
+                return;
+            after = ids.get(ids.size() - 1);
+        }
+    }
+
+    /**
+     * Visit every entity, in id order. Must be called inside a transaction.
+     * @param entityManager the entity manager.
+     * @param consumer the action to perform on each entity.
+     */
+    void forEach(EntityManager entityManager, Consumer<? super T> consumer) {
+        forEach(entityManager, Collections.emptyMap(), consumer);
+    }
+}
@@ -5,14 +5,23 @@ import com.asylumproject.asylumproject.problemdomain.EventLog;
 import com.asylumproject.asylumproject.reports.responses.StoryEvent;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Service
 public class EventBroker {
 
+    private static final EntityPages<EventLog> EVENT_VISITS = new EntityPages<>(EventLog.class);
+
     private EventLogDB eventLogDB;
 
+    @PersistenceContext
+    private EntityManager entityManager;
+
     /**
      * A constructor for EventBroker class.
      *
@@ -31,6 +40,15 @@ public class EventBroker {
         eventLogDB.save(eventLog);
     }
 
+    /**
+     * Log several events in a single transaction.
+     * @param eventLogs the Event Logs.
+     */
+    @Transactional
+    public void logEvents(List<EventLog> eventLogs) {
+        eventLogDB.saveAll(eventLogs);
+    }
+
     /**
      * Retrieve a list with all the events.
      * @return a list with all the events.
@@ -40,6 +58,17 @@ public class EventBroker {
     }
 
 
+    /**
+     * Visit every event log, with its acting user and affected item, reading them one page at a time.
+     * Events are detached once their page is visited, so memory use does not grow with the number of events.
+     * @param consumer the action to perform on each event.
+     */
+    @Transactional(readOnly = true)
+    public void forEachEvent(Consumer<EventLog> consumer) {
+        EVENT_VISITS.forEach(entityManager, consumer);
+    }
+
+
     /**
      * Retrieve a list of all story event.
      *
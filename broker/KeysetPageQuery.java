@@ -0,0 +1,193 @@
+package com.asylumproject.asylumproject.broker;
+
+import com.asylumproject.asylumproject.payload.KeysetPage;
+import com.asylumproject.asylumproject.payload.KeysetPageRequest;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads a list of entities one page at a time, ordered by a sort attribute and then by id. Each page starts after
+ * the sort value and id of the last item of the previous page, which the database finds through the index instead
+ * of skipping all the rows before it. Only the listed sort and filter attributes can be used; filters match the
+ * start of text attributes.
+ * The total count is computed once per filter combination and reused for a minute, so paging through a large
+ * list costs one count instead of one per page.
+ *
+ * @param <T> the type of entities.
+ */
+public class KeysetPageQuery<T> {
+
+    private static final long COUNT_TTL_MILLIS = 60_000;
+    private static final int MAX_COUNTS = 1000;
+    private static final char CURSOR_SEPARATOR = '\u0000';
+
+    private final Class<T> type;
+    private final Set<String> sortAttributes;
+    private final Set<String> filterAttributes;
+    private final ConcurrentHashMap<String, long[]> counts = new ConcurrentHashMap<>();
+
+    /**
+     * A constructor for KeysetPageQuery class.
+     *
+     * @param type the entity class.
+     * @param sortAttributes the attributes the list can be sorted by, besides the id. They must not be null.
+     * @param filterAttributes the text attributes the list can be filtered by.
+     */
+    public KeysetPageQuery(Class<T> type, Set<String> sortAttributes, Set<String> filterAttributes) {
+        this.type = type;
+        this.sortAttributes = sortAttributes;
+        this.filterAttributes = filterAttributes;
+    }
+
+    /**
+     * Read a page of entities.
+     * @param entityManager the entity manager.
+     * @param deleted true for the soft-deleted entities only, false for the others, null for all.
+     * @param request the page request.
+     * @return the page.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public KeysetPage<T> find(EntityManager entityManager, Boolean deleted, KeysetPageRequest request) {
+        EntityType<T> entityType = entityManager.getMetamodel().entity(type);
+        String idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
+        String sortName = request.getSort() != null ? request.getSort() : idName;
+        if(!sortName.equals(idName) && !sortAttributes.contains(sortName))
+            throw new IllegalArgumentException("Cannot sort by " + sortName);
+        for(String filter: request.getFilters().keySet()) {
+            if(!filterAttributes.contains(filter))
+                throw new IllegalArgumentException("Cannot filter by " + filter);
+        }
+
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = cb.createTupleQuery();
+        Root<T> root = query.from(type);
+        Path<Comparable> id = root.get(idName);
+        Path<Comparable> sort = root.get(sortName);
+        List<Predicate> where = filters(cb, root, deleted, request.getFilters());
+
+        if(request.getCursor() != null) {
+            Comparable[] cursor = decodeCursor(request.getCursor(), sort.getJavaType(), id.getJavaType());
+            if(sortName.equals(idName)) {
+                where.add(after(cb, id, cursor[1], request.isDescending()));
+            }
+            else {
+                where.add(cb.or(after(cb, sort, cursor[0], request.isDescending()),
+                        cb.and(cb.equal(sort, cursor[0]), after(cb, id, cursor[1], request.isDescending()))));
+            }
+        }
+
+        query.multiselect(root, sort, id)
+                .where(where.toArray(new Predicate[0]))
+                .orderBy(request.isDescending() ? cb.desc(sort) : cb.asc(sort),
+                        request.isDescending() ? cb.desc(id) : cb.asc(id));
+        List<Tuple> rows = entityManager.createQuery(query)
+                .setMaxResults(request.getLimit() + 1)
+                .getResultList();
+
+        List<T> items = new ArrayList<>(Math.min(rows.size(), request.getLimit()));
+        for(int i = 0; i < rows.size() && i < request.getLimit(); i++) {
+            items.add((T) rows.get(i).get(0));
+        }
+        String nextCursor = null;
+        if(rows.size() > request.getLimit()) {
+            Tuple last = rows.get(request.getLimit() - 1);
+            nextCursor = encodeCursor(last.get(1), last.get(2));
+        }
+        return new KeysetPage<>(items, nextCursor, count(entityManager, deleted, request.getFilters()));
+    }
+
+    /**
+     * Count the entities matching the filters, reusing a count made less than a minute ago.
+     */
+    private long count(EntityManager entityManager, Boolean deleted, Map<String, String> filters) {
+        String key = deleted + "|" + new TreeMap<>(filters);
+        long now = System.currentTimeMillis();
+        long[] cached = counts.get(key);
+        if(cached != null && cached[1] > now)
+            return cached[0];
+
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<T> root = query.from(type);
+        query.select(cb.count(root)).where(filters(cb, root, deleted, filters).toArray(new Predicate[0]));
+        long count = entityManager.createQuery(query).getSingleResult();
+
+        if(counts.size() >= MAX_COUNTS)
+            counts.clear();
+        counts.put(key, new long[] {count, now + COUNT_TTL_MILLIS});
+        return count;
+    }
+
+    private static <T> List<Predicate> filters(CriteriaBuilder cb, Root<T> root, Boolean deleted, Map<String, String> filters) {
+        List<Predicate> where = new ArrayList<>();
+        if(deleted != null)
+            where.add(cb.equal(root.get("deleted"), deleted));
+        for(Map.Entry<String, String> filter: filters.entrySet()) {
+            String prefix = filter.getValue().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+            where.add(cb.like(root.get(filter.getKey()), prefix + "%", '\\'));
+        }
+        return where;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Predicate after(CriteriaBuilder cb, Path<Comparable> path, Comparable value, boolean descending) {
+        return descending ? cb.lessThan(path, value) : cb.greaterThan(path, value);
+    }
+
+    private static String encodeCursor(Object sortValue, Object id) {
+        String cursor = sortValue + String.valueOf(CURSOR_SEPARATOR) + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Comparable[] decodeCursor(String cursor, Class<?> sortType, Class<?> idType) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = decoded.lastIndexOf(CURSOR_SEPARATOR);
+            return new Comparable[] {
+                    parse(decoded.substring(0, separator), sortType),
+                    parse(decoded.substring(separator + 1), idType)
+            };
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Comparable parse(String value, Class<?> type) {
+        if(type == Integer.class || type == int.class)
+            return Integer.valueOf(value);
+        if(type == Long.class || type == long.class)
+            return Long.valueOf(value);
+        if(type == String.class)
+            return value;
+        throw new IllegalArgumentException("Unsupported cursor type " + type);
+    }
+
+    /**
+     * Convenience to list attribute names.
+     * @param names the attribute names.
+     * @return the set of names.
+     */
+    public static Set<String> attributes(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,513 @@
+package com.asylumproject.asylumproject.broker;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Restores a gzip compressed SQL script written by {@link BackupBroker}. The script is read as a stream, one
+ * statement at a time, so it is never held in memory or unpacked to disk.
+ * Table definitions run in order, but with their secondary keys and constraints removed; those are added once all
+ * rows are loaded, one table per worker. Rows are loaded by several workers, each on its own connection: all
+ * statements of a table go to the same worker, so they run in the order they were written, and each worker runs
+ * its statements in JDBC batches with one commit per batch. Any other statement waits for the loading workers to
+ * finish their queued statements first.
+ * The script turns foreign key and unique checks off for its session. Every connection, whether the restore
+ * completed or not, has them turned back on before it is returned to the pool, so the application never gets a
+ * connection without them.
+ */
+@Service
+public class RestoreBroker {
+
+    /**
+     * Number of statements a worker runs in one batch and transaction.
+     */
+    private static final int STATEMENTS_PER_BATCH = 16;
+
+    /**
+     * Undoes the session settings of a backup script.
+     */
+    private static final String RESET_SESSION = "SET FOREIGN_KEY_CHECKS = 1, UNIQUE_CHECKS = 1";
+
+    /**
+     * How long the workers are given to stop before their connections are released.
+     */
+    private static final long WORKER_STOP_SECONDS = 30;
+
+    private DataSource dataSource;
+
+    /**
+     * The steps of a restore.
+     */
+    public enum Phase {
+        LOADING, INDEXING
+    }
+
+    /**
+     * Receives the progress of a restore.
+     */
+    public interface Progress {
+
+        /**
+         * Called when the restore moves on to another step.
+         * @param phase the step.
+         */
+        void phase(Phase phase);
+
+        /**
+         * Called when the first statement of a table is read.
+         * @param table the table name.
+         */
+        void tableStarted(String table);
+
+        /**
+         * Called when a worker has run a batch of statements.
+         * @param statements the number of statements run.
+         */
+        void statementsExecuted(int statements);
+    }
+
+    /**
+     * A constructor for RestoreBroker class.
+     *
+     * @param dataSource the database connections.
+     */
+    @Autowired
+    public RestoreBroker(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Run a backup script against the database.
+     * @param in the compressed script, which is not closed.
+     * @param threads the number of tables loaded at once.
+     * @param progress receives the restore progress.
+     * @throws SQLException if a statement failed.
+     * @throws IOException if the script could not be read.
+     * @throws InterruptedException if the restore was interrupted.
+     */
+    public void restore(InputStream in, int threads, Progress progress)
+            throws SQLException, IOException, InterruptedException {
+        Connection coordinator = dataSource.getConnection();
+        try (Loader loader = new Loader(Math.max(1, threads), progress)) {
+            progress.phase(Phase.LOADING);
+            ScriptReader script = new ScriptReader(new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(in, 1 << 16), StandardCharsets.UTF_8), 1 << 16));
+            Map<String, List<String>> deferredKeys = new LinkedHashMap<>();
+            Map<String, List<String>> deferredConstraints = new LinkedHashMap<>();
+
+            String sql;
+            while((sql = script.next()) != null) {
+                String upper = sql.substring(0, Math.min(sql.length(), 32)).toUpperCase(Locale.ROOT);
+                String table = dataTable(sql, upper);
+                if(table != null) {
+                    loader.submit(table, sql);
+                    continue;
+                }
+                loader.awaitQueued();
+                if(upper.startsWith("SET ")) {
+                    execute(coordinator, sql);
+                    loader.addSessionSetting(sql);
+                }
+                else if(upper.startsWith("CREATE TABLE ")) {
+                    execute(coordinator, deferKeys(sql, deferredKeys, deferredConstraints));
+                }
+                else {
+                    execute(coordinator, sql);
+                }
+            }
+
+            loader.awaitQueued();
+            progress.phase(Phase.INDEXING);
+            // Keys first, since a constraint can need the keys of the table it refers to.
+            for(Map.Entry<String, List<String>> keys: deferredKeys.entrySet())
+                loader.submit(keys.getKey(), "ALTER TABLE " + BackupBroker.quote(keys.getKey()) + " " + String.join(", ", keys.getValue()));
+            loader.awaitQueued();
+            for(Map.Entry<String, List<String>> constraints: deferredConstraints.entrySet())
+                loader.submit(constraints.getKey(), "ALTER TABLE " + BackupBroker.quote(constraints.getKey()) + " " + String.join(", ", constraints.getValue()));
+            loader.awaitQueued();
+        } finally {
+            release(coordinator);
+        }
+    }
+
+    /**
+     * Return a connection to the pool with the session settings of the script undone. Uncommitted statements are
+     * rolled back. A connection that cannot be reset is evicted from the pool instead.
+     */
+    private void release(Connection connection) {
+        try {
+            if(!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            execute(connection, RESET_SESSION);
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            evict(connection);
+        }
+    }
+
+    /**
+     * Close a connection for good rather than returning it to the pool.
+     */
+    private void evict(Connection connection) {
+        try {
+            if(dataSource.isWrapperFor(HikariDataSource.class))
+                dataSource.unwrap(HikariDataSource.class).evictConnection(connection);
+            else
+                connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Retrieve the table a row statement writes to.
+     * @return the table name, or null if the statement is not an INSERT, REPLACE or DELETE of rows.
+     */
+    private static String dataTable(String sql, String upper) {
+        int start;
+        if(upper.startsWith("INSERT INTO `") || upper.startsWith("DELETE FROM `"))
+            start = 12;
+        else if(upper.startsWith("REPLACE INTO `"))
+            start = 13;
+        else
+            return null;
+        StringBuilder name = new StringBuilder();
+        for(int i = start + 1; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if(c == '`') {
+                if(i + 1 < sql.length() && sql.charAt(i + 1) == '`') {
+                    name.append('`');
+                    i++;
+                }
+                else {
+                    return name.toString();
+                }
+            }
+            else {
+                name.append(c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the secondary keys and constraints from a table definition, to be added once its rows are loaded.
+     * Tables without a primary key are left as they are, since their AUTO_INCREMENT column may need one of them.
+     * @return the table definition to run now.
+     */
+    private static String deferKeys(String sql, Map<String, List<String>> deferredKeys,
+                                    Map<String, List<String>> deferredConstraints) {
+        String table = dataTable("INSERT INTO " + sql.substring("CREATE TABLE ".length()), "INSERT INTO `");
+        String[] lines = sql.split("\n");
+        if(table == null || !sql.contains("\n  PRIMARY KEY "))
+            return sql;
+
+        List<String> kept = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<String> constraints = new ArrayList<>();
+        for(String line: lines) {
+            String definition = line.trim();
+            if(definition.endsWith(","))
+                definition = definition.substring(0, definition.length() - 1);
+            if(definition.startsWith("KEY ") || definition.startsWith("UNIQUE KEY ")
+                    || definition.startsWith("FULLTEXT KEY ") || definition.startsWith("SPATIAL KEY "))
+                keys.add("ADD " + definition);
+            else if(definition.startsWith("CONSTRAINT "))
+                constraints.add("ADD " + definition);
+            else
+                kept.add(line);
+        }
+        if(keys.isEmpty() && constraints.isEmpty())
+            return sql;
+
+        // The last column or key kept must not end with a comma.
+        for(int i = kept.size() - 1; i > 0; i--) {
+            if(kept.get(i).startsWith(")")) {
+                String previous = kept.get(i - 1);
+                if(previous.endsWith(","))
+                    kept.set(i - 1, previous.substring(0, previous.length() - 1));
+                break;
+            }
+        }
+        if(!keys.isEmpty())
+            deferredKeys.put(table, keys);
+        if(!constraints.isEmpty())
+            deferredConstraints.put(table, constraints);
+        return String.join("\n", kept);
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * Splits a script into statements. Understands quoted strings and identifiers, line comments, and the
+     * DELIMITER lines around routine definitions.
+     */
+    private static final class ScriptReader {
+
+        private final BufferedReader reader;
+        private final ArrayDeque<String> statements = new ArrayDeque<>();
+        private final StringBuilder statement = new StringBuilder();
+        private String delimiter = ";";
+        private char quote;
+        private boolean escaped;
+
+        ScriptReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Read the next statement.
+         * @return the statement without its delimiter, or null at the end of the script.
+         */
+        String next() throws IOException {
+            while(statements.isEmpty()) {
+                String line = reader.readLine();
+                if(line == null) {
+                    String rest = statement.toString().trim();
+                    statement.setLength(0);
+                    return rest.isEmpty() ? null : rest;
+                }
+                if(quote == 0 && statement.toString().trim().isEmpty()) {
+                    String trimmed = line.trim();
+                    if(trimmed.isEmpty() || trimmed.startsWith("--"))
+                        continue;
+                    if(trimmed.toUpperCase(Locale.ROOT).startsWith("DELIMITER ")) {
+                        delimiter = trimmed.substring("DELIMITER ".length()).trim();
+                        continue;
+                    }
+                }
+                scan(line);
+            }
+            return statements.poll();
+        }
+
+        private void scan(String line) {
+            for(int i = 0; i < line.length(); i++) {
+                char ch = line.charAt(i);
+                statement.append(ch);
+                if(escaped) {
+                    escaped = false;
+                }
+                else if(quote != 0) {
+                    if(ch == '\\' && quote != '`')
+                        escaped = true;
+                    else if(ch == quote)
+                        quote = 0;
+                }
+                else if(ch == '\'' || ch == '"' || ch == '`') {
+                    quote = ch;
+                }
+                else if(endsWithDelimiter()) {
+                    statement.setLength(statement.length() - delimiter.length());
+                    String complete = statement.toString().trim();
+                    if(!complete.isEmpty())
+                        statements.add(complete);
+                    statement.setLength(0);
+                }
+            }
+            if(statement.length() > 0)
+                statement.append('\n');
+        }
+
+        private boolean endsWithDelimiter() {
+            int length = statement.length() - delimiter.length();
+            return length >= 0 && statement.indexOf(delimiter, length) == length;
+        }
+    }
+
+    /**
+     * The workers loading rows, each with its own connection and queue.
+     */
+    private final class Loader implements AutoCloseable {
+
+        private final int threads;
+        private final Progress progress;
+        private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+        private final List<Connection> connections = new ArrayList<>();
+        private final List<String> sessionSettings = new ArrayList<>();
+        private final Map<String, Integer> tableWorkers = new HashMap<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private ExecutorService workers;
+
+        Loader(int threads, Progress progress) {
+            this.threads = threads;
+            this.progress = progress;
+        }
+
+        /**
+         * Remember a session setting, such as disabled foreign key checks, for the worker connections.
+         */
+        void addSessionSetting(String sql) {
+            sessionSettings.add(sql);
+        }
+
+        /**
+         * Queue a statement on the worker of its table.
+         */
+        void submit(String table, String sql) throws SQLException, InterruptedException {
+            start();
+            checkFailure();
+            Integer worker = tableWorkers.get(table);
+            if(worker == null) {
+                worker = tableWorkers.size() % threads;
+                tableWorkers.put(table, worker);
+                progress.tableStarted(table);
+            }
+            queues.get(worker).put(sql);
+            checkFailure();
+        }
+
+        /**
+         * Wait until every worker has run and committed its queued statements.
+         */
+        void awaitQueued() throws SQLException, InterruptedException {
+            if(workers == null)
+                return;
+            CountDownLatch latch = new CountDownLatch(threads);
+            for(BlockingQueue<Object> queue: queues)
+                queue.put(latch);
+            latch.await();
+            checkFailure();
+        }
+
+        private void start() throws SQLException {
+            if(workers != null)
+                return;
+            for(int i = 0; i < threads; i++) {
+                Connection connection = dataSource.getConnection();
+                connections.add(connection);
+                for(String setting: sessionSettings)
+                    execute(connection, setting);
+                connection.setAutoCommit(false);
+                queues.add(new ArrayBlockingQueue<>(8));
+            }
+            workers = Executors.newFixedThreadPool(threads);
+            for(int i = 0; i < threads; i++) {
+                Connection connection = connections.get(i);
+                BlockingQueue<Object> queue = queues.get(i);
+                workers.execute(() -> work(connection, queue));
+            }
+        }
+
+        private void work(Connection connection, BlockingQueue<Object> queue) {
+            try (Statement statement = connection.createStatement()) {
+                int batched = 0;
+                while(true) {
+                    Object item = queue.take();
+                    if(item instanceof String) {
+                        // After a failure, statements are only taken off the queue so the reader is not blocked.
+                        if(failure.get() == null) {
+                            statement.addBatch((String) item);
+                            if(++batched == STATEMENTS_PER_BATCH)
+                                batched = flush(connection, statement, batched);
+                        }
+                    }
+                    else {
+                        try {
+                            if(batched > 0 && failure.get() == null)
+                                batched = flush(connection, statement, batched);
+                        } finally {
+                            ((CountDownLatch) item).countDown();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // Whatever the failure, the queue is still drained, or the reader would wait on it forever.
+                failure.compareAndSet(null, e);
+                drain(queue);
+            }
+        }
+
+        private int flush(Connection connection, Statement statement, int batched) throws SQLException {
+            try {
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                statement.clearBatch();
+                connection.rollback();
+                throw e;
+            }
+            progress.statementsExecuted(batched);
+            return 0;
+        }
+
+        /**
+         * Keep releasing waits on a failed worker until the loader is closed.
+         */
+        private void drain(BlockingQueue<Object> queue) {
+            try {
+                while(true) {
+                    Object item = queue.take();
+                    if(item instanceof CountDownLatch)
+                        ((CountDownLatch) item).countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkFailure() throws SQLException {
+            Throwable e = failure.get();
+            if(e instanceof SQLException)
+                throw (SQLException) e;
+            if(e != null)
+                throw new SQLException("A restore worker failed", e);
+        }
+
+        @Override
+        public void close() {
+            boolean stopped = true;
+            if(workers != null) {
+                workers.shutdownNow();
+                try {
+                    stopped = workers.awaitTermination(WORKER_STOP_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stopped = false;
+                }
+            }
+            // A connection still in use by a worker cannot be reset safely.
+            for(Connection connection: connections) {
+                if(stopped)
+                    release(connection);
+                else
+                    evict(connection);
+            }
+        }
+    }
+}
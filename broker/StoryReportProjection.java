@@ -0,0 +1,397 @@
+package com.asylumproject.asylumproject.broker;
+
+import com.asylumproject.asylumproject.dataaccess.ContentDB;
+import com.asylumproject.asylumproject.problemdomain.Content;
+import com.asylumproject.asylumproject.problemdomain.Story;
+import com.asylumproject.asylumproject.problemdomain.User;
+import com.asylumproject.asylumproject.reports.ReportElement;
+import com.asylumproject.asylumproject.reports.responses.ReportStoriesPerCountry;
+import com.asylumproject.asylumproject.reports.responses.ReportStoriesPerCurator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory projection of the story dashboard reports. Counters are updated as contents are saved or deleted,
+ * so the dashboard tiles are served from memory instead of running a GROUP BY query on every request.
+ * A periodic reconcile rebuilds the projection from the database to correct any drift.
+ */
+@Service
+public class StoryReportProjection {
+
+    private ContentDB contentDB;
+
+    @Value("${reports.projection.reconcileMinutes:10}")
+    private long reconcileMinutes;
+
+    private ScheduledExecutorService reconciler;
+    private volatile Counters counters;
+    private volatile Map<Integer, ContentKey> touchedDuringReconcile;
+
+    // Status and language counts come from stored procedures, so they are cached until a content changes.
+    private final AtomicLong changes = new AtomicLong();
+    private volatile Snapshot<Tuple> storiesPerStatus;
+    private volatile Snapshot<Tuple> storiesPerLanguage;
+
+    @Autowired
+    public StoryReportProjection(ContentDB contentDB) {
+        this.contentDB = contentDB;
+    }
+
+    /**
+     * Used to build the projection and schedule the periodic reconcile.
+     */
+    @PostConstruct
+    private void initialize() {
+        reconciler = Executors.newSingleThreadScheduledExecutor();
+        reconciler.scheduleWithFixedDelay(this::reconcile, 0, reconcileMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        reconciler.shutdownNow();
+    }
+
+    /**
+     * Used to rebuild the projection from the contents of a restored backup.
+     * @param event the restore event.
+     */
+    @EventListener
+    public void databaseRestored(DatabaseRestoredEvent event) {
+        changes.incrementAndGet();
+        reconciler.execute(this::reconcile);
+    }
+
+    /**
+     * Record that a content was created or updated. Applied once the surrounding transaction commits, if any.
+     * @param content the saved content.
+     */
+    public void contentSaved(Content content) {
+        if(content == null)
+            return;
+        int contentId = content.getContentID();
+        ContentKey key = content.isDeleted() ? null : ContentKey.of(content);
+        User curator = content instanceof Story ? content.getCreatorUser() : null;
+        afterCommit(() -> {
+            rememberCurator(curator);
+            apply(contentId, key);
+        });
+    }
+
+    /**
+     * Record that a content was deleted. Applied once the surrounding transaction commits, if any.
+     * @param contentId the id of the deleted content.
+     */
+    public void contentDeleted(int contentId) {
+        afterCommit(() -> apply(contentId, null));
+    }
+
+    /**
+     * Record that the state of some stories changed. Applied once the surrounding transaction commits, if any.
+     * @param contentIds the ids of the stories.
+     * @param state the new state of the stories.
+     */
+    public void storiesStateChanged(Collection<Integer> contentIds, Story.State state) {
+        List<Integer> ids = new ArrayList<>(contentIds);
+        afterCommit(() -> {
+            Counters current = counters;
+            for(Integer id: ids) {
+                ContentKey old = current != null ? current.contents.get(id) : null;
+                if(old != null)
+                    apply(id, old.withState(state));
+            }
+        });
+    }
+
+    /**
+     * Retrieve the number of contents per type.
+     * @return list of report elements.
+     */
+    public List<ReportElement> getContentsPerType() {
+        Counters current = counters;
+        if(current == null)
+            return contentDB.findElementsReport();
+        long version = current.version.get();
+        Snapshot<ReportElement> snapshot = current.perTypeSnapshot;
+        if(snapshot == null || snapshot.version != version) {
+            List<ReportElement> elements = new ArrayList<>();
+            for(Map.Entry<String, AtomicLong> entry: current.perType.entrySet()) {
+                if(entry.getValue().get() > 0)
+                    elements.add(new ReportElement(entry.getKey(), entry.getValue().get()));
+            }
+            snapshot = new Snapshot<>(version, elements);
+            current.perTypeSnapshot = snapshot;
+        }
+        return snapshot.elements;
+    }
+
+    /**
+     * Retrieve the number of stories per content curator and state.
+     * @return list of stories per curator.
+     */
+    public List<ReportStoriesPerCurator> getStoriesPerCurator() {
+        Counters current = counters;
+        if(current == null)
+            return contentDB.findStoriesPerCurator();
+        long version = current.version.get();
+        Snapshot<ReportStoriesPerCurator> snapshot = current.perCuratorSnapshot;
+        if(snapshot == null || snapshot.version != version) {
+            List<ReportStoriesPerCurator> elements = new ArrayList<>();
+            for(Map.Entry<List<Object>, AtomicLong> entry: current.perCurator.entrySet()) {
+                long count = entry.getValue().get();
+                User curator = current.curators.get((Integer) entry.getKey().get(0));
+                if(count > 0 && curator != null)
+                    elements.add(new ReportStoriesPerCurator("Story", curator, (Story.State) entry.getKey().get(1), count));
+            }
+            snapshot = new Snapshot<>(version, elements);
+            current.perCuratorSnapshot = snapshot;
+        }
+        return snapshot.elements;
+    }
+
+    /**
+     * Retrieve the number of stories per country and state, highest counts first.
+     * @return list of stories per country.
+     */
+    public List<ReportStoriesPerCountry> getStoriesPerCountry() {
+        Counters current = counters;
+        if(current == null)
+            return contentDB.findStoriesPerCountry();
+        long version = current.version.get();
+        Snapshot<ReportStoriesPerCountry> snapshot = current.perCountrySnapshot;
+        if(snapshot == null || snapshot.version != version) {
+            List<Map.Entry<List<Object>, Long>> entries = new ArrayList<>();
+            for(Map.Entry<List<Object>, AtomicLong> entry: current.perCountry.entrySet()) {
+                long count = entry.getValue().get();
+                if(count > 0)
+                    entries.add(new AbstractMap.SimpleEntry<>(entry.getKey(), count));
+            }
+            entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            List<ReportStoriesPerCountry> elements = new ArrayList<>();
+            for(Map.Entry<List<Object>, Long> entry: entries) {
+                elements.add(new ReportStoriesPerCountry("Story", (String) entry.getKey().get(0),
+                        (Story.State) entry.getKey().get(1), entry.getValue()));
+            }
+            snapshot = new Snapshot<>(version, elements);
+            current.perCountrySnapshot = snapshot;
+        }
+        return snapshot.elements;
+    }
+
+    /**
+     * Retrieve the number of stories per state, querying the database only after a content has changed.
+     * @return list of tuples with the number of stories per state.
+     */
+    public List<Tuple> getStoriesPerStatus() {
+        long version = changes.get();
+        Snapshot<Tuple> snapshot = storiesPerStatus;
+        if(snapshot == null || snapshot.version != version) {
+            snapshot = new Snapshot<>(version, contentDB.getStoriesPerStatus());
+            storiesPerStatus = snapshot;
+        }
+        return snapshot.elements;
+    }
+
+    /**
+     * Retrieve the number of stories per language, querying the database only after a content has changed.
+     * @return list of tuples with the number of stories per language.
+     */
+    public List<Tuple> getStoriesPerLanguage() {
+        long version = changes.get();
+        Snapshot<Tuple> snapshot = storiesPerLanguage;
+        if(snapshot == null || snapshot.version != version) {
+            snapshot = new Snapshot<>(version, contentDB.getStoriesPerLanguage());
+            storiesPerLanguage = snapshot;
+        }
+        return snapshot.elements;
+    }
+
+    /**
+     * Rebuild the projection from the database and replace the current one.
+     */
+    public void reconcile() {
+        try {
+            touchedDuringReconcile = new ConcurrentHashMap<>();
+            Counters rebuilt = new Counters();
+            Map<Integer, String> types = new HashMap<>();
+            for(Object[] row: contentDB.findContentTypes()) {
+                types.put((Integer) row[0], (String) row[1]);
+            }
+            for(Object[] row: contentDB.findStoryDimensions()) {
+                Integer contentId = (Integer) row[0];
+                User curator = (User) row[3];
+                if(curator != null)
+                    rebuilt.curators.put(curator.getID(), curator);
+                types.remove(contentId);
+                rebuilt.add(contentId, new ContentKey("Story", (Story.State) row[1], (String) row[2],
+                        curator != null ? curator.getID() : null));
+            }
+            for(Map.Entry<Integer, String> entry: types.entrySet()) {
+                rebuilt.add(entry.getKey(), new ContentKey(entry.getValue(), null, null, null));
+            }
+
+            counters = rebuilt;
+            Map<Integer, ContentKey> touched = touchedDuringReconcile;
+            touchedDuringReconcile = null;
+            // Changes committed while the database was being read may be missing from the rebuilt projection.
+            for(Map.Entry<Integer, ContentKey> entry: touched.entrySet()) {
+                apply(entry.getKey(), entry.getValue() == ContentKey.REMOVED ? null : entry.getValue());
+            }
+            changes.incrementAndGet();
+        } catch (Exception e) {
+            touchedDuringReconcile = null;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Move a content from its previous report groups to new ones.
+     * @param contentId the content id.
+     * @param key the new report dimensions of the content, null if it was removed.
+     */
+    private void apply(int contentId, ContentKey key) {
+        Map<Integer, ContentKey> touched = touchedDuringReconcile;
+        if(touched != null)
+            touched.put(contentId, key == null ? ContentKey.REMOVED : key);
+        changes.incrementAndGet();
+
+        Counters current = counters;
+        if(current == null)
+            return;
+        current.contents.compute(contentId, (id, old) -> {
+            if(old != null)
+                current.count(old, -1);
+            if(key != null)
+                current.count(key, 1);
+            return key;
+        });
+    }
+
+    /**
+     * Run an action after the current transaction commits, or immediately if there is no transaction.
+     * @param action the action to run.
+     */
+    private void afterCommit(Runnable action) {
+        if(TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        }
+        else {
+            action.run();
+        }
+    }
+
+    /**
+     * Remember a curator so that it can be included in the stories per curator report.
+     * @param curator the curator.
+     */
+    private void rememberCurator(User curator) {
+        Counters current = counters;
+        if(current != null && curator != null)
+            current.curators.put(curator.getID(), curator);
+    }
+
+    /**
+     * The report dimensions of a single content.
+     */
+    private static final class ContentKey {
+
+        static final ContentKey REMOVED = new ContentKey(null, null, null, null);
+
+        final String dtype;
+        final Story.State state;
+        final String country;
+        final Integer curatorId;
+
+        ContentKey(String dtype, Story.State state, String country, Integer curatorId) {
+            this.dtype = dtype;
+            this.state = state;
+            this.country = country;
+            this.curatorId = curatorId;
+        }
+
+        static ContentKey of(Content content) {
+            if(content instanceof Story) {
+                Story story = (Story) content;
+                User curator = story.getCreatorUser();
+                return new ContentKey("Story", story.getState(), story.getCountryFull(),
+                        curator != null ? curator.getID() : null);
+            }
+            String dtype = content.getDtype() != null ? content.getDtype() : content.getClass().getSimpleName();
+            return new ContentKey(dtype, null, null, null);
+        }
+
+        ContentKey withState(Story.State newState) {
+            return new ContentKey(dtype, newState, country, curatorId);
+        }
+
+        boolean isStory() {
+            return "Story".equals(dtype);
+        }
+    }
+
+    /**
+     * The counters of one generation of the projection.
+     */
+    private static final class Counters {
+
+        final ConcurrentHashMap<Integer, ContentKey> contents = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, AtomicLong> perType = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<List<Object>, AtomicLong> perCurator = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<List<Object>, AtomicLong> perCountry = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, User> curators = new ConcurrentHashMap<>();
+
+        // Incremented on every change, so that report snapshots built from older counts are not reused.
+        final AtomicLong version = new AtomicLong();
+
+        volatile Snapshot<ReportElement> perTypeSnapshot;
+        volatile Snapshot<ReportStoriesPerCurator> perCuratorSnapshot;
+        volatile Snapshot<ReportStoriesPerCountry> perCountrySnapshot;
+
+        void add(int contentId, ContentKey key) {
+            contents.put(contentId, key);
+            count(key, 1);
+        }
+
+        void count(ContentKey key, long delta) {
+            perType.computeIfAbsent(key.dtype, k -> new AtomicLong()).addAndGet(delta);
+            if(key.isStory()) {
+                if(key.curatorId != null)
+                    perCurator.computeIfAbsent(Arrays.asList(key.curatorId, key.state), k -> new AtomicLong()).addAndGet(delta);
+                perCountry.computeIfAbsent(Arrays.asList(key.country, key.state), k -> new AtomicLong()).addAndGet(delta);
+            }
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * A report built from the counters at a given version.
+     */
+    private static final class Snapshot<T> {
+
+        final long version;
+        final List<T> elements;
+
+        Snapshot(long version, List<T> elements) {
+            this.version = version;
+            this.elements = Collections.unmodifiableList(elements);
+        }
+    }
+}
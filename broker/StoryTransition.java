@@ -0,0 +1,93 @@
+package com.asylumproject.asylumproject.broker;
+
+import com.asylumproject.asylumproject.problemdomain.Story;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The changes of state a story can go through, along with the states each change is allowed from.
+ * States are matched by name, so a transition whose target state does not exist is not supported, and source
+ * states that do not exist are ignored.
+ */
+public enum StoryTransition {
+
+    SUBMIT("SUBMITTED", "DRAFT"),
+    PREPUBLISH("PREPUBLISHED", "DRAFT", "SUBMITTED"),
+    PUBLISH("PUBLISHED", "DRAFT", "SUBMITTED", "PREPUBLISHED"),
+    /**
+     * Publishes a story that was approved ahead of its available date.
+     */
+    RELEASE("PUBLISHED", "PREPUBLISHED"),
+    UNPUBLISH("DRAFT", "PUBLISHED"),
+    ARCHIVE("ARCHIVED", "DRAFT", "SUBMITTED", "PREPUBLISHED", "PUBLISHED"),
+    UNARCHIVE("DRAFT", "ARCHIVED");
+
+    private final Story.State target;
+    private final Set<Story.State> sources;
+
+    StoryTransition(String target, String... sources) {
+        List<String> sourceNames = Arrays.asList(sources);
+        Story.State targetState = null;
+        Set<Story.State> sourceStates = EnumSet.noneOf(Story.State.class);
+        for(Story.State state: Story.State.values()) {
+            if(state.name().equals(target))
+                targetState = state;
+            else if(sourceNames.contains(state.name()))
+                sourceStates.add(state);
+        }
+        this.target = targetState;
+        this.sources = Collections.unmodifiableSet(sourceStates);
+    }
+
+    /**
+     * Retrieve a transition by its action name.
+     * @param action the action name, such as publish or archive, in any case.
+     * @return the matching transition.
+     * @throws IllegalArgumentException if there is no such transition or it is not supported.
+     */
+    public static StoryTransition of(String action) {
+        StoryTransition transition;
+        try {
+            transition = valueOf(action.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown action " + action);
+        }
+        if(!transition.isSupported())
+            throw new IllegalArgumentException("The action " + action + " is not supported");
+        return transition;
+    }
+
+    /**
+     * Retrieve the state stories are moved to.
+     * @return the target state, or null if the transition is not supported.
+     */
+    public Story.State getTarget() {
+        return target;
+    }
+
+    /**
+     * Retrieve the states stories can be moved from. Stories in any other state are left as they are.
+     * @return the source states.
+     */
+    public Set<Story.State> getSources() {
+        return sources;
+    }
+
+    public boolean isSupported() {
+        return target != null && !sources.isEmpty();
+    }
+
+    /**
+     * Check whether a story in a state can go through the transition.
+     * @param state the current state of the story.
+     * @return true if the transition is allowed.
+     */
+    public boolean allows(Story.State state) {
+        return isSupported() && sources.contains(state);
+    }
+}
@@ -6,6 +6,7 @@ import com.asylumproject.asylumproject.problemdomain.Event;
 import com.asylumproject.asylumproject.problemdomain.User;
 import com.asylumproject.asylumproject.security.JwtTokenProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -14,13 +15,13 @@ import org.springframework.security.authentication.InternalAuthenticationService
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/auth")
@@ -35,10 +36,6 @@ public class AuthenticationController {
      * User Manager instance used to retrieve user information.
      */
     private UserManager userManager;
-    /**
-     * Password Encoder service used to encrypt passwords
-     */
-    private PasswordEncoder passwordEncoder;
     /**
      * JWT Token Provider used for token creation as well as for user authentication.
      */
@@ -51,29 +48,40 @@ public class AuthenticationController {
      * Event Manager used to log events.
      */
     private EventManager eventManager;
+    /**
+     * Password Hashing Manager used to hash and verify passwords off the request threads.
+     */
+    private PasswordHashingManager passwordHashingManager;
+    /**
+     * Rate Limit Manager used to limit sign in and password reset attempts per account.
+     */
+    private RateLimitManager rateLimitManager;
 
     /**
      * Constructor
      * @param authenticationManager Authentication Manager
      * @param userManager User Manager
-     * @param passwordEncoder Password Encoder
      * @param tokenProvider Token Provider
      * @param eventManager Event Manager
      * @param emailServiceManager Email Service Manager
+     * @param passwordHashingManager Password Hashing Manager
+     * @param rateLimitManager Rate Limit Manager
      */
     @Autowired
     public AuthenticationController(AuthenticationManager authenticationManager,
                                     UserManager userManager,
-                                    PasswordEncoder passwordEncoder,
                                     JwtTokenProvider tokenProvider,
                                     EventManager eventManager,
-                                    EmailServiceManager emailServiceManager) {
+                                    EmailServiceManager emailServiceManager,
+                                    PasswordHashingManager passwordHashingManager,
+                                    RateLimitManager rateLimitManager) {
         this.authenticationManager = authenticationManager;
         this.userManager = userManager;
-        this.passwordEncoder = passwordEncoder;
         this.tokenProvider = tokenProvider;
         this.eventManager = eventManager;
         this.emailServiceManager = emailServiceManager;
+        this.passwordHashingManager = passwordHashingManager;
+        this.rateLimitManager = rateLimitManager;
     }
 
     /**
@@ -84,9 +92,16 @@ public class AuthenticationController {
     @PostMapping("/signin")
     public ResponseEntity<?> authenticateUser(@Valid @RequestBody LoginRequest loginRequest) {
 
+        // Only failed attempts are counted against an account, so its owner can still sign in after a few typos.
+        String account = loginRequest.getUsernameOrEmail().trim().toLowerCase();
+        long retryAfter = rateLimitManager.check(RateLimitManager.Limit.SIGN_IN_ACCOUNT, account);
+        if(retryAfter > 0) {
+            return tooManyRequests(retryAfter, "Too many failed sign in attempts, please try again later.");
+        }
+
         try {
-            Authentication authentication = authenticationManager.authenticate(
-                    new UsernamePasswordAuthenticationToken(loginRequest.getUsernameOrEmail(), loginRequest.getPassword()));
+            Authentication authentication = passwordHashingManager.execute(() -> authenticationManager.authenticate(
+                    new UsernamePasswordAuthenticationToken(loginRequest.getUsernameOrEmail(), loginRequest.getPassword())));
 
             SecurityContextHolder.getContext().setAuthentication(authentication);
             String jwt = tokenProvider.generateToken(authentication);
@@ -102,7 +117,10 @@ public class AuthenticationController {
                 return new ResponseEntity<>(new ApiResponse(false, "Unable to signin"), HttpStatus.SERVICE_UNAVAILABLE);
             }
         }catch (BadCredentialsException | InternalAuthenticationServiceException e){
+            rateLimitManager.tryAcquire(RateLimitManager.Limit.SIGN_IN_ACCOUNT, account);
             return new ResponseEntity<>(new ApiResponse(false, "Incorrect username or password"), HttpStatus.UNAUTHORIZED);
+        }catch (RejectedExecutionException e){
+            return new ResponseEntity<>(new ApiResponse(false, "Too many sign in attempts, please try again shortly."), HttpStatus.SERVICE_UNAVAILABLE);
         }catch (Exception e){
             e.printStackTrace();
             return new ResponseEntity<>(new ApiResponse(false, "Could not sign in. An error occured."), HttpStatus.BAD_REQUEST);
@@ -129,10 +147,15 @@ public class AuthenticationController {
 
         if(userOptional.isPresent()) {
             User user = userOptional.get();
+            long retryAfter = rateLimitManager.tryAcquire(RateLimitManager.Limit.PASSWORD_RESET_ACCOUNT,
+                    String.valueOf(user.getID()));
             if(user.isDeleted()) {
                 return new ResponseEntity<>(new ApiResponse(false, "User inactive, contact System Admin."),
                         HttpStatus.BAD_REQUEST);
             }
+            else if(retryAfter > 0) {
+                return tooManyRequests(retryAfter, "A password reset was requested recently, please check your email.");
+            }
             else {
                 user.setResetToken(UUID.randomUUID().toString());
                 user = userManager.setUserUUID(user);
@@ -176,10 +199,10 @@ public class AuthenticationController {
         String[] values = jwt.split(" ");
         if(tokenProvider.getUsernameFromJWT(values[1]).equals(updatePasswordRequest.getUserName())) {
             try {
-                authenticationManager.authenticate(
+                passwordHashingManager.execute(() -> authenticationManager.authenticate(
                         new UsernamePasswordAuthenticationToken(updatePasswordRequest.getUserName(),
-                                updatePasswordRequest.getOldPassword()));
-                User user = userManager.resetPassword(updatePasswordRequest.getUserName(), passwordEncoder.encode(updatePasswordRequest.getNewPassword()));
+                                updatePasswordRequest.getOldPassword())));
+                User user = userManager.resetPassword(updatePasswordRequest.getUserName(), passwordHashingManager.encode(updatePasswordRequest.getNewPassword()));
                 if(user != null) {
                     eventManager.logEvent(jwt, Event.Operation.PASSWORD_CHANGE, user);
                     return new ResponseEntity<>(new ApiResponse(true, "success"), HttpStatus.OK);
@@ -189,6 +212,8 @@ public class AuthenticationController {
                 }
             } catch (BadCredentialsException e) {
                 return new ResponseEntity<>(new ApiResponse(false, "Invalid current password."), HttpStatus.BAD_REQUEST);
+            } catch (RejectedExecutionException e) {
+                return new ResponseEntity<>(new ApiResponse(false, "Server busy, please try again shortly."), HttpStatus.SERVICE_UNAVAILABLE);
             }
         }
         else {
@@ -252,5 +277,16 @@ public class AuthenticationController {
         }
 
     }
-}
 
+    /**
+     * Build the response for a call refused by a rate limit.
+     * @param retryAfter seconds to wait before retrying.
+     * @param message the message to return.
+     * @return http response entity.
+     */
+    private static ResponseEntity<ApiResponse> tooManyRequests(long retryAfter, String message) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter))
+                .body(new ApiResponse(false, message));
+    }
+}
@@ -6,7 +6,11 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.asylumproject.asylumproject.manager.*;
 import com.asylumproject.asylumproject.payload.ApiResponse;
+import com.asylumproject.asylumproject.payload.RatingRequest;
+import com.asylumproject.asylumproject.payload.StoryRating;
+import com.asylumproject.asylumproject.payload.StoryVersion;
 import com.asylumproject.asylumproject.problemdomain.*;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ResourceLoaderAware;
@@ -27,6 +31,7 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -47,6 +52,8 @@ public class ContentController implements ResourceLoaderAware {
     private EventManager eventManager;
     private ResourceLoader resourceLoader;
     private UserManager userManager;
+    private StoryWorkflowManager storyWorkflowManager;
+    private StoryVersionManager storyVersionManager;
 
 
 
@@ -57,16 +64,22 @@ public class ContentController implements ResourceLoaderAware {
      * @param contentElementManager an object of ContentElementManager class.
      * @param eventManager          an object of EventManager class.
      * @param userManager           an object of UserManager class.
+     * @param storyWorkflowManager  an object of StoryWorkflowManager class.
+     * @param storyVersionManager   an object of StoryVersionManager class.
      */
     @Autowired
     ContentController(ContentManager contentManager,
                       ContentElementManager contentElementManager,
                       EventManager eventManager,
-                      UserManager userManager) {
+                      UserManager userManager,
+                      StoryWorkflowManager storyWorkflowManager,
+                      StoryVersionManager storyVersionManager) {
         this.contentManager = contentManager;
         this.contentElementManager = contentElementManager;
         this.eventManager = eventManager;
         this.userManager = userManager;
+        this.storyWorkflowManager = storyWorkflowManager;
+        this.storyVersionManager = storyVersionManager;
     }
 
     /**
@@ -679,6 +692,81 @@ public class ContentController implements ResourceLoaderAware {
     }
 
 
+    /**
+     * A rest API endpoint which moves several stories through a workflow transition at once.
+     *
+     * @param action   the transition: submit, prepublish, publish, unpublish, archive or unarchive.
+     * @param storyIds the ids of the stories to move.
+     * @param jwt      the acting user JWT token.
+     * @return it returns the stories moved and skipped and 200 ok code, otherwise it returns 400 Bad Request
+     * code if the action is unknown or there are too many stories.
+     */
+    @PostMapping(path = "/stories/transition")
+    public ResponseEntity<?> transitionStories(@RequestParam String action,
+                                               @RequestBody List<Integer> storyIds,
+                                               @RequestHeader("Authorization") String jwt) {
+        try {
+            return new ResponseEntity<>(storyWorkflowManager.transition(action, storyIds, jwt), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(new ApiResponse(false, e.getMessage()), HttpStatus.BAD_REQUEST);
+        }
+    }
+
+
+    /**
+     * A rest API endpoint which retrieves the version history of a story.
+     *
+     * @param id the story id.
+     * @return it returns the versions of the story, newest first, and 200 ok code.
+     */
+    @GetMapping(path = "/stories/{id}/versions")
+    public ResponseEntity<List<StoryVersion>> getStoryVersions(@PathVariable int id) {
+        return new ResponseEntity<>(storyVersionManager.getVersions(id), HttpStatus.OK);
+    }
+
+
+    /**
+     * A rest API endpoint which retrieves a story as it was in a version.
+     *
+     * @param id      the story id.
+     * @param version the version number.
+     * @return it returns the story as JSON and 200 ok code, otherwise it returns 404 Not Found code if the
+     * version does not exist.
+     */
+    @GetMapping(path = "/stories/{id}/versions/{version}")
+    public ResponseEntity<JsonNode> getStoryVersion(@PathVariable int id, @PathVariable int version) {
+        return storyVersionManager.getVersion(id, version)
+                .map(story -> new ResponseEntity<>(story, HttpStatus.OK))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+
+
+    /**
+     * A rest API endpoint which rolls a story back to the content of an earlier version. The story keeps its
+     * current state, and the restored story is saved as a new version, so the rollback can be undone.
+     *
+     * @param id      the story id.
+     * @param version the version number to restore.
+     * @param jwt     the acting user JWT token.
+     * @return it returns the restored story and 200 ok code, otherwise it returns 404 Not Found code if the
+     * story or the version does not exist.
+     */
+    @PostMapping(path = "/stories/{id}/versions/{version}/restore")
+    public ResponseEntity<Content> restoreStoryVersion(@PathVariable int id, @PathVariable int version,
+                                                       @RequestHeader("Authorization") String jwt) {
+        Content current = contentManager.getContent(id);
+        if (!(current instanceof Story))
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        Optional<Story> restored = storyVersionManager.getStoryVersion(id, version);
+        if (!restored.isPresent())
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+
+        Content updatedContent = contentManager.restoreStoryVersion((Story) current, restored.get());
+        eventManager.logEvent(jwt, Event.Operation.MODIFIED, updatedContent);
+        return new ResponseEntity<>(updatedContent, HttpStatus.OK);
+    }
+
+
     /**
      * A rest API endpoint which retrieves a list of all Contents elements to frontend.
      *
@@ -742,6 +830,88 @@ public class ContentController implements ResourceLoaderAware {
     }
 
 
+    /**
+     * A rest API endpoint which retrieves the most viewed published stories of the last hour, day or week.
+     *
+     * @param window the window of time, one of 1h, 24h or 7d.
+     * @param limit  maximum number of stories to return, at most 50.
+     * @return it returns a list of trending stories and 200 ok code otherwise
+     * it returns 400 Bad Request code if the window or limit are invalid.
+     */
+    @GetMapping(path = "/stories/trending")
+    public ResponseEntity<List<Story>> getTrendingStories(@RequestParam(defaultValue = "24h") String window,
+                                                          @RequestParam(defaultValue = "10") int limit) {
+        TrendingManager.Window trendingWindow = TrendingManager.Window.fromLabel(window);
+        if (trendingWindow == null || limit < 1 || limit > 50) {
+            return new ResponseEntity<List<Story>>(HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<List<Story>>(contentManager.listTrendingStories(trendingWindow, limit), HttpStatus.OK);
+    }
+
+    /**
+     * A rest API endpoint which receives a rating of a published story from a reader.
+     *
+     * @param id            the id of the rated story.
+     * @param ratingRequest the rating, from 1 to 5.
+     * @param request       the request, used to allow each reader to rate a story once a day.
+     * @return it returns the story rating and 200 ok code if the rating was counted otherwise
+     * it returns 204 No Content code if the story is not published OR
+     * it returns 409 Conflict code if the reader already rated the story.
+     */
+    @PostMapping(path = "/stories/{id}/rating")
+    public ResponseEntity<?> rateStory(@PathVariable int id, @Valid @RequestBody RatingRequest ratingRequest,
+                                       HttpServletRequest request) {
+        Content story = contentManager.getContent(id);
+        if (!(story instanceof Story) || ((Story) story).getState() != Story.State.PUBLISHED) {
+            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+        }
+        if (!contentManager.rateStory(id, ratingRequest.getRating(), RequestClients.clientAddress(request))) {
+            return new ResponseEntity<>(new ApiResponse(false, "You already rated this story."), HttpStatus.CONFLICT);
+        }
+        return new ResponseEntity<>(contentManager.getStoryRating(id), HttpStatus.OK);
+    }
+
+    /**
+     * A rest API endpoint which retrieves the average rating of a story.
+     *
+     * @param id the id of the story.
+     * @return it returns the average rating and number of ratings and 200 ok code.
+     */
+    @GetMapping(path = "/stories/{id}/rating")
+    public ResponseEntity<StoryRating> getStoryRating(@PathVariable int id) {
+        return new ResponseEntity<StoryRating>(contentManager.getStoryRating(id), HttpStatus.OK);
+    }
+
+    /**
+     * A rest API endpoint which retrieves the average rating of several stories, to be shown along the story summaries.
+     *
+     * @param ids the ids of the stories, at most 500.
+     * @return it returns the average rating and number of ratings per story id and 200 ok code otherwise
+     * it returns 400 Bad Request code if too many ids were sent.
+     */
+    @GetMapping(path = "/stories/ratings")
+    public ResponseEntity<Map<Integer, StoryRating>> getStoryRatings(@RequestParam List<Integer> ids) {
+        if (ids.size() > 500) {
+            return new ResponseEntity<Map<Integer, StoryRating>>(HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<Map<Integer, StoryRating>>(contentManager.getStoryRatings(ids), HttpStatus.OK);
+    }
+
+    /**
+     * A rest API endpoint which retrieves the number of views of several stories, to be shown along the story summaries.
+     *
+     * @param ids the ids of the stories, at most 500.
+     * @return it returns the number of views per story id and 200 ok code otherwise
+     * it returns 400 Bad Request code if too many ids were sent.
+     */
+    @GetMapping(path = "/stories/views")
+    public ResponseEntity<Map<Integer, Long>> getStoryViews(@RequestParam List<Integer> ids) {
+        if (ids.size() > 500) {
+            return new ResponseEntity<Map<Integer, Long>>(HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<Map<Integer, Long>>(contentManager.getStoryViews(ids), HttpStatus.OK);
+    }
+
     /**
      * A rest API endpoint which retrieves all the stories that their state marked as archived, from database.
      *
@@ -1073,15 +1243,17 @@ public class ContentController implements ResourceLoaderAware {
      * A rest API endpoint which receives the content id from frontend and
      * it uses this id to get the story object from database.
      *
-     * @param id the content id that is used to get story object from database.
+     * @param id      the content id that is used to get story object from database.
+     * @param request the request, used to count the unique visitors of the story.
      * @return it returns a content object and 200 ok code if the getting process was successful otherwise
      * it returns 204 No Content code if the getting process was unsuccessful.
      */
     @GetMapping(path = "/stories/{id}")
-    public ResponseEntity<Content> getStory(@PathVariable String id) {
+    public ResponseEntity<Content> getStory(@PathVariable String id, HttpServletRequest request) {
         int contentID = Integer.parseInt(id);
         Content story = contentManager.getContent(contentID);
         if (story != null) {
+            contentManager.recordStoryView(story, RequestClients.clientKey(request));
             return new ResponseEntity<Content>(story, HttpStatus.OK);
         } else {
             return new ResponseEntity<Content>(HttpStatus.NO_CONTENT);
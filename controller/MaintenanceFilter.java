@@ -0,0 +1,61 @@
+package com.asylumproject.asylumproject.controller;
+
+import com.asylumproject.asylumproject.manager.MaintenanceManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Turns away calls that change data with 503 Service Unavailable while the application is in maintenance mode,
+ * so nothing is written to the database while a backup is restored into it. Reads are still served, and
+ * administrators can still sign in, restore a backup and turn maintenance mode off.
+ */
+@Component
+@Order(SecurityProperties.DEFAULT_FILTER_ORDER + 1)
+public class MaintenanceFilter extends OncePerRequestFilter {
+
+    private static final AntPathMatcher PATHS = new AntPathMatcher();
+
+    private MaintenanceManager maintenanceManager;
+
+    @Autowired
+    public MaintenanceFilter(MaintenanceManager maintenanceManager) {
+        this.maintenanceManager = maintenanceManager;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if(maintenanceManager.isEnabled() && !isAllowed(request)) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.getWriter().write("{\"success\":false,\"message\":\"The website is under maintenance, please try again later.\"}");
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    /**
+     * Check if a call is allowed in maintenance mode.
+     */
+    private static boolean isAllowed(HttpServletRequest request) {
+        String method = request.getMethod();
+        if("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method))
+            return true;
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return PATHS.match("/api/auth/signin", path)
+                || PATHS.match("/api/admin/maintenance", path)
+                || PATHS.match("/api/admin/retrieve", path);
+    }
+}
@@ -0,0 +1,113 @@
+package com.asylumproject.asylumproject.controller;
+
+import com.asylumproject.asylumproject.manager.RateLimitManager;
+import com.asylumproject.asylumproject.manager.RateLimitManager.Limit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns away calls to the sign in, password reset and upload endpoints from clients, and users, that call them
+ * too often, with 429 Too Many Requests and a Retry-After header. Runs after the security filters so that
+ * uploads can be limited per signed in user as well as per client address.
+ * Clients are limited by the address of the connection, or the one given by a trusted proxy (see
+ * {@link RequestClients#clientAddress}), never by a header the client sets itself. IPv6 clients are limited by
+ * their /64 network, since a single host usually holds a whole one and could otherwise get a new bucket on every
+ * request.
+ */
+@Component
+@Order(SecurityProperties.DEFAULT_FILTER_ORDER + 1)
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private static final AntPathMatcher PATHS = new AntPathMatcher();
+
+    private RateLimitManager rateLimitManager;
+
+    @Autowired
+    public RateLimitFilter(RateLimitManager rateLimitManager) {
+        this.rateLimitManager = rateLimitManager;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        String client = limitKey(RequestClients.clientAddress(request));
+        long retryAfter = 0;
+
+        if("POST".equals(request.getMethod()) && PATHS.match("/api/auth/signin", path)) {
+            retryAfter = rateLimitManager.tryAcquire(Limit.SIGN_IN_CLIENT, client);
+        }
+        else if(PATHS.match("/api/auth/rqpwdreset/**", path)) {
+            retryAfter = rateLimitManager.tryAcquire(Limit.PASSWORD_RESET_CLIENT, client);
+        }
+        else if(isUpload(request, path)) {
+            retryAfter = rateLimitManager.tryAcquire(Limit.UPLOAD_CLIENT, client);
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            if(retryAfter == 0 && authentication != null && authentication.isAuthenticated()
+                    && !(authentication instanceof AnonymousAuthenticationToken)) {
+                retryAfter = rateLimitManager.tryAcquire(Limit.UPLOAD_USER, authentication.getName());
+            }
+        }
+
+        if(retryAfter > 0) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.getWriter().write("{\"success\":false,\"message\":\"Too many requests, please try again in "
+                    + retryAfter + " seconds.\"}");
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    /**
+     * The key a client address is limited by: the address itself for IPv4, and its /64 network for IPv6.
+     */
+    private static String limitKey(String address) {
+        if(address == null || address.indexOf(':') < 0)
+            return address;
+        try {
+            // An address literal is parsed without any name lookup.
+            byte[] bytes = InetAddress.getByName(address).getAddress();
+            if(bytes.length != 16)
+                return address;
+            StringBuilder network = new StringBuilder();
+            for(int i = 0; i < 8; i += 2) {
+                network.append(Integer.toHexString((bytes[i] & 0xFF) << 8 | (bytes[i + 1] & 0xFF))).append(':');
+            }
+            return network.append(":/64").toString();
+        } catch (UnknownHostException e) {
+            return address;
+        }
+    }
+
+    /**
+     * Uploads are the calls to /api/content/upload and the multipart calls that send files to /api/content.
+     */
+    private static boolean isUpload(HttpServletRequest request, String path) {
+        if(PATHS.match("/api/content/upload/**", path))
+            return true;
+        String contentType = request.getContentType();
+        return PATHS.match("/api/content/**", path)
+                && ("POST".equals(request.getMethod()) || "PUT".equals(request.getMethod()))
+                && contentType != null && contentType.toLowerCase().startsWith(MediaType.MULTIPART_FORM_DATA_VALUE);
+    }
+}
@@ -0,0 +1,35 @@
+package com.asylumproject.asylumproject.controller;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Helpers to identify the client that sent a request.
+ */
+public final class RequestClients {
+
+    private RequestClients() {
+    }
+
+    /**
+     * Retrieve the address of the client that sent a request. The X-Forwarded-For header is not read here,
+     * since any client can set it. When the application runs behind a proxy, set
+     * server.forward-headers-strategy=native: the server then takes the address from the header only when the
+     * request comes from one of the proxies trusted by server.tomcat.remoteip.internal-proxies.
+     * @param request the request.
+     * @return the client address.
+     */
+    public static String clientAddress(HttpServletRequest request) {
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Describe the client that sent a request by its address and user agent. The result identifies a person
+     * and must be anonymized before being stored.
+     * @param request the request.
+     * @return the client address and user agent.
+     */
+    public static String clientKey(HttpServletRequest request) {
+        String userAgent = request.getHeader("User-Agent");
+        return clientAddress(request) + "|" + (userAgent != null ? userAgent : "");
+    }
+}
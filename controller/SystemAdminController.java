@@ -1,19 +1,28 @@
 package com.asylumproject.asylumproject.controller;
 
 import com.asylumproject.asylumproject.manager.*;
+import com.asylumproject.asylumproject.payload.ApiResponse;
+import com.asylumproject.asylumproject.payload.KeysetPage;
+import com.asylumproject.asylumproject.payload.KeysetPageRequest;
 import com.asylumproject.asylumproject.problemdomain.User;
 import com.asylumproject.asylumproject.reports.*;
 import com.asylumproject.asylumproject.reports.requests.ReportDataRequest;
 import com.asylumproject.asylumproject.reports.responses.*;
 import com.asylumproject.asylumproject.security.JwtTokenProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServlet;
 import javax.validation.Valid;
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class handles all requests to change and view data having to do with System Administration.
@@ -28,27 +37,160 @@ public class SystemAdminController extends HttpServlet {
     private UserManager userManager;
     private JwtTokenProvider tokenProvider;
     private EventManager eventManager;
+    private ReportJobManager reportJobManager;
+    private PasswordHashingManager passwordHashingManager;
+    private RateLimitManager rateLimitManager;
+    private MailOutboxManager mailOutboxManager;
+    private StoryScheduleManager storyScheduleManager;
+    private MaintenanceManager maintenanceManager;
 
     @Autowired
     public SystemAdminController (ReportManager reportManager,
                                   BackupManager backupManager,
                                   UserManager userManager,
                                   JwtTokenProvider tokenProvider,
-                                  EventManager eventManager){
+                                  EventManager eventManager,
+                                  ReportJobManager reportJobManager,
+                                  PasswordHashingManager passwordHashingManager,
+                                  RateLimitManager rateLimitManager,
+                                  MailOutboxManager mailOutboxManager,
+                                  StoryScheduleManager storyScheduleManager,
+                                  MaintenanceManager maintenanceManager){
         this.reportManager = reportManager;
         this.backupManager = backupManager;
         this.userManager = userManager;
         this.tokenProvider = tokenProvider;
         this.eventManager = eventManager;
+        this.reportJobManager = reportJobManager;
+        this.passwordHashingManager = passwordHashingManager;
+        this.rateLimitManager = rateLimitManager;
+        this.mailOutboxManager = mailOutboxManager;
+        this.storyScheduleManager = storyScheduleManager;
+        this.maintenanceManager = maintenanceManager;
     }
 
     /**
      * Endpoint to retrieve all traffic report information (formatted for a line chart report)
+     * @param hours how many hours back the report starts.
+     * @param bucketMinutes the length of each point of the report, in minutes.
+     * @param endpoint only include the requests of this endpoint, e.g. "GET /api/content/stories".
      * @return all traffic report data.
      */
     @GetMapping (path = "/reports/traffic")
-    public ResponseEntity<List<TrafficData>> getTrafficData() {
-        return new ResponseEntity<>(reportManager.getTrafficData(), HttpStatus.OK);
+    public ResponseEntity<List<TrafficPoint>> getTrafficData(@RequestParam(defaultValue = "24") int hours,
+                                                             @RequestParam(defaultValue = "60") int bucketMinutes,
+                                                             @RequestParam(required = false) String endpoint) {
+        if(hours < 1 || bucketMinutes < 1)
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(reportManager.getTrafficData(hours, bucketMinutes, endpoint), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the traffic report per endpoint.
+     * @param hours how many hours back the report starts.
+     * @return the request count and latencies per endpoint, busiest endpoints first.
+     */
+    @GetMapping (path = "/reports/traffic/endpoints")
+    public ResponseEntity<List<TrafficPoint>> getTrafficPerEndpoint(@RequestParam(defaultValue = "24") int hours) {
+        if(hours < 1)
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(reportManager.getTrafficPerEndpoint(hours), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the traffic report of the content endpoints.
+     * @param hours how many hours back the report starts.
+     * @return the request count and latencies per content endpoint, busiest endpoints first.
+     */
+    @GetMapping (path = "/reports/traffic/content")
+    public ResponseEntity<List<TrafficPoint>> getContentTraffic(@RequestParam(defaultValue = "24") int hours) {
+        if(hours < 1)
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(reportManager.getContentTraffic(hours), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the most viewed stories.
+     * @param limit maximum number of stories to return.
+     * @return the story titles and number of views, most viewed first.
+     */
+    @GetMapping (path = "/reports/stories/views")
+    public ResponseEntity<List<ReportElement>> getMostViewedStories(@RequestParam(defaultValue = "10") int limit) {
+        if(limit < 1)
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(reportManager.getMostViewedStories(limit), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the estimated number of unique story visitors per day.
+     * @param days the number of days, including today.
+     * @return the day and its estimated number of unique visitors, oldest day first.
+     */
+    @GetMapping (path = "/reports/visitors")
+    public ResponseEntity<List<ReportElement>> getDailyUniqueVisitors(@RequestParam(defaultValue = "30") int days) {
+        if(days < 1 || days > 366)
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(reportManager.getDailyUniqueVisitors(days), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the stories with the most unique visitors.
+     * @param days the number of days, including today.
+     * @param limit maximum number of stories to return.
+     * @return the story titles and estimated number of unique visitors, most visited first.
+     */
+    @GetMapping (path = "/reports/visitors/stories")
+    public ResponseEntity<List<ReportElement>> getMostVisitedStories(@RequestParam(defaultValue = "7") int days,
+                                                                     @RequestParam(defaultValue = "10") int limit) {
+        if(days < 1 || days > 366 || limit < 1)
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(reportManager.getMostVisitedStories(days, limit), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the password hashing pool metrics.
+     * @return the number of completed and rejected hashing tasks, the queue depth, and the hashing time and
+     * queue wait percentiles.
+     */
+    @GetMapping (path = "/reports/hashing")
+    public ResponseEntity<Map<String, Object>> getPasswordHashingMetrics() {
+        return new ResponseEntity<>(passwordHashingManager.getMetrics(), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the rate limit metrics.
+     * @return the number of tracked clients and users, and of rejected calls, per limit.
+     */
+    @GetMapping (path = "/reports/ratelimits")
+    public ResponseEntity<Map<String, Object>> getRateLimitMetrics() {
+        return new ResponseEntity<>(rateLimitManager.getMetrics(), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the outbound mail queue metrics.
+     * @return the number of mails waiting to be sent and of mails that could not be sent.
+     */
+    @GetMapping (path = "/reports/mail")
+    public ResponseEntity<Map<String, Object>> getMailOutboxMetrics() {
+        return new ResponseEntity<>(mailOutboxManager.getMetrics(), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the story publication scheduler metrics.
+     * @return the number of pending timers and how far the scheduler has processed them.
+     */
+    @GetMapping (path = "/reports/schedule")
+    public ResponseEntity<Map<String, Object>> getStoryScheduleMetrics() {
+        return new ResponseEntity<>(storyScheduleManager.getMetrics(), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve all the dashboard reports in a single request.
+     * @return the dashboard tiles, and the names of the tiles that could not be loaded in time.
+     */
+    @GetMapping (path = "/reports/dashboard")
+    public ResponseEntity<DashboardReport> getDashboard() {
+        return new ResponseEntity<>(reportManager.getDashboard(), HttpStatus.OK);
     }
 
     /**
@@ -69,6 +211,20 @@ public class SystemAdminController extends HttpServlet {
         return new ResponseEntity<>(reportManager.getAllUsers(), HttpStatus.OK);
     }
 
+    /**
+     * Endpoint to retrieve a page of all users including the soft-deleted.
+     * @param params the cursor, limit, sort, direction and filters of the page.
+     * @return the page of users, with the cursor of the next page.
+     */
+    @GetMapping (path = "/reports/all_users/page")
+    public ResponseEntity<?> getAllUsersPage(@RequestParam Map<String, String> params) {
+        try {
+            return new ResponseEntity<>(reportManager.getAllUsersPage(KeysetPageRequest.of(params)), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(new ApiResponse(false, e.getMessage()), HttpStatus.BAD_REQUEST);
+        }
+    }
+
     /**
      * Endpoint to retrieve a list of users based on a list of usernames.
      * @param listUsernames the list of usernames to retrieve information for.
@@ -88,6 +244,39 @@ public class SystemAdminController extends HttpServlet {
         return new ResponseEntity<>(userManager.getDeletedUsers(), HttpStatus.OK);
     }
 
+    /**
+     * Endpoint to retrieve a page of the soft-deleted users.
+     * @param params the cursor, limit, sort, direction and filters of the page.
+     * @return the page of soft-deleted users, with the cursor of the next page.
+     */
+    @GetMapping (path = "/reports/deleted_users/page")
+    public ResponseEntity<?> getDeletedUsersPage(@RequestParam Map<String, String> params) {
+        try {
+            return new ResponseEntity<>(userManager.getDeletedUsersPage(KeysetPageRequest.of(params)), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(new ApiResponse(false, e.getMessage()), HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Endpoint to retrieve a page of a recycle bin.
+     * @param type the type of deleted items: users, contents, content_elements, map_points or tags.
+     * @param params the cursor, limit, sort, direction and filters of the page.
+     * @return the page of deleted items, with the cursor of the next page.
+     */
+    @GetMapping (path = "/recycle_bin/{type}")
+    public ResponseEntity<?> getRecycleBin(@PathVariable String type, @RequestParam Map<String, String> params) {
+        try {
+            KeysetPage<?> page = reportManager.getRecycleBin(type, KeysetPageRequest.of(params));
+            if(page == null) {
+                return new ResponseEntity<>(new ApiResponse(false, "Unknown recycle bin: " + type), HttpStatus.NOT_FOUND);
+            }
+            return new ResponseEntity<>(page, HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(new ApiResponse(false, e.getMessage()), HttpStatus.BAD_REQUEST);
+        }
+    }
+
     /**
      * Endpoint to retrieve the number of content elements by type (audio, video, image, text).
      * @return number of content elements by type.
@@ -135,6 +324,52 @@ public class SystemAdminController extends HttpServlet {
         return new ResponseEntity<>(link, !link.equals("")? HttpStatus.OK: HttpStatus.CONFLICT);
     }
 
+    /**
+     * Endpoint to request the raw data to be generated in excel format in the background.
+     * Identical requests that are in progress at the same time share the same job.
+     * @param reportDataRequest the report data request that includes filters.
+     * @return the report job, or 503 if too many reports are already waiting to be generated.
+     */
+    @PostMapping (path = "/reports/data/jobs")
+    public ResponseEntity<ReportJob> submitReportJob(@Valid @RequestBody ReportDataRequest reportDataRequest) {
+        try {
+            return new ResponseEntity<>(reportJobManager.submit(reportDataRequest), HttpStatus.ACCEPTED);
+        } catch (RejectedExecutionException e) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Endpoint to retrieve the status and progress of a report job.
+     * @param jobId the report job id.
+     * @return the report job.
+     */
+    @GetMapping (path = "/reports/data/jobs/{jobId}")
+    public ResponseEntity<ReportJob> getReportJob(@PathVariable String jobId) {
+        Optional<ReportJob> job = reportJobManager.getJob(jobId);
+        return job.map(j -> new ResponseEntity<>(j, HttpStatus.OK))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+
+    /**
+     * Endpoint to download the excel file generated by a report job.
+     * @param jobId the report job id.
+     * @return the report file, or 409 if the job has not finished successfully.
+     */
+    @GetMapping (path = "/reports/data/jobs/{jobId}/download", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Resource> downloadReport(@PathVariable String jobId) {
+        Optional<ReportJob> job = reportJobManager.getJob(jobId);
+        if(!job.isPresent())
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        File file = job.get().getFile();
+        if(job.get().getStatus() != ReportJob.Status.DONE || file == null || !file.exists())
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getName() + "\"")
+                .contentLength(file.length())
+                .body(new FileSystemResource(file));
+    }
+
     /**
      * Endpoint used to retrieve the number of stories per content curator.
      * @return number of stories per content curator.
@@ -177,36 +412,102 @@ public class SystemAdminController extends HttpServlet {
     }
 
     /**
-     * Endpoint to request a database backup to be generated and uploaded to a cloud based storage service and
-     * to the user's email address if selected.
-     * @param backupRequest backup request indicating if a copy will be sent to the user's email address.
+     * Endpoint to request a database backup to be generated in the background and uploaded to a cloud based
+     * storage service, with a link sent to the user's email address if selected. Only one backup runs at a time;
+     * while one is running, its job is returned.
+     * @param backupRequest backup request indicating if a link will be sent to the user's email address.
+     * @param type auto, full or incremental; auto makes an incremental backup unless a new full backup is due.
      * @param authorization JWT token to authenticate the user.
-     * @return the path where the backup file has been saved and a confirmation if the email was sent.
+     * @return the backup job, whose progress can be followed with its id.
      */
     @PostMapping (path = "/backup")
-    public ResponseEntity<BackupGenerateResponse> generateBackupFile(@Valid @RequestBody BackupRequest backupRequest,
-                                                                     @RequestHeader ("Authorization") String authorization) {
+    public ResponseEntity<BackupJob> generateBackupFile(@Valid @RequestBody BackupRequest backupRequest,
+                                                        @RequestParam (defaultValue = "auto") String type,
+                                                        @RequestHeader ("Authorization") String authorization) {
+        BackupManager.Mode mode;
+        try {
+            mode = BackupManager.Mode.valueOf(type.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
+        }
         String jwt = authorization.substring(7);
         Optional<User> user = userManager.getUserByUserName(tokenProvider.getUsernameFromJWT(jwt));
-        if(user.isPresent()) {
-            BackupGenerateResponse response = backupManager.generateBackupFile(user.get(), backupRequest);
-            if(response != null)
-                return new ResponseEntity<>(response, HttpStatus.OK);
-            else
-                return new ResponseEntity<>(null, HttpStatus.CONFLICT);
-        }
+        if(user.isPresent())
+            return new ResponseEntity<>(backupManager.generateBackupFile(user.get(), backupRequest, mode), HttpStatus.ACCEPTED);
         else
             return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
     }
 
     /**
-     * Endpoint to request a backup file is retrieved from the cloud based storage service to the server.
-     * @param path the path to the backup file to be retrieved.
-     * @return Http Status.
+     * Endpoint to retrieve the manifests of the backups saved on the server.
+     * @return the manifests, newest first.
+     */
+    @GetMapping (path = "/backup/manifests")
+    public ResponseEntity<List<BackupManifest>> getBackupManifests() {
+        return new ResponseEntity<>(backupManager.getManifests(), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to retrieve the status and progress of a backup job.
+     * @param jobId the job id.
+     * @return the backup job, or 404 if not found or expired.
+     */
+    @GetMapping (path = "/backup/jobs/{jobId}")
+    public ResponseEntity<BackupJob> getBackupJob(@PathVariable String jobId) {
+        return backupManager.getJob(jobId)
+                .map(job -> new ResponseEntity<>(job, HttpStatus.OK))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+
+    /**
+     * Endpoint to check if this node is in maintenance mode.
+     * @return true if in maintenance mode.
+     */
+    @GetMapping (path = "/maintenance")
+    public ResponseEntity<Boolean> getMaintenance() {
+        return new ResponseEntity<>(maintenanceManager.isEnabled(), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to turn maintenance mode on or off on this node. While on, calls that change data are turned away
+     * and a backup can be restored. It cannot be turned off while a backup is being restored.
+     * @param enabled true to turn maintenance mode on.
+     * @return whether this node is in maintenance mode, or 409 if a backup is being restored.
+     */
+    @PostMapping (path = "/maintenance")
+    public ResponseEntity<?> setMaintenance(@RequestParam boolean enabled) {
+        if(!enabled && backupManager.isRestoring())
+            return new ResponseEntity<>(new ApiResponse(false, "A backup is being restored."), HttpStatus.CONFLICT);
+        maintenanceManager.setEnabled(enabled);
+        return new ResponseEntity<>(maintenanceManager.isEnabled(), HttpStatus.OK);
+    }
+
+    /**
+     * Endpoint to request a backup is restored into the database in the background. Only one restore runs at a
+     * time; while one is running, its job is returned. The application must be in maintenance mode.
+     * @param path the id of a backup saved on the server, or the path to a backup file in the cloud based
+     *             storage service.
+     * @return the restore job, whose progress can be followed with its id, or 409 if not in maintenance mode.
+     */
+    @PostMapping (path = "/retrieve")
+    public ResponseEntity<?> zipFile(@RequestParam String path) {
+        try {
+            return new ResponseEntity<>(backupManager.restoreDB(path), HttpStatus.ACCEPTED);
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(new ApiResponse(false, e.getMessage()), HttpStatus.CONFLICT);
+        }
+    }
+
+    /**
+     * Endpoint to retrieve the status and progress of a restore job.
+     * @param jobId the job id.
+     * @return the restore job, or 404 if not found or expired.
      */
-    @GetMapping (path = "/retrieve")
-    public ResponseEntity<Void> zipFile(@RequestParam String path) {
-        return new ResponseEntity<>(backupManager.restoreDB(path) ? HttpStatus.OK : HttpStatus.CONFLICT);
+    @GetMapping (path = "/retrieve/jobs/{jobId}")
+    public ResponseEntity<RestoreJob> getRestoreJob(@PathVariable String jobId) {
+        return backupManager.getRestoreJob(jobId)
+                .map(job -> new ResponseEntity<>(job, HttpStatus.OK))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
     }
 
 }
@@ -0,0 +1,47 @@
+package com.asylumproject.asylumproject.controller;
+
+import com.asylumproject.asylumproject.manager.TrafficManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Records the count and latency of every request for the traffic reports. Requests are grouped by method and
+ * endpoint pattern (e.g. GET /api/content/stories/{id}) rather than by the actual path, so the number of
+ * recorded endpoints stays small.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class TrafficMetricsFilter extends OncePerRequestFilter {
+
+    private TrafficManager trafficManager;
+
+    @Autowired
+    public TrafficMetricsFilter(TrafficManager trafficManager) {
+        this.trafficManager = trafficManager;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            filterChain.doFilter(request, response);
+            failed = false;
+        } finally {
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            String endpoint = request.getMethod() + " " + (pattern != null ? pattern : "UNMATCHED");
+            trafficManager.record(endpoint, System.nanoTime() - start, failed || response.getStatus() >= 500);
+        }
+    }
+}
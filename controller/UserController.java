@@ -1,15 +1,18 @@
 package com.asylumproject.asylumproject.controller;
 
 import com.asylumproject.asylumproject.manager.EventManager;
+import com.asylumproject.asylumproject.manager.PasswordHashingManager;
+import com.asylumproject.asylumproject.manager.UserImportManager;
 import com.asylumproject.asylumproject.manager.UserManager;
 import com.asylumproject.asylumproject.payload.*;
 import com.asylumproject.asylumproject.problemdomain.Event;
 import com.asylumproject.asylumproject.problemdomain.User;
 import com.asylumproject.asylumproject.security.JwtTokenProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
@@ -17,7 +20,10 @@ import javax.servlet.http.HttpServlet;
 import javax.validation.Valid;
 import java.net.URI;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 /**
  * This class handles all requests for editing, creating and deleting users.
@@ -29,19 +35,22 @@ import java.util.Optional;
 public class UserController extends HttpServlet {
 
     private UserManager userManager;
-    private PasswordEncoder passwordEncoder;
+    private PasswordHashingManager passwordHashingManager;
     private JwtTokenProvider tokenProvider;
     private EventManager eventManager;
+    private UserImportManager userImportManager;
 
     @Autowired
     public UserController(UserManager userManager,
-                          PasswordEncoder passwordEncoder,
+                          PasswordHashingManager passwordHashingManager,
                           JwtTokenProvider tokenProvider,
-                          EventManager eventManager){
+                          EventManager eventManager,
+                          UserImportManager userImportManager){
         this.userManager = userManager;
-        this.passwordEncoder = passwordEncoder;
+        this.passwordHashingManager = passwordHashingManager;
         this.tokenProvider = tokenProvider;
         this.eventManager = eventManager;
+        this.userImportManager = userImportManager;
     }
 
     /**
@@ -76,6 +85,22 @@ public class UserController extends HttpServlet {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
 
+    /**
+     * Endpoint to retrieve a page of users.
+     * @param params the cursor returned with the previous page, the limit (at most 500), the sort attribute
+     *               (userName or emailAddress) and direction (asc or desc), and filters matching the start of the
+     *               userName, emailAddress, firstName or lastName.
+     * @return the page of users, with the cursor of the next page.
+     */
+    @GetMapping(path = "/page")
+    public ResponseEntity<?> getUsersPage(@RequestParam Map<String, String> params) {
+        try {
+            return new ResponseEntity<>(userManager.getUsersPage(KeysetPageRequest.of(params)), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(new ApiResponse(false, e.getMessage()), HttpStatus.BAD_REQUEST);
+        }
+    }
+
     /**
      * Endpoint to update a user's information.
      * @param userId the user id.
@@ -154,13 +179,25 @@ public class UserController extends HttpServlet {
         int creatorId = userManager.getUserIdByUserName(tokenProvider.getUsernameFromJWT(values[1]));
 
         //Create user account
-        signUpRequest.setPassword(passwordEncoder.encode(signUpRequest.getPassword()));
+        try {
+            signUpRequest.setPassword(passwordHashingManager.encode(signUpRequest.getPassword()));
+        } catch (RejectedExecutionException e) {
+            return new ResponseEntity<>(new ApiResponse(false, "Server busy, please try again shortly."),
+                    HttpStatus.SERVICE_UNAVAILABLE);
+        }
         Optional<User> userOptional = userManager.getUserById(creatorId);
         userOptional.ifPresent(signUpRequest::setCreator);
 
         User user = new User(signUpRequest);
 
-        User result = userManager.addUser(user);
+        User result;
+        try {
+            result = userManager.addUser(user);
+        } catch (DataIntegrityViolationException e) {
+            // Registered by a concurrent request since the checks above.
+            return new ResponseEntity<>(new ApiResponse(false, "Username or email address is already in use!"),
+                    HttpStatus.BAD_REQUEST);
+        }
 
         //URI where the User was created. We can delete this if not needed.
         URI location = ServletUriComponentsBuilder
@@ -172,6 +209,44 @@ public class UserController extends HttpServlet {
         return ResponseEntity.created(location).body(new ApiResponse(true, "User registered successfully"));
     }
 
+    /**
+     * Endpoint to create many users at once from a JSON list of sign up requests.
+     * @param signUpRequests the sign up requests, one per user.
+     * @param jwt the JWT token to authenticate.
+     * @return the number of users created, and the rows that could not be created.
+     */
+    @PostMapping(path = "/import", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> importUsers(@RequestBody List<SignUpRequest> signUpRequests,
+                                         @RequestHeader ("Authorization") String jwt) {
+        return importUsers(jwt, creator -> userImportManager.importUsers(signUpRequests, creator, jwt));
+    }
+
+    /**
+     * Endpoint to create many users at once from CSV. The first line names the columns, e.g.
+     * userName,email,password,firstName,lastName.
+     * @param csv the CSV text.
+     * @param jwt the JWT token to authenticate.
+     * @return the number of users created, and the rows that could not be created.
+     */
+    @PostMapping(path = "/import", consumes = "text/csv")
+    public ResponseEntity<?> importUsersCsv(@RequestBody String csv,
+                                            @RequestHeader ("Authorization") String jwt) {
+        return importUsers(jwt, creator -> userImportManager.importUsersCsv(csv, creator, jwt));
+    }
+
+    private ResponseEntity<?> importUsers(String jwt, Function<User, UserImportResult> importer) {
+        String[] values = jwt.split(" ");
+        Optional<User> creator = userManager.getUserByUserName(tokenProvider.getUsernameFromJWT(values[1]));
+        try {
+            return new ResponseEntity<>(importer.apply(creator.orElse(null)), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(new ApiResponse(false, e.getMessage()), HttpStatus.BAD_REQUEST);
+        } catch (RejectedExecutionException e) {
+            return new ResponseEntity<>(new ApiResponse(false, "Server busy, please try again shortly."),
+                    HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
     /**
      * Endpoint to change a user's password.
      * @param updatePasswordRequest the password update request.
@@ -182,7 +257,13 @@ public class UserController extends HttpServlet {
     public ResponseEntity<?> changeUserPassword(@Valid @RequestBody UpdatePasswordRequest updatePasswordRequest,
                                                 @RequestHeader ("Authorization") String jwt) {
 
-        User user = userManager.resetPassword(updatePasswordRequest.getUserName(), passwordEncoder.encode(updatePasswordRequest.getNewPassword()));
+        User user;
+        try {
+            user = userManager.resetPassword(updatePasswordRequest.getUserName(), passwordHashingManager.encode(updatePasswordRequest.getNewPassword()));
+        } catch (RejectedExecutionException e) {
+            return new ResponseEntity<>(new ApiResponse(false, "Server busy, please try again shortly."),
+                    HttpStatus.SERVICE_UNAVAILABLE);
+        }
 
         if(user != null) {
             eventManager.logEvent(jwt, Event.Operation.PASSWORD_CHANGE, user);
@@ -200,7 +281,7 @@ public class UserController extends HttpServlet {
      */
     @GetMapping(path = "/username/{userName}")
     public ResponseEntity<Boolean> checkUserName(@PathVariable String userName) {
-        return new ResponseEntity<>( userManager.checkUserNameExists(userName), HttpStatus.OK);
+        return new ResponseEntity<>( userManager.quickCheckUserNameExists(userName), HttpStatus.OK);
     }
 
     /**
@@ -210,7 +291,7 @@ public class UserController extends HttpServlet {
      */
     @GetMapping(path = "/email/{email}")
     public ResponseEntity<Boolean> checkEmail(@PathVariable String email) {
-        return new ResponseEntity<>( userManager.checkEmailExists(email), HttpStatus.OK);
+        return new ResponseEntity<>( userManager.quickCheckEmailExists(email), HttpStatus.OK);
     }
 
 }
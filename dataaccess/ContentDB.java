@@ -8,12 +8,19 @@ import com.asylumproject.asylumproject.reports.responses.ReportCountResult;
 import com.asylumproject.asylumproject.reports.responses.ReportStoriesPerCountry;
 import com.asylumproject.asylumproject.reports.responses.ReportStoriesPerCurator;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.util.Pair;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.LockModeType;
 import javax.persistence.Tuple;
+import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -55,6 +62,92 @@ public interface ContentDB extends JpaRepository<Content, Integer> {
             "    v.dtype")
     List<ReportElement> findElementsReport();
 
+    /**
+     * Retrieve the id and type of every content that was not deleted.
+     * @return a list of [contentId, dtype] pairs.
+     */
+    @Query("SELECT c.contentId, c.dtype FROM Content c WHERE c.deleted = false")
+    List<Object[]> findContentTypes();
+
+    /**
+     * Retrieve the reporting dimensions of every story that was not deleted.
+     * @return a list of [contentId, state, countryFull, creatorUser] rows.
+     */
+    @Query("SELECT s.contentId, s.state, s.countryFull, u FROM Story s LEFT JOIN s.creatorUser u WHERE s.deleted = false")
+    List<Object[]> findStoryDimensions();
+
+    /**
+     * Retrieve the title of several stories.
+     * @param ids the story ids.
+     * @return a list of [contentId, title] pairs.
+     */
+    @Query("SELECT s.contentId, s.title FROM Story s WHERE s.contentId IN :ids")
+    List<Object[]> findStoryTitles(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * Retrieve the stories among several ids that are not deleted and are in one of the allowed states, and lock
+     * them (SELECT ... FOR UPDATE) until the end of the surrounding transaction, so their state cannot change
+     * before they are moved.
+     * @param ids the story ids.
+     * @param from the allowed states.
+     * @return the ids of the matching stories.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT s.contentId FROM Story s WHERE s.contentId IN :ids AND s.state IN :from AND s.deleted = false")
+    List<Integer> lockStoryIdsInStates(@Param("ids") Collection<Integer> ids,
+                                       @Param("from") Collection<Story.State> from);
+
+    /**
+     * Move several stories to a state in a single UPDATE.
+     * @param ids the story ids, locked beforehand.
+     * @param state the new state.
+     * @param now the update time.
+     * @return the number of stories moved.
+     */
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE Story s SET s.state = :state, s.updateDateTime = :now WHERE s.contentId IN :ids")
+    int updateStoryStates(@Param("ids") Collection<Integer> ids, @Param("state") Story.State state,
+                          @Param("now") Timestamp now);
+
+    /**
+     * Retrieve the stories that become available within a window of time.
+     * @param from the start of the window, excluded.
+     * @param to the end of the window, included.
+     * @return a list of [contentId, availableDate] pairs.
+     */
+    @Query("SELECT s.contentId, s.availableDate FROM Story s " +
+            "WHERE s.deleted = false AND s.availableDate > :from AND s.availableDate <= :to")
+    List<Object[]> findStoriesAvailableBetween(@Param("from") Timestamp from, @Param("to") Timestamp to);
+
+    /**
+     * Retrieve the stories that end within a window of time.
+     * @param from the start of the window, excluded.
+     * @param to the end of the window, included.
+     * @return a list of [contentId, endDate] pairs.
+     */
+    @Query("SELECT s.contentId, s.endDate FROM Story s " +
+            "WHERE s.deleted = false AND s.endDate > :from AND s.endDate <= :to")
+    List<Object[]> findStoriesEndingBetween(@Param("from") Timestamp from, @Param("to") Timestamp to);
+
+    /**
+     * Retrieve the stories among several ids that are available by a given time.
+     * @param ids the story ids.
+     * @param now the time.
+     * @return the ids of the matching stories.
+     */
+    @Query("SELECT s.contentId FROM Story s WHERE s.contentId IN :ids AND s.availableDate <= :now")
+    List<Integer> findStoryIdsAvailableBy(@Param("ids") Collection<Integer> ids, @Param("now") Timestamp now);
+
+    /**
+     * Retrieve the stories among several ids that have ended by a given time.
+     * @param ids the story ids.
+     * @param now the time.
+     * @return the ids of the matching stories.
+     */
+    @Query("SELECT s.contentId FROM Story s WHERE s.contentId IN :ids AND s.endDate <= :now")
+    List<Integer> findStoryIdsEndedBy(@Param("ids") Collection<Integer> ids, @Param("now") Timestamp now);
+
     @Query(value = "CALL numStoriesByState();", nativeQuery = true)
     List<Tuple> getStoriesPerStatus();
 
@@ -0,0 +1,189 @@
+package com.asylumproject.asylumproject.dataaccess;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Stores the mails waiting to be sent. A mail is removed once sent, or kept as failed after its last attempt.
+ * Mails can hold password reset links, so sent mails are never kept.
+ */
+@Repository
+public class MailOutboxDB {
+
+    public static final int PENDING = 0;
+    public static final int FAILED = 1;
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public MailOutboxDB(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Used to create the mail outbox table if it does not exist yet.
+     */
+    @PostConstruct
+    private void createTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS mail_outbox (" +
+                "    id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                "    recipient VARCHAR(320) NOT NULL, " +
+                "    subject VARCHAR(255) NOT NULL, " +
+                "    body MEDIUMTEXT NOT NULL, " +
+                "    html BOOLEAN NOT NULL, " +
+                "    status TINYINT NOT NULL, " +
+                "    attempts INT NOT NULL, " +
+                "    next_attempt_at BIGINT NOT NULL, " +
+                "    last_error VARCHAR(500), " +
+                "    created_at BIGINT NOT NULL, " +
+                "    INDEX idx_mail_outbox_due (status, next_attempt_at))");
+    }
+
+    /**
+     * Add a mail to the outbox, to be sent right away.
+     * @param recipient the destination email address.
+     * @param subject the subject.
+     * @param body the message text.
+     * @param html true if the text is HTML.
+     * @return the id of the mail.
+     */
+    public long enqueue(String recipient, String subject, String body, boolean html) {
+        long now = System.currentTimeMillis();
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement("INSERT INTO mail_outbox " +
+                    "(recipient, subject, body, html, status, attempts, next_attempt_at, created_at) " +
+                    "VALUES (?, ?, ?, ?, ?, 0, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            ps.setString(1, recipient);
+            ps.setString(2, subject);
+            ps.setString(3, body);
+            ps.setBoolean(4, html);
+            ps.setInt(5, PENDING);
+            ps.setLong(6, now);
+            ps.setLong(7, now);
+            return ps;
+        }, keyHolder);
+        return keyHolder.getKey().longValue();
+    }
+
+    /**
+     * Retrieve the pending mails that are due, oldest first.
+     * @param now the current time in epoch milliseconds.
+     * @param limit the maximum number of mails.
+     * @return the due mails.
+     */
+    public List<Mail> findDue(long now, int limit) {
+        return jdbcTemplate.query("SELECT id, recipient, subject, body, html, attempts, next_attempt_at " +
+                        "FROM mail_outbox WHERE status = ? AND next_attempt_at <= ? ORDER BY next_attempt_at LIMIT ?",
+                (rs, i) -> new Mail(rs.getLong("id"), rs.getString("recipient"), rs.getString("subject"),
+                        rs.getString("body"), rs.getBoolean("html"), rs.getInt("attempts"), rs.getLong("next_attempt_at")),
+                PENDING, now, limit);
+    }
+
+    /**
+     * Take a due mail for sending by moving its next attempt to the end of the lease. Only one application node
+     * can take a mail, since the update only matches while the next attempt time is unchanged.
+     * @param mail the due mail.
+     * @param leaseUntil time until which no other node should send the mail, in epoch milliseconds.
+     * @return true if the mail was taken.
+     */
+    public boolean claim(Mail mail, long leaseUntil) {
+        return jdbcTemplate.update("UPDATE mail_outbox SET next_attempt_at = ? " +
+                "WHERE id = ? AND status = ? AND next_attempt_at = ?", leaseUntil, mail.getId(), PENDING,
+                mail.getNextAttemptAt()) == 1;
+    }
+
+    /**
+     * Remove sent mails.
+     * @param ids the ids of the mails.
+     */
+    public void delete(List<Long> ids) {
+        if(ids.isEmpty())
+            return;
+        jdbcTemplate.batchUpdate("DELETE FROM mail_outbox WHERE id = ?", ids, ids.size(),
+                (ps, id) -> ps.setLong(1, id));
+    }
+
+    /**
+     * Record a failed attempt to send a mail.
+     * @param id the id of the mail.
+     * @param nextAttemptAt when to try again in epoch milliseconds, ignored if giving up.
+     * @param giveUp true to stop trying to send the mail.
+     * @param error why the attempt failed.
+     */
+    public void recordFailure(long id, long nextAttemptAt, boolean giveUp, String error) {
+        jdbcTemplate.update("UPDATE mail_outbox SET attempts = attempts + 1, status = ?, next_attempt_at = ?, " +
+                "last_error = ? WHERE id = ?", giveUp ? FAILED : PENDING, nextAttemptAt,
+                error != null && error.length() > 500 ? error.substring(0, 500) : error, id);
+    }
+
+    /**
+     * Count the mails in a status.
+     * @param status PENDING or FAILED.
+     * @return the number of mails.
+     */
+    public long count(int status) {
+        Long count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM mail_outbox WHERE status = ?", Long.class, status);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * A mail waiting in the outbox.
+     */
+    public static class Mail {
+
+        private final long id;
+        private final String recipient;
+        private final String subject;
+        private final String body;
+        private final boolean html;
+        private final int attempts;
+        private final long nextAttemptAt;
+
+        public Mail(long id, String recipient, String subject, String body, boolean html, int attempts, long nextAttemptAt) {
+            this.id = id;
+            this.recipient = recipient;
+            this.subject = subject;
+            this.body = body;
+            this.html = html;
+            this.attempts = attempts;
+            this.nextAttemptAt = nextAttemptAt;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public boolean isHtml() {
+            return html;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getNextAttemptAt() {
+            return nextAttemptAt;
+        }
+    }
+}
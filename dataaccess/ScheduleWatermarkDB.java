@@ -0,0 +1,54 @@
+package com.asylumproject.asylumproject.dataaccess;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+/**
+ * Stores how far each scheduler has processed its timers, so a restarted scheduler carries on from there and
+ * catches up on the timers that expired while it was down.
+ */
+@Repository
+public class ScheduleWatermarkDB {
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public ScheduleWatermarkDB(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Used to create the watermark table if it does not exist yet.
+     */
+    @PostConstruct
+    private void createTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS schedule_watermark (" +
+                "    name VARCHAR(64) NOT NULL PRIMARY KEY, " +
+                "    processed_until BIGINT NOT NULL)");
+    }
+
+    /**
+     * Retrieve the watermark of a scheduler.
+     * @param name the scheduler name.
+     * @return the time up to which timers were processed in epoch milliseconds, or null if never saved.
+     */
+    public Long find(String name) {
+        List<Long> values = jdbcTemplate.queryForList("SELECT processed_until FROM schedule_watermark WHERE name = ?",
+                Long.class, name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Save the watermark of a scheduler.
+     * @param name the scheduler name.
+     * @param processedUntil the time up to which timers were processed, in epoch milliseconds.
+     */
+    public void save(String name, long processedUntil) {
+        jdbcTemplate.update("INSERT INTO schedule_watermark (name, processed_until) VALUES (?, ?) " +
+                "ON DUPLICATE KEY UPDATE processed_until = VALUES(processed_until)", name, processedUntil);
+    }
+}
@@ -0,0 +1,87 @@
+package com.asylumproject.asylumproject.dataaccess;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the sum and number of the ratings of each story, kept apart from the content table so that ratings
+ * never lock the story rows.
+ */
+@Repository
+public class StoryRatingDB {
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public StoryRatingDB(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Used to create the story ratings table if it does not exist yet.
+     */
+    @PostConstruct
+    private void createTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS story_ratings (" +
+                "    story_id INT NOT NULL PRIMARY KEY, " +
+                "    rating_sum BIGINT NOT NULL, " +
+                "    rating_count BIGINT NOT NULL)");
+    }
+
+    /**
+     * Add ratings to the saved ratings of several stories in a single batch.
+     * @param ratings the sum and number of the new ratings per story id.
+     */
+    public void addRatings(Map<Integer, long[]> ratings) {
+        if(ratings.isEmpty())
+            return;
+        List<Map.Entry<Integer, long[]>> entries = new ArrayList<>(ratings.entrySet());
+        jdbcTemplate.batchUpdate("INSERT INTO story_ratings (story_id, rating_sum, rating_count) VALUES (?, ?, ?) " +
+                        "ON DUPLICATE KEY UPDATE rating_sum = rating_sum + VALUES(rating_sum), " +
+                        "rating_count = rating_count + VALUES(rating_count)",
+                entries, entries.size(), (ps, entry) -> {
+                    ps.setInt(1, entry.getKey());
+                    ps.setLong(2, entry.getValue()[0]);
+                    ps.setLong(3, entry.getValue()[1]);
+                });
+    }
+
+    /**
+     * Retrieve the saved ratings of all stories.
+     * @return the sum and number of ratings per story id.
+     */
+    public Map<Integer, long[]> findAll() {
+        Map<Integer, long[]> ratings = new HashMap<>();
+        jdbcTemplate.query("SELECT story_id, rating_sum, rating_count FROM story_ratings",
+                rs -> {
+                    ratings.put(rs.getInt("story_id"), new long[]{rs.getLong("rating_sum"), rs.getLong("rating_count")});
+                });
+        return ratings;
+    }
+
+    /**
+     * Retrieve the saved ratings of several stories.
+     * @param storyIds the story ids.
+     * @return the sum and number of ratings per story id, for the stories that have saved ratings.
+     */
+    public Map<Integer, long[]> findByIds(Collection<Integer> storyIds) {
+        Map<Integer, long[]> ratings = new HashMap<>();
+        if(storyIds.isEmpty())
+            return ratings;
+        String placeholders = String.join(", ", Collections.nCopies(storyIds.size(), "?"));
+        jdbcTemplate.query("SELECT story_id, rating_sum, rating_count FROM story_ratings WHERE story_id IN (" + placeholders + ")",
+                rs -> {
+                    ratings.put(rs.getInt("story_id"), new long[]{rs.getLong("rating_sum"), rs.getLong("rating_count")});
+                }, storyIds.toArray());
+        return ratings;
+    }
+}
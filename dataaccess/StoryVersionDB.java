@@ -0,0 +1,140 @@
+package com.asylumproject.asylumproject.dataaccess;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+/**
+ * Stores the versions of the stories. Most versions are a structural diff against the previous version, and
+ * every few versions a full snapshot is stored, so a version is rebuilt from the closest snapshot before it.
+ */
+@Repository
+public class StoryVersionDB {
+
+    private static final RowMapper<Version> VERSION_MAPPER = (rs, i) -> new Version(rs.getInt("story_id"),
+            rs.getInt("version"), rs.getBoolean("snapshot"), rs.getString("data"), rs.getInt("size"),
+            rs.getLong("created_at"));
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public StoryVersionDB(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Used to create the story versions table if it does not exist yet.
+     */
+    @PostConstruct
+    private void createTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS story_versions (" +
+                "    story_id INT NOT NULL, " +
+                "    version INT NOT NULL, " +
+                "    snapshot BOOLEAN NOT NULL, " +
+                "    data MEDIUMTEXT NOT NULL, " +
+                "    created_at BIGINT NOT NULL, " +
+                "    PRIMARY KEY (story_id, version))");
+    }
+
+    /**
+     * Add a version of a story.
+     * @param storyId the story id.
+     * @param version the version number, one more than the previous version.
+     * @param snapshot true if the data is the whole story, false if it is a diff against the previous version.
+     * @param data the story or the diff, as JSON.
+     */
+    public void insert(int storyId, int version, boolean snapshot, String data) {
+        jdbcTemplate.update("INSERT INTO story_versions (story_id, version, snapshot, data, created_at) " +
+                "VALUES (?, ?, ?, ?, ?)", storyId, version, snapshot, data, System.currentTimeMillis());
+    }
+
+    /**
+     * Retrieve the latest version number of a story.
+     * @param storyId the story id.
+     * @return the version number, 0 if the story has no versions.
+     */
+    public int findLatestVersion(int storyId) {
+        Integer version = jdbcTemplate.queryForObject("SELECT MAX(version) FROM story_versions WHERE story_id = ?",
+                Integer.class, storyId);
+        return version != null ? version : 0;
+    }
+
+    /**
+     * Retrieve the versions of a story without their data.
+     * @param storyId the story id.
+     * @return the versions, newest first, with the size of their data but not the data.
+     */
+    public List<Version> findVersions(int storyId) {
+        return jdbcTemplate.query("SELECT story_id, version, snapshot, NULL AS data, LENGTH(data) AS size, created_at " +
+                "FROM story_versions WHERE story_id = ? ORDER BY version DESC", VERSION_MAPPER, storyId);
+    }
+
+    /**
+     * Retrieve what is needed to rebuild a version: the closest snapshot at or before it and the diffs after that
+     * snapshot up to the version.
+     * @param storyId the story id.
+     * @param version the version number.
+     * @return the versions, oldest first, starting with a snapshot; empty if the version does not exist.
+     */
+    public List<Version> findChain(int storyId, int version) {
+        return jdbcTemplate.query("SELECT story_id, version, snapshot, data, LENGTH(data) AS size, created_at " +
+                "FROM story_versions " +
+                "WHERE story_id = ? AND version <= ? AND version >= (SELECT MAX(version) FROM story_versions " +
+                "    WHERE story_id = ? AND snapshot = TRUE AND version <= ?) " +
+                "ORDER BY version", VERSION_MAPPER, storyId, version, storyId, version);
+    }
+
+    /**
+     * A stored version of a story.
+     */
+    public static class Version {
+
+        private final int storyId;
+        private final int version;
+        private final boolean snapshot;
+        private final String data;
+        private final int size;
+        private final long createdAt;
+
+        public Version(int storyId, int version, boolean snapshot, String data, int size, long createdAt) {
+            this.storyId = storyId;
+            this.version = version;
+            this.snapshot = snapshot;
+            this.data = data;
+            this.size = size;
+            this.createdAt = createdAt;
+        }
+
+        public int getStoryId() {
+            return storyId;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        /**
+         * Retrieve the size of the stored data.
+         * @return the size in bytes.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.asylumproject.asylumproject.dataaccess;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the number of times each story was viewed.
+ */
+@Repository
+public class StoryViewDB {
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public StoryViewDB(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Used to create the story views table if it does not exist yet.
+     */
+    @PostConstruct
+    private void createTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS story_views (" +
+                "    story_id INT NOT NULL PRIMARY KEY, " +
+                "    views BIGINT NOT NULL)");
+    }
+
+    /**
+     * Add views to the saved view counts of several stories in a single batch.
+     * @param views the number of new views per story id.
+     */
+    public void addViews(Map<Integer, Long> views) {
+        if(views.isEmpty())
+            return;
+        List<Map.Entry<Integer, Long>> entries = new ArrayList<>(views.entrySet());
+        jdbcTemplate.batchUpdate("INSERT INTO story_views (story_id, views) VALUES (?, ?) " +
+                        "ON DUPLICATE KEY UPDATE views = views + VALUES(views)",
+                entries, entries.size(), (ps, entry) -> {
+                    ps.setInt(1, entry.getKey());
+                    ps.setLong(2, entry.getValue());
+                });
+    }
+
+    /**
+     * Retrieve the saved view counts of all stories.
+     * @return the number of views per story id.
+     */
+    public Map<Integer, Long> findAll() {
+        Map<Integer, Long> views = new HashMap<>();
+        jdbcTemplate.query("SELECT story_id, views FROM story_views",
+                rs -> {
+                    views.put(rs.getInt("story_id"), rs.getLong("views"));
+                });
+        return views;
+    }
+
+    /**
+     * Retrieve the saved view counts of several stories.
+     * @param storyIds the story ids.
+     * @return the number of views per story id, for the stories that have saved views.
+     */
+    public Map<Integer, Long> findByIds(Collection<Integer> storyIds) {
+        Map<Integer, Long> views = new HashMap<>();
+        if(storyIds.isEmpty())
+            return views;
+        String placeholders = String.join(", ", Collections.nCopies(storyIds.size(), "?"));
+        jdbcTemplate.query("SELECT story_id, views FROM story_views WHERE story_id IN (" + placeholders + ")",
+                rs -> {
+                    views.put(rs.getInt("story_id"), rs.getLong("views"));
+                }, storyIds.toArray());
+        return views;
+    }
+}
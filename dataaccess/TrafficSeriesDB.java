@@ -0,0 +1,154 @@
+package com.asylumproject.asylumproject.dataaccess;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Stores the request metrics per endpoint and per minute. Each row holds the request and error counts and the
+ * encoded latency histogram of one endpoint during one minute.
+ */
+@Repository
+public class TrafficSeriesDB {
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public TrafficSeriesDB(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Used to create the traffic series table if it does not exist yet.
+     */
+    @PostConstruct
+    private void createTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS traffic_series (" +
+                "    minute_start BIGINT NOT NULL, " +
+                "    endpoint VARCHAR(191) NOT NULL, " +
+                "    requests BIGINT NOT NULL, " +
+                "    errors BIGINT NOT NULL, " +
+                "    total_micros BIGINT NOT NULL, " +
+                "    max_micros BIGINT NOT NULL, " +
+                "    histogram VARBINARY(2048) NOT NULL, " +
+                "    PRIMARY KEY (minute_start, endpoint))");
+    }
+
+    /**
+     * Save the metrics of a minute, replacing any metrics already saved for the same minute and endpoint.
+     * @param samples the metrics to save.
+     */
+    public void saveAll(List<Sample> samples) {
+        if(samples.isEmpty())
+            return;
+        jdbcTemplate.batchUpdate("REPLACE INTO traffic_series " +
+                        "(minute_start, endpoint, requests, errors, total_micros, max_micros, histogram) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?)",
+                samples, samples.size(), (ps, sample) -> {
+                    ps.setLong(1, sample.getMinuteStart());
+                    ps.setString(2, sample.getEndpoint());
+                    ps.setLong(3, sample.getRequests());
+                    ps.setLong(4, sample.getErrors());
+                    ps.setLong(5, sample.getTotalMicros());
+                    ps.setLong(6, sample.getMaxMicros());
+                    ps.setBytes(7, sample.getHistogram());
+                });
+    }
+
+    /**
+     * Retrieve the metrics saved for a minute.
+     * @param minuteStart the start of the minute, in milliseconds since the epoch.
+     * @return the metrics of each endpoint during the minute.
+     */
+    public List<Sample> findByMinute(long minuteStart) {
+        return jdbcTemplate.query("SELECT * FROM traffic_series WHERE minute_start = ?",
+                (rs, rowNum) -> new Sample(rs.getLong("minute_start"), rs.getString("endpoint"),
+                        rs.getLong("requests"), rs.getLong("errors"), rs.getLong("total_micros"),
+                        rs.getLong("max_micros"), rs.getBytes("histogram")),
+                minuteStart);
+    }
+
+    /**
+     * Visit the metrics saved between two points in time, in time order.
+     * @param from the start of the range, inclusive, in milliseconds since the epoch.
+     * @param to the end of the range, exclusive, in milliseconds since the epoch.
+     * @param endpoint only visit the metrics of this endpoint, or all endpoints if null.
+     * @param consumer visits each saved minute.
+     */
+    public void forEachSample(long from, long to, String endpoint, Consumer<Sample> consumer) {
+        String sql = "SELECT * FROM traffic_series WHERE minute_start >= ? AND minute_start < ?" +
+                (endpoint != null ? " AND endpoint = ?" : "") + " ORDER BY minute_start";
+        Object[] args = endpoint != null ? new Object[]{from, to, endpoint} : new Object[]{from, to};
+        jdbcTemplate.query(sql, rs -> {
+            consumer.accept(new Sample(rs.getLong("minute_start"), rs.getString("endpoint"),
+                    rs.getLong("requests"), rs.getLong("errors"), rs.getLong("total_micros"),
+                    rs.getLong("max_micros"), rs.getBytes("histogram")));
+        }, args);
+    }
+
+    /**
+     * Delete the metrics saved before a point in time.
+     * @param before the point in time, in milliseconds since the epoch.
+     * @return the number of rows deleted.
+     */
+    public int deleteBefore(long before) {
+        return jdbcTemplate.update("DELETE FROM traffic_series WHERE minute_start < ?", before);
+    }
+
+    /**
+     * The metrics of one endpoint during one minute.
+     */
+    public static class Sample {
+
+        private final long minuteStart;
+        private final String endpoint;
+        private final long requests;
+        private final long errors;
+        private final long totalMicros;
+        private final long maxMicros;
+        private final byte[] histogram;
+
+        public Sample(long minuteStart, String endpoint, long requests, long errors,
+                      long totalMicros, long maxMicros, byte[] histogram) {
+            this.minuteStart = minuteStart;
+            this.endpoint = endpoint;
+            this.requests = requests;
+            this.errors = errors;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+            this.histogram = histogram;
+        }
+
+        public long getMinuteStart() {
+            return minuteStart;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getTotalMicros() {
+            return totalMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        public byte[] getHistogram() {
+            return histogram;
+        }
+    }
+}
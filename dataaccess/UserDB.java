@@ -1,11 +1,14 @@
 package com.asylumproject.asylumproject.dataaccess;
 
+import com.asylumproject.asylumproject.permission.PermissionName;
 import com.asylumproject.asylumproject.reports.ReportElement;
 import com.asylumproject.asylumproject.problemdomain.User;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -43,6 +46,29 @@ public interface UserDB extends CrudRepository<User, Integer>{
      */
     Boolean existsByUserName(String username);
 
+    /**
+     * Retrieve the username and email address of every user, including the soft-deleted.
+     * @return a list of [userName, emailAddress] pairs.
+     */
+    @Query("SELECT u.userName, u.emailAddress FROM User u")
+    List<Object[]> findAllUserNamesAndEmails();
+
+    /**
+     * Retrieve which of the provided usernames are in use, including by soft-deleted users.
+     * @param userNames the usernames to check.
+     * @return the usernames in use.
+     */
+    @Query("SELECT u.userName FROM User u WHERE u.userName IN :userNames")
+    List<String> findExistingUserNames(@Param("userNames") Collection<String> userNames);
+
+    /**
+     * Retrieve which of the provided email addresses are in use, including by soft-deleted users.
+     * @param emails the email addresses to check.
+     * @return the email addresses in use.
+     */
+    @Query("SELECT u.emailAddress FROM User u WHERE u.emailAddress IN :emails")
+    List<String> findExistingEmails(@Param("emails") Collection<String> emails);
+
     /**
      * Validates if an email address exists.
      * @param email the email address to validate.
@@ -70,6 +96,26 @@ public interface UserDB extends CrudRepository<User, Integer>{
             "    v.defaultLanguage")
     List<ReportElement> findUsersPerLanguage();
 
+    /**
+     * Counts the users that were not deleted, and how many of them have each of the provided permissions,
+     * in a single query over the user-permission join.
+     * @param sysAdmin the system administrator permission.
+     * @param curator the content curator permission.
+     * @param teacher the teacher permission.
+     * @return a single row of [total users, system administrators, content curators, teachers].
+     */
+    @Query("SELECT " +
+            "    COUNT(DISTINCT u), " +
+            "    SUM(CASE WHEN p.name = :sysAdmin THEN 1 ELSE 0 END), " +
+            "    SUM(CASE WHEN p.name = :curator THEN 1 ELSE 0 END), " +
+            "    SUM(CASE WHEN p.name = :teacher THEN 1 ELSE 0 END) " +
+            "FROM " +
+            "    User u LEFT JOIN u.permissions p " +
+            "WHERE u.deleted = false")
+    List<Object[]> countUsersPerPermission(@Param("sysAdmin") PermissionName sysAdmin,
+                                           @Param("curator") PermissionName curator,
+                                           @Param("teacher") PermissionName teacher);
+
     /**
      * Retrieve a list with all users including the soft-deleted.
      * @return a list with all users including the soft-deleted.
@@ -0,0 +1,91 @@
+package com.asylumproject.asylumproject.dataaccess;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Stores the unique visitor sketches, one per story and per day. Story 0 holds the visitors of any story.
+ */
+@Repository
+public class VisitorSketchDB {
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public VisitorSketchDB(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Used to create the visitor sketches table if it does not exist yet.
+     */
+    @PostConstruct
+    private void createTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS visitor_sketches (" +
+                "    story_id INT NOT NULL, " +
+                "    day INT NOT NULL, " +
+                "    registers VARBINARY(4096) NOT NULL, " +
+                "    PRIMARY KEY (day, story_id))");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS visitor_salt (" +
+                "    id TINYINT NOT NULL PRIMARY KEY, " +
+                "    salt VARBINARY(64) NOT NULL)");
+    }
+
+    /**
+     * Retrieve the saved salt used to anonymize visitors, saving the provided one first if none is saved yet.
+     * When several application nodes start at once, only the first salt is kept and all of them read it.
+     * @param salt the salt to save if none is saved yet.
+     * @return the saved salt.
+     */
+    public byte[] findOrSaveSalt(byte[] salt) {
+        jdbcTemplate.update("INSERT IGNORE INTO visitor_salt (id, salt) VALUES (1, ?)", (Object) salt);
+        return jdbcTemplate.queryForObject("SELECT salt FROM visitor_salt WHERE id = 1",
+                (rs, rowNum) -> rs.getBytes("salt"));
+    }
+
+    /**
+     * Merge a sketch into the saved sketch of a story and day. The saved row is locked while merging, so
+     * application nodes saving the same sketch at the same time do not overwrite each other.
+     * @param storyId the story id.
+     * @param day the day, as a number of days since the epoch.
+     * @param merge merges the saved registers, null if none were saved, with the new ones and returns the result.
+     */
+    @Transactional
+    public void merge(int storyId, int day, UnaryOperator<byte[]> merge) {
+        List<byte[]> saved = jdbcTemplate.query(
+                "SELECT registers FROM visitor_sketches WHERE day = ? AND story_id = ? FOR UPDATE",
+                (rs, rowNum) -> rs.getBytes("registers"), day, storyId);
+        byte[] registers = merge.apply(saved.isEmpty() ? null : saved.get(0));
+        jdbcTemplate.update("INSERT INTO visitor_sketches (story_id, day, registers) VALUES (?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE registers = VALUES(registers)", storyId, day, registers);
+    }
+
+    /**
+     * Visit the saved sketches of a range of days.
+     * @param fromDay the first day, as a number of days since the epoch.
+     * @param toDay the last day, inclusive.
+     * @param storyId only visit the sketches of this story, or of all stories if null.
+     * @param consumer visits the story id, day and registers of each sketch.
+     */
+    public void forEachSketch(int fromDay, int toDay, Integer storyId, SketchConsumer consumer) {
+        String sql = "SELECT story_id, day, registers FROM visitor_sketches WHERE day >= ? AND day <= ?" +
+                (storyId != null ? " AND story_id = ?" : "");
+        Object[] args = storyId != null ? new Object[]{fromDay, toDay, storyId} : new Object[]{fromDay, toDay};
+        jdbcTemplate.query(sql, rs -> {
+            consumer.accept(rs.getInt("story_id"), rs.getInt("day"), rs.getBytes("registers"));
+        }, args);
+    }
+
+    /**
+     * Visits a saved sketch.
+     */
+    public interface SketchConsumer {
+        void accept(int storyId, int day, byte[] registers);
+    }
+}
@@ -0,0 +1,160 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.io.File;
+
+/**
+ * A database backup being generated in the background, along with its progress and result.
+ */
+public class BackupJob {
+
+    /**
+     * The states a backup job goes through.
+     */
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String jobId;
+    private final long createdAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile int tables;
+    private volatile int tablesExported;
+    private volatile long rowsExported;
+    private volatile boolean consistent;
+    private volatile BackupManifest.Type type;
+    private volatile File file;
+    private volatile String link;
+    private volatile String error;
+    private volatile long finishedAt;
+
+    /**
+     * A constructor for BackupJob class.
+     *
+     * @param jobId the job id.
+     */
+    public BackupJob(String jobId) {
+        this.jobId = jobId;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Retrieve the progress of the job.
+     * @return percentage of the tables exported.
+     */
+    public int getProgress() {
+        if(status == Status.DONE)
+            return 100;
+        return tables == 0 ? 0 : tablesExported * 100 / tables;
+    }
+
+    public int getTables() {
+        return tables;
+    }
+
+    public int getTablesExported() {
+        return tablesExported;
+    }
+
+    public long getRowsExported() {
+        return rowsExported;
+    }
+
+    /**
+     * Check whether all tables were read from the same point in time.
+     * @return false if each table was read from its own point in time.
+     */
+    public boolean isConsistent() {
+        return consistent;
+    }
+
+    /**
+     * Retrieve whether a full or an incremental backup was made, available once the database is exported.
+     * @return the backup type or null if the database is not exported yet.
+     */
+    public BackupManifest.Type getType() {
+        return type;
+    }
+
+    /**
+     * Retrieve the name of the backup file, available once the job is done.
+     * @return the file name or null if the job is not done.
+     */
+    public String getFileName() {
+        return file != null ? file.getName() : null;
+    }
+
+    @JsonIgnore
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Retrieve the link to the copy uploaded to the cloud based storage service, if uploads are enabled.
+     * @return the external link or null.
+     */
+    public String getLink() {
+        return link;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * Check whether the job is still queued or running.
+     * @return true if the job has not finished yet.
+     */
+    @JsonIgnore
+    public boolean isActive() {
+        return status == Status.QUEUED || status == Status.RUNNING;
+    }
+
+    void started() {
+        this.status = Status.RUNNING;
+    }
+
+    void setTables(int tables) {
+        this.tables = tables;
+    }
+
+    synchronized void tableExported(long rows) {
+        this.tablesExported++;
+        this.rowsExported += rows;
+    }
+
+    void exported(File file, boolean consistent, BackupManifest.Type type) {
+        this.file = file;
+        this.consistent = consistent;
+        this.type = type;
+    }
+
+    void completed(String link) {
+        this.link = link;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = Status.DONE;
+    }
+
+    void failed(String error) {
+        this.error = error;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = Status.FAILED;
+    }
+}
@@ -1,98 +1,538 @@
 package com.asylumproject.asylumproject.manager;
 
+import com.asylumproject.asylumproject.broker.BackupBroker;
+import com.asylumproject.asylumproject.broker.DatabaseRestoredEvent;
+import com.asylumproject.asylumproject.broker.RestoreBroker;
 import com.asylumproject.asylumproject.problemdomain.User;
 import com.asylumproject.asylumproject.reports.BackupRequest;
 import com.asylumproject.asylumproject.reports.dropbox.DBoxManager;
-import com.asylumproject.asylumproject.reports.responses.BackupGenerateResponse;
-import com.smattme.MysqlExportService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.sql.SQLException;
-import java.util.Properties;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class handles all functionality related to backing up and restoring data on the website.
+ * Backups run in the background, one at a time: requesting a backup while one is running returns the running
+ * backup job.
+ * A backup is either full, or incremental: only the rows changed since the previous backup of its chain. Each
+ * backup file is saved with a JSON manifest describing it. A new chain is started with a full backup once the
+ * current chain is long or old enough, or when the schema changed, and the oldest chains are then removed.
+ * Rows deleted from tables with a change timestamp are not in incremental backups; they are gone from the next
+ * full backup.
+ * Restoring a backup runs its full backup and then each incremental backup up to it, on the same executor, so a
+ * restore never overlaps a backup. A backup can only be restored in maintenance mode, and once restored the data
+ * kept in memory is reloaded through a {@link DatabaseRestoredEvent}.
  */
 @Service
 public class BackupManager {
 
-    private Properties properties = new Properties();
+    /**
+     * The kinds of backup that can be requested.
+     */
+    public enum Mode {
+        /**
+         * An incremental backup, unless a new chain is due.
+         */
+        AUTO,
+        FULL,
+        /**
+         * An incremental backup, unless there is no chain to build on or the schema changed.
+         */
+        INCREMENTAL
+    }
+
+    private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final String BACKUP_SUFFIX = ".sql.gz";
+    private static final String MANIFEST_SUFFIX = ".json";
+
+    private BackupBroker backupBroker;
+    private RestoreBroker restoreBroker;
+    private EmailServiceManager emailServiceManager;
+    private MaintenanceManager maintenanceManager;
+    private ApplicationEventPublisher eventPublisher;
+    private ObjectMapper objectMapper;
+
+    @Value("${backup.dir:external/backups}")
+    private String backupDir;
+    @Value("${backup.threads:4}")
+    private int threads;
+    @Value("${backup.dropboxUpload:true}")
+    private boolean dropboxUpload;
+    @Value("${backup.jobs.ttlMinutes:1440}")
+    private long ttlMinutes;
+    @Value("${backup.incremental.timestampColumn:update_date_time}")
+    private String timestampColumn;
+    @Value("${backup.incremental.appendOnlyTables:event_log}")
+    private String[] appendOnlyTables;
+    @Value("${backup.incremental.overlapSeconds:300}")
+    private long overlapSeconds;
+    @Value("${backup.incremental.overlapIds:10000}")
+    private long overlapIds;
+    @Value("${backup.incremental.maxChain:7}")
+    private int maxChain;
+    @Value("${backup.incremental.maxBaseAgeHours:168}")
+    private long maxBaseAgeHours;
+    @Value("${backup.retainChains:2}")
+    private int retainChains;
+    @Value("${backup.schedule.hours:0}")
+    private long scheduleHours;
+    @Value("${backup.restore.threads:4}")
+    private int restoreThreads;
+
+    private ScheduledExecutorService executor;
+    private final AtomicReference<BackupJob> activeJob = new AtomicReference<>();
+    private final ConcurrentHashMap<String, BackupJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicReference<RestoreJob> activeRestore = new AtomicReference<>();
+    private final ConcurrentHashMap<String, RestoreJob> restoreJobs = new ConcurrentHashMap<>();
+
+    @Autowired
+    public BackupManager(BackupBroker backupBroker, RestoreBroker restoreBroker,
+                         EmailServiceManager emailServiceManager, MaintenanceManager maintenanceManager,
+                         ApplicationEventPublisher eventPublisher, ObjectMapper objectMapper) {
+        this.backupBroker = backupBroker;
+        this.restoreBroker = restoreBroker;
+        this.emailServiceManager = emailServiceManager;
+        this.maintenanceManager = maintenanceManager;
+        this.eventPublisher = eventPublisher;
+        this.objectMapper = objectMapper;
+    }
 
     /**
-     * Setup database properties (connection string, username and password)
-     * @param sendMail indication if an email copy was requested.
-     * @param mailTo the destination email address.
+     * Used to start the backup executor, and schedule backups if enabled.
      */
-    private void settings(boolean sendMail, String mailTo) {
-        //required properties for exporting of db
-        properties.setProperty(MysqlExportService.JDBC_CONNECTION_STRING, "jdbc:mysql://ideapot.net:80/capstone");
-        properties.setProperty(MysqlExportService.DB_USERNAME, "root");
-        properties.setProperty(MysqlExportService.DB_PASSWORD, "example");
+    @PostConstruct
+    private void initialize() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        if(scheduleHours > 0)
+            executor.scheduleWithFixedDelay(() -> startJob(null, Mode.AUTO), scheduleHours, scheduleHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdownNow();
+    }
 
-        properties.setProperty(MysqlExportService.PRESERVE_GENERATED_ZIP, "true");
+    /**
+     * Start generating a database backup file in the background, unless a backup is already being generated.
+     * @param user the user requesting to backup the database.
+     * @param backupRequest request indicating if a link to the backup file will be sent via email.
+     * @return the job generating the backup.
+     */
+    public BackupJob generateBackupFile(User user, BackupRequest backupRequest) {
+        return generateBackupFile(user, backupRequest, Mode.AUTO);
+    }
 
-        //set the outputs temp dir
-        properties.setProperty(MysqlExportService.TEMP_DIR, new File("external").getPath());
+    /**
+     * Start generating a full or incremental database backup file in the background, unless a backup is already
+     * being generated.
+     * @param user the user requesting to backup the database.
+     * @param backupRequest request indicating if a link to the backup file will be sent via email.
+     * @param mode the kind of backup.
+     * @return the job generating the backup.
+     */
+    public BackupJob generateBackupFile(User user, BackupRequest backupRequest, Mode mode) {
+        boolean sendMail = Boolean.TRUE.equals(backupRequest.getSendMail());
+        return startJob(sendMail ? user.getEmail() : null, mode);
+    }
 
-        sendMail(sendMail, mailTo);
+    /**
+     * Retrieve a backup job based on its id.
+     * @param jobId the job id.
+     * @return the matching job, empty if not found or expired.
+     */
+    public Optional<BackupJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
     }
 
     /**
-     * Setup email properties to send a copy of the backup file.
-     * @param sendMail indication if an email copy was requested.
-     * @param mailTo the destination email address.
+     * Retrieve the manifests of the backups saved on the server.
+     * @return the manifests, newest first.
      */
-    private void sendMail(boolean sendMail, String mailTo) {
+    public List<BackupManifest> getManifests() {
+        List<BackupManifest> manifests = readManifests();
+        manifests.sort(Comparator.comparingLong(BackupManifest::getStartedAt).reversed());
+        return manifests;
+    }
 
-        if(!sendMail) {
-            properties.remove(MysqlExportService.EMAIL_HOST);
-            properties.remove(MysqlExportService.EMAIL_PORT);
-            properties.remove(MysqlExportService.EMAIL_USERNAME);
-            properties.remove(MysqlExportService.EMAIL_PASSWORD);
-            properties.remove(MysqlExportService.EMAIL_FROM);
-            properties.remove(MysqlExportService.EMAIL_TO);
-        }
-        else {
-            properties.setProperty(MysqlExportService.EMAIL_HOST, "smtp.gmail.com");
-            properties.setProperty(MysqlExportService.EMAIL_PORT, "587");
-            properties.setProperty(MysqlExportService.EMAIL_USERNAME, "asylum.project.2020@gmail.com");
-            properties.setProperty(MysqlExportService.EMAIL_PASSWORD, "tdmqvgqelglelhge");
-            properties.setProperty(MysqlExportService.EMAIL_FROM, "asylum.project.2020@gmail.com");
-            properties.setProperty(MysqlExportService.EMAIL_TO, mailTo);
+    /**
+     * Start restoring a database backup in the background, unless a restore is already running.
+     * @param source the id of a backup saved on the server, or the path to a backup file in the cloud based
+     *               storage service.
+     * @return the job restoring the backup.
+     * @throws IllegalStateException if the application is not in maintenance mode.
+     */
+    public RestoreJob restoreDB(String source) {
+        if(!maintenanceManager.isEnabled())
+            throw new IllegalStateException("Maintenance mode must be turned on before restoring a backup.");
+        RestoreJob job = new RestoreJob(UUID.randomUUID().toString(), source);
+        RestoreJob running = activeRestore.updateAndGet(existing -> existing != null && existing.isActive() ? existing : job);
+        if(running != job)
+            return running;
+
+        removeExpiredJobs();
+        restoreJobs.put(job.getJobId(), job);
+        executor.execute(() -> restore(job));
+        return job;
+    }
+
+    /**
+     * Check if a backup is being restored.
+     * @return true if a restore job is queued or running.
+     */
+    public boolean isRestoring() {
+        RestoreJob running = activeRestore.get();
+        return running != null && running.isActive();
+    }
+
+    /**
+     * Retrieve a restore job based on its id.
+     * @param jobId the job id.
+     * @return the matching job, empty if not found or expired.
+     */
+    public Optional<RestoreJob> getRestoreJob(String jobId) {
+        return Optional.ofNullable(restoreJobs.get(jobId));
+    }
+
+    private BackupJob startJob(String mailTo, Mode mode) {
+        BackupJob job = new BackupJob(UUID.randomUUID().toString());
+        BackupJob running = activeJob.updateAndGet(existing -> existing != null && existing.isActive() ? existing : job);
+        if(running != job)
+            return running;
+
+        removeExpiredJobs();
+        jobs.put(job.getJobId(), job);
+        executor.execute(() -> run(job, mailTo, mode));
+        return job;
+    }
+
+    /**
+     * Export the database into the backup file and save its manifest, then upload it and mail its link if
+     * requested.
+     * @param job the job to run.
+     * @param mailTo the address to mail the link to, or null.
+     * @param mode the kind of backup.
+     */
+    private void run(BackupJob job, String mailTo, Mode mode) {
+        job.started();
+        File dir = new File(backupDir);
+        String id = "backup_" + LocalDateTime.now().format(FILE_NAME_FORMAT);
+        File file = new File(dir, id + BACKUP_SUFFIX);
+        try {
+            if(!dir.isDirectory() && !dir.mkdirs())
+                throw new IllegalStateException("Cannot create the backup directory " + dir.getPath());
+
+            List<BackupManifest> chain = mode == Mode.FULL ? new ArrayList<>() : currentChain();
+            if(mode == Mode.AUTO && !chain.isEmpty() && newChainDue(chain))
+                chain.clear();
+            BackupManifest parent = chain.isEmpty() ? null : chain.get(chain.size() - 1);
+            BackupBroker.Since since = parent == null ? null : new BackupBroker.Since(
+                    new Timestamp(parent.getStartedAt() - TimeUnit.SECONDS.toMillis(overlapSeconds)),
+                    overlapLastIds(parent.getLastIds()), parent.getSchemaHash(), timestampColumn,
+                    Arrays.asList(appendOnlyTables));
+
+            BackupBroker.Result result;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+                result = backupBroker.export(out, threads, since, new BackupBroker.Progress() {
+                    @Override
+                    public void started(int tables) {
+                        job.setTables(tables);
+                    }
+
+                    @Override
+                    public void tableExported(String table, long rows) {
+                        job.tableExported(rows);
+                    }
+                });
+            }
+
+            BackupManifest manifest = new BackupManifest();
+            manifest.setId(id);
+            manifest.setFileName(file.getName());
+            manifest.setStartedAt(result.getStartedAt().getTime());
+            manifest.setLastIds(result.getLastIds());
+            manifest.setSchemaHash(result.getSchemaHash());
+            manifest.setSize(file.length());
+            manifest.setRows(job.getRowsExported());
+            manifest.setConsistent(result.isConsistent());
+            if(result.isFull()) {
+                manifest.setType(BackupManifest.Type.FULL);
+                manifest.setBaseId(id);
+            }
+            else {
+                manifest.setType(BackupManifest.Type.INCREMENTAL);
+                manifest.setBaseId(parent.getBaseId());
+                manifest.setParentId(parent.getId());
+                manifest.setChangedSince(since.getChangedSince().getTime());
+            }
+            writeManifest(manifest);
+            job.exported(file, result.isConsistent(), manifest.getType());
+            if(result.isFull())
+                removeOldChains();
+
+            String link = dropboxUpload ? DBoxManager.uploadFile(DBoxManager.FileType.BACKUP, file, file.getName()) : null;
+            if(link != null) {
+                manifest.setLink(link);
+                writeManifest(manifest);
+            }
+            if(mailTo != null) {
+                emailServiceManager.sendSimpleMessage(mailTo, "Database backup " + file.getName(),
+                        link != null ? "The database backup is available at " + link
+                                : "The database backup " + file.getName() + " was saved on the server.");
+            }
+            job.completed(link);
+        } catch (Exception e) {
+            e.printStackTrace();
+            if(file.exists() && job.getFile() == null && !file.delete())
+                file.deleteOnExit();
+            job.failed(e.getMessage());
         }
     }
 
     /**
-     * Generate a database backup file.
-     * @param user the user requesting to backup the database.
-     * @param backupRequest request indicating if a copy if the backup file sill be sent via email.
-     * @return backup generate response of null if operation was not successful.
+     * Run the backup files of the job against the database, oldest first.
+     * @param job the job to run.
      */
-    public BackupGenerateResponse generateBackupFile(User user, BackupRequest backupRequest) {
-        settings(backupRequest.getSendMail(), user.getEmail());
-        MysqlExportService mysqlExportService = new MysqlExportService(properties);
+    private void restore(RestoreJob job) {
+        boolean started = false;
         try {
-            mysqlExportService.export();
-            File file = mysqlExportService.getGeneratedZipFile();
-            String link = DBoxManager.uploadFile(DBoxManager.FileType.BACKUP, file, file.getName());
-            // Erase local backup file
-            mysqlExportService.clearTempFiles(false);
-            return new BackupGenerateResponse(backupRequest.getSendMail(), link);
-        } catch (IOException | SQLException | ClassNotFoundException e) {
+            List<File> files = restoreFiles(job.getSource());
+            long totalBytes = 0;
+            for(File file: files)
+                totalBytes += file.length();
+            job.started(files.size(), totalBytes);
+
+            RestoreBroker.Progress progress = new RestoreBroker.Progress() {
+                @Override
+                public void phase(RestoreBroker.Phase phase) {
+                    job.setPhase(phase);
+                }
+
+                @Override
+                public void tableStarted(String table) {
+                    job.tableStarted();
+                }
+
+                @Override
+                public void statementsExecuted(int statements) {
+                    job.statementsExecuted(statements);
+                }
+            };
+            for(File file: files) {
+                try (InputStream in = new CountingInputStream(new FileInputStream(file), job)) {
+                    started = true;
+                    restoreBroker.restore(in, restoreThreads, progress);
+                }
+                job.fileRestored();
+            }
+            job.completed();
+        } catch (Exception e) {
             e.printStackTrace();
-            return null;
+            job.failed(e.getMessage());
+        } finally {
+            // A failed restore may have replaced some of the tables already.
+            if(started)
+                eventPublisher.publishEvent(new DatabaseRestoredEvent(this));
+        }
+    }
+
+    /**
+     * Retrieve the files to run to restore a backup. A backup saved on the server is restored from its full
+     * backup through each incremental backup of its chain. A file from the cloud based storage service is
+     * downloaded into the backup directory and restored by itself.
+     * @param source the backup id or the cloud storage path.
+     * @return the files, oldest first.
+     * @throws IOException if a file is missing or could not be downloaded.
+     */
+    private List<File> restoreFiles(String source) throws IOException {
+        Map<String, BackupManifest> manifests = new HashMap<>();
+        for(BackupManifest manifest: readManifests())
+            manifests.put(manifest.getId(), manifest);
+
+        List<File> files = new ArrayList<>();
+        BackupManifest manifest = manifests.get(source);
+        if(manifest == null) {
+            File file = new File(backupDir, new File(source).getName());
+            if(DBoxManager.downloadFile(source) == null || !file.isFile())
+                throw new FileNotFoundException("Cannot retrieve the backup " + source);
+            files.add(file);
+            return files;
+        }
+        while(manifest != null) {
+            File file = new File(backupDir, manifest.getFileName());
+            if(!file.isFile())
+                throw new FileNotFoundException("The backup file " + manifest.getFileName() + " is missing");
+            files.add(file);
+            if(manifest.getParentId() == null)
+                break;
+            String parentId = manifest.getParentId();
+            manifest = manifests.get(parentId);
+            if(manifest == null)
+                throw new FileNotFoundException("The manifest of the backup " + parentId + " is missing");
         }
+        Collections.reverse(files);
+        return files;
     }
 
     /**
-     * Restore a database backup file from the cloud based storage service to the server.
-     * @param path the path to the database backup file to restore.
-     * @return true if operation was successful, otherwise false.
+     * Retrieve the latest chain of backups: the latest full backup followed by its incremental backups, as long
+     * as all of their files are still on the server.
+     * @return the chain, oldest first, or an empty list if there is none.
      */
-    public boolean restoreDB(String path) {
-        return DBoxManager.downloadFile(path) != null;
+    private List<BackupManifest> currentChain() {
+        List<BackupManifest> manifests = readManifests();
+        manifests.sort(Comparator.comparingLong(BackupManifest::getStartedAt));
+        List<BackupManifest> chain = new ArrayList<>();
+        for(BackupManifest manifest: manifests) {
+            if(manifest.getType() == BackupManifest.Type.FULL) {
+                chain.clear();
+                chain.add(manifest);
+            }
+            else if(!chain.isEmpty() && manifest.getParentId().equals(chain.get(chain.size() - 1).getId())) {
+                chain.add(manifest);
+            }
+        }
+        for(BackupManifest manifest: chain) {
+            if(!new File(backupDir, manifest.getFileName()).isFile())
+                return new ArrayList<>();
+        }
+        return chain;
+    }
+
+    /**
+     * Move the last ids of the previous backup back by the overlap window. Auto increment ids are taken when a
+     * row is inserted, not when it is committed, so a row with a lower id than the previous backup's last id may
+     * have been committed after that backup started. The rows in the window are exported again, which is harmless
+     * since they are written as REPLACE statements.
+     */
+    private Map<String, Long> overlapLastIds(Map<String, Long> lastIds) {
+        Map<String, Long> overlapped = new HashMap<>();
+        for(Map.Entry<String, Long> lastId: lastIds.entrySet()) {
+            overlapped.put(lastId.getKey(), Math.max(0, lastId.getValue() - overlapIds));
+        }
+        return overlapped;
+    }
+
+    private boolean newChainDue(List<BackupManifest> chain) {
+        long baseAge = System.currentTimeMillis() - chain.get(0).getStartedAt();
+        return chain.size() > maxChain || baseAge > TimeUnit.HOURS.toMillis(maxBaseAgeHours);
     }
 
+    /**
+     * Remove the backup files and manifests of all but the configured number of latest chains.
+     */
+    private void removeOldChains() {
+        List<BackupManifest> manifests = readManifests();
+        List<String> baseIds = new ArrayList<>();
+        manifests.stream()
+                .filter(manifest -> manifest.getType() == BackupManifest.Type.FULL)
+                .sorted(Comparator.comparingLong(BackupManifest::getStartedAt).reversed())
+                .limit(Math.max(1, retainChains))
+                .forEach(manifest -> baseIds.add(manifest.getId()));
+        for(BackupManifest manifest: manifests) {
+            if(baseIds.contains(manifest.getBaseId()))
+                continue;
+            File file = new File(backupDir, manifest.getFileName());
+            if(file.exists() && !file.delete())
+                continue;
+            File manifestFile = new File(backupDir, manifest.getId() + MANIFEST_SUFFIX);
+            if(!manifestFile.delete())
+                manifestFile.deleteOnExit();
+        }
+    }
+
+    private List<BackupManifest> readManifests() {
+        List<BackupManifest> manifests = new ArrayList<>();
+        File[] files = new File(backupDir).listFiles((dir, name) -> name.endsWith(MANIFEST_SUFFIX));
+        if(files == null)
+            return manifests;
+        for(File file: files) {
+            try {
+                manifests.add(objectMapper.readValue(file, BackupManifest.class));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return manifests;
+    }
+
+    /**
+     * Save a manifest through a temporary file, so a manifest is never read half written.
+     */
+    private void writeManifest(BackupManifest manifest) throws IOException {
+        File target = new File(backupDir, manifest.getId() + MANIFEST_SUFFIX);
+        File temp = new File(backupDir, manifest.getId() + MANIFEST_SUFFIX + ".tmp");
+        objectMapper.writeValue(temp, manifest);
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Forget finished jobs older than the configured time to live. Their backup files are kept.
+     */
+    private void removeExpiredJobs() {
+        long expiredBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ttlMinutes);
+        jobs.values().removeIf(job -> !job.isActive() && job.getFinishedAt() < expiredBefore);
+        restoreJobs.values().removeIf(job -> !job.isActive() && job.getFinishedAt() < expiredBefore);
+    }
+
+    /**
+     * Counts the bytes read from a backup file into its restore job.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final RestoreJob job;
+
+        CountingInputStream(InputStream in, RestoreJob job) {
+            super(in);
+            this.job = job;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1)
+                job.addBytesRead(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read > 0)
+                job.addBytesRead(read);
+            return read;
+        }
+    }
 }
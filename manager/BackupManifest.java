@@ -0,0 +1,156 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes a backup file saved on the server: whether it is a full or an incremental backup, which backups it
+ * builds on, and where the next incremental backup starts from. Saved as JSON next to the backup file.
+ */
+public class BackupManifest {
+
+    /**
+     * The kinds of backup.
+     */
+    public enum Type {
+        FULL, INCREMENTAL
+    }
+
+    private String id;
+    private Type type;
+    private String fileName;
+    private String baseId;
+    private String parentId;
+    private long startedAt;
+    private Long changedSince;
+    private Map<String, Long> lastIds = new HashMap<>();
+    private String schemaHash;
+    private long size;
+    private long rows;
+    private boolean consistent;
+    private String link;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Retrieve the id of the full backup the chain of this backup starts with.
+     * @return the full backup id, which is this backup's id for a full backup.
+     */
+    public String getBaseId() {
+        return baseId;
+    }
+
+    public void setBaseId(String baseId) {
+        this.baseId = baseId;
+    }
+
+    /**
+     * Retrieve the id of the backup this incremental backup is applied over.
+     * @return the previous backup id, or null for a full backup.
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(String parentId) {
+        this.parentId = parentId;
+    }
+
+    /**
+     * Retrieve when the backup started reading the database. Changes made from then on are in the next backup.
+     * @return the time in epoch milliseconds.
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    /**
+     * Retrieve the change timestamp from which rows were exported.
+     * @return the time in epoch milliseconds, or null for a full backup.
+     */
+    public Long getChangedSince() {
+        return changedSince;
+    }
+
+    public void setChangedSince(Long changedSince) {
+        this.changedSince = changedSince;
+    }
+
+    /**
+     * Retrieve the highest id of each append only table when the backup was taken.
+     * @return the last id per table name.
+     */
+    public Map<String, Long> getLastIds() {
+        return lastIds;
+    }
+
+    public void setLastIds(Map<String, Long> lastIds) {
+        this.lastIds = lastIds;
+    }
+
+    public String getSchemaHash() {
+        return schemaHash;
+    }
+
+    public void setSchemaHash(String schemaHash) {
+        this.schemaHash = schemaHash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    public boolean isConsistent() {
+        return consistent;
+    }
+
+    public void setConsistent(boolean consistent) {
+        this.consistent = consistent;
+    }
+
+    public String getLink() {
+        return link;
+    }
+
+    public void setLink(String link) {
+        this.link = link;
+    }
+}
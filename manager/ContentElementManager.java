@@ -10,6 +10,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -404,7 +405,8 @@ public class ContentElementManager {
         //-- not needed -- oldMapPoint.setStory(newMapPoint.getStory());
         oldMapPoint.setCoordinates(newMapPoint.getCoordinates());
         oldMapPoint.setZoomLevel(newMapPoint.getZoomLevel());
-        oldMapPoint.setUpdateDateTime(newMapPoint.getUpdateDateTime());
+        // Set by the server, since incremental backups find the changed map points by it.
+        oldMapPoint.setUpdateDateTime(new Timestamp(System.currentTimeMillis()));
 
         return contentElementBroker.editMapPoint(oldMapPoint);
     }
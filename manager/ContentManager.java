@@ -1,13 +1,24 @@
 package com.asylumproject.asylumproject.manager;
 
 import com.asylumproject.asylumproject.broker.ContentBroker;
+import com.asylumproject.asylumproject.broker.StoryTransition;
 import com.asylumproject.asylumproject.dataaccess.MapPointDB;
+import com.asylumproject.asylumproject.payload.StoryRating;
 import com.asylumproject.asylumproject.problemdomain.*;
+import com.asylumproject.asylumproject.reports.ReportElement;
+import com.asylumproject.asylumproject.reports.requests.utils.ReportStories;
+import com.asylumproject.asylumproject.reports.responses.TrafficPoint;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -21,12 +32,38 @@ public class ContentManager {
 
 	private MapPointDB mapPointDB;
 	private ContentBroker contentBroker;
+	private TrafficManager trafficManager;
+	private StoryViewManager storyViewManager;
+	private TrendingManager trendingManager;
+	private UniqueVisitorManager uniqueVisitorManager;
+	private RatingManager ratingManager;
+	private StoryScheduleManager storyScheduleManager;
+	private StoryVersionManager storyVersionManager;
+
+	/**
+	 * Trending story ids per window and limit, cached briefly so the sketches are not merged on every request.
+	 */
+	private final ExpiringCache<String, List<Integer>> trendingCache = new ExpiringCache<>(TimeUnit.SECONDS.toMillis(30), 64);
 
 	@Autowired
 	public ContentManager(MapPointDB mapPointDB,
-						  ContentBroker contentBroker) {
+						  ContentBroker contentBroker,
+						  TrafficManager trafficManager,
+						  StoryViewManager storyViewManager,
+						  TrendingManager trendingManager,
+						  UniqueVisitorManager uniqueVisitorManager,
+						  RatingManager ratingManager,
+						  StoryScheduleManager storyScheduleManager,
+						  StoryVersionManager storyVersionManager) {
 		this.mapPointDB = mapPointDB;
 		this.contentBroker = contentBroker;
+		this.trafficManager = trafficManager;
+		this.storyViewManager = storyViewManager;
+		this.trendingManager = trendingManager;
+		this.uniqueVisitorManager = uniqueVisitorManager;
+		this.ratingManager = ratingManager;
+		this.storyScheduleManager = storyScheduleManager;
+		this.storyVersionManager = storyVersionManager;
 	}
 
 
@@ -45,20 +82,48 @@ public class ContentManager {
 
 
 	/**
-	 * Displays a report of site traffic 
+	 * Retrieves a report of the site traffic on the content endpoints.
+	 *
+	 * @param hours how many hours back the report starts.
+	 * @return the request count and latencies per content endpoint, busiest endpoints first.
 	 */
-	public void viewTrafficReport() {
+	public List<TrafficPoint> viewTrafficReport(int hours) {
+		long now = System.currentTimeMillis();
+		return trafficManager.getTrafficPerEndpoint(now - TimeUnit.HOURS.toMillis(hours), now).stream()
+				.filter(point -> point.getEndpoint().contains(" /api/content"))
+				.collect(Collectors.toList());
 	}
 	
 	/**
-	 * Allows rating a story.
+	 * Allows rating a story. Each client can rate a story once within the rating window.
 	 * 
-	 * @param story the story to be rated. Cannot be null.
-	 * @return the rated Story object
+	 * @param storyId the id of the story to be rated.
+	 * @param rating the rating, from 1 to 5.
+	 * @param clientKey identifies the client rating the story, by a value the client cannot choose.
+	 * @return true if the rating was counted, false if the client already rated the story.
 	 */
-	public Content rateStory(Story story) {
+	public boolean rateStory(int storyId, int rating, String clientKey) {
+		return ratingManager.rate(storyId, rating, clientKey);
+	}
 
-		return null;
+	/**
+	 * Returns the average rating of a story.
+	 *
+	 * @param storyId the story id.
+	 * @return the average rating and the number of ratings.
+	 */
+	public StoryRating getStoryRating(int storyId) {
+		return ratingManager.getRating(storyId);
+	}
+
+	/**
+	 * Returns the average rating of several stories.
+	 *
+	 * @param storyIds the story ids.
+	 * @return the average rating and the number of ratings per story id.
+	 */
+	public Map<Integer, StoryRating> getStoryRatings(Collection<Integer> storyIds) {
+		return ratingManager.getRatings(storyIds);
 	}
 	
 	/**
@@ -89,6 +154,9 @@ public class ContentManager {
 	 */
 	public Story editStory(Story oldStory, Story newStory){
 
+		//keep the state before the first edit in the story's history
+		storyVersionManager.recordInitialVersion(oldStory);
+
 		//set full country name
 		String countryFull = getCountryOfOriginFull(newStory);
 
@@ -103,7 +171,8 @@ public class ContentManager {
 		oldStory.setContentRating(newStory.getContentRating());
 		oldStory.setCountryOfOrigin(newStory.getCountryOfOrigin());
 		oldStory.setLanguages(newStory.getLanguages());
-		oldStory.setUpdateDateTime(newStory.getUpdateDateTime());
+		//set by the server, since incremental backups find the changed stories by it
+		oldStory.setUpdateDateTime(new Timestamp(System.currentTimeMillis()));
 		oldStory.setAvailableDate(newStory.getAvailableDate());
 		oldStory.setEndDate(newStory.getEndDate());
 		oldStory.setLanguages(newStory.getLanguages());
@@ -113,7 +182,43 @@ public class ContentManager {
 		oldStory.setTitle(newStory.getTitle());
 		oldStory.setDeleted(newStory.isDeleted());
 
-		return contentBroker.editStory(oldStory);
+		Story saved = contentBroker.editStory(oldStory);
+		storyVersionManager.recordVersion(saved);
+		storyScheduleManager.storyChanged(saved);
+		return saved;
+	}
+
+	/**
+	 * roll a story back to the content of an earlier version. Only the content is restored: the story keeps its
+	 * current state and deleted flag, and is marked as updated now.
+	 *
+	 * @param current the story as it is now.
+	 * @param restored the earlier version of the story.
+	 *
+	 * @return it returns the saved Story object to the controller class.
+	 */
+	public Story restoreStoryVersion(Story current, Story restored){
+
+		//keep the state before the first edit in the story's history
+		storyVersionManager.recordInitialVersion(current);
+
+		current.setAsylumSeekerName(restored.getAsylumSeekerName());
+		current.setContentRating(restored.getContentRating());
+		current.setCountryOfOrigin(restored.getCountryOfOrigin());
+		current.setCountryFull(restored.getCountryFull());
+		current.setLanguages(restored.getLanguages());
+		current.setAvailableDate(restored.getAvailableDate());
+		current.setEndDate(restored.getEndDate());
+		current.setContentElements(restored.getContentElements());
+		current.setTags(restored.getTags());
+		current.setDescription(restored.getDescription());
+		current.setTitle(restored.getTitle());
+		current.setUpdateDateTime(new Timestamp(System.currentTimeMillis()));
+
+		Story saved = contentBroker.editStory(current);
+		storyVersionManager.recordVersion(saved);
+		storyScheduleManager.storyChanged(saved);
+		return saved;
 	}
 
 
@@ -125,17 +230,22 @@ public class ContentManager {
 	 * @return it returns A content object to the controller class.
 	 */
 	public Content createStory(Story story){
-		return contentBroker.createStory(story);
+		Content saved = contentBroker.createStory(story);
+		if (saved instanceof Story) {
+			storyVersionManager.recordVersion((Story) saved);
+			storyScheduleManager.storyChanged((Story) saved);
+		}
+		return saved;
 	}
 
 	/**
 	 * Submits content out of the drafting state, and makes it ready to be rated (if it's a Story).
 	 * 
 	 * @param content the content to be submitted. Cannot be null.
-	 * @return the submitted Content object
+	 * @return the submitted Content object, or null if it is not a draft story
 	 */
 	public Content submitContent(Content content) {
-		return null;
+		return contentBroker.changeStoryState(content, StoryTransition.SUBMIT);
 	}
 	
 	/**
@@ -148,21 +258,23 @@ public class ContentManager {
 	}
 	
 	/**
-	 * Publishes the currently open content.
-	 * @return the published Content object
+	 * Publishes target content.
+	 *
+	 * @param content the content to be published. Cannot be null.
+	 * @return the published Content object, or null if it is not a story that can be published
 	 */
-	public Content publish() {
-		return null;
+	public Content publish(Content content) {
+		return contentBroker.publishContent(content);
 	}
 	
 	/**
 	 * Archives target content
 	 * 
 	 * @param content the content to be archived. Cannot be null.
-	 * @return the archived Content object
+	 * @return the archived Content object, or null if it is not a story that can be archived
 	 */
 	public Content archiveContent(Content content) {
-		return null;
+		return contentBroker.archiveContent(content);
 	}
 	
 	/**
@@ -181,10 +293,10 @@ public class ContentManager {
 	 * Un-archives target content.
 	 * 
 	 * @param content the content to be un-archived. Cannot be null.
-	 * @return the unarchived Content
+	 * @return the unarchived Content, or null if it is not an archived story
 	 */
 	public Content unarchiveContent(Content content) {
-		return null;
+		return contentBroker.unArchiveContent(content);
 	}
 	
 	/**
@@ -218,6 +330,56 @@ public class ContentManager {
 	public Tag createTag(Tag tag){
 		return contentBroker.createTag(tag);
 	}
+	/**
+	 * Build stories' datasheet for exporting story information.
+	 * @param reportStories stories to include in the data sheet.
+	 * @param sheet data sheet where data is loaded to.
+	 * @param dateTimeFormatter date time format.
+	 */
+	public void buildStoriesDataSheet(ReportStories reportStories, Sheet sheet, DateTimeFormatter dateTimeFormatter) {
+		ReportSheetWriter writer = new ReportSheetWriter(sheet,
+				"ID", "Title", "Asylum Seeker Name", "Description", "Country", "State", "Creator",
+				"Available Date", "End Date", "Tags");
+		contentBroker.forEachStory(story -> writer.writeRow(
+				story.getContentID(),
+				story.getTitle(),
+				story.getAsylumSeekerName(),
+				story.getDescription(),
+				story.getCountryFull(),
+				story.getState() != null ? story.getState().name() : null,
+				story.getCreatorUser() != null ? story.getCreatorUser().getUsername() : null,
+				story.getAvailableDate() != null ? story.getAvailableDate().toString() : null,
+				story.getEndDate() != null ? story.getEndDate().toString() : null,
+				joinTags(story)));
+		writer.finish();
+	}
+
+	/**
+	 * Build a datasheet for exporting the information of one type of content (resources or FAQs).
+	 * @param dtype the content type to include in the data sheet.
+	 * @param sheet data sheet where data is loaded to.
+	 */
+	public void buildContentDataSheet(String dtype, Sheet sheet) {
+		ReportSheetWriter writer = new ReportSheetWriter(sheet, "ID", "Type", "Creator", "Tags");
+		contentBroker.forEachContent(dtype, content -> writer.writeRow(
+				content.getContentID(),
+				content.getDtype(),
+				content.getCreatorUser() != null ? content.getCreatorUser().getUsername() : null,
+				joinTags(content)));
+		writer.finish();
+	}
+
+	/**
+	 * Join the tags of a content into a single comma separated value.
+	 * @param content the content.
+	 * @return the content tags separated by commas.
+	 */
+	private static String joinTags(Content content) {
+		if (content.getTags() == null)
+			return "";
+		return content.getTags().stream().map(Tag::getTag).collect(Collectors.joining(", "));
+	}
+
 	/**
 	 * Returns a single Content object.
 	 * @param contentId the id of the Content object to return
@@ -227,6 +389,65 @@ public class ContentManager {
 		return contentBroker.getContent(contentId);
 	}
 
+	/**
+	 * Records a view of a story. Only views of published stories are counted.
+	 * @param content the viewed content.
+	 * @param clientKey identifies the visitor that viewed the story, it is anonymized before being counted.
+	 */
+	public void recordStoryView(Content content, String clientKey) {
+		if(content instanceof Story && ((Story) content).getState() == Story.State.PUBLISHED) {
+			storyViewManager.recordView(content.getContentID());
+			trendingManager.recordView(content.getContentID());
+			uniqueVisitorManager.recordVisit(content.getContentID(), clientKey);
+		}
+	}
+
+	/**
+	 * Returns the most viewed published stories of a window of time.
+	 * @param window the window of time.
+	 * @param limit maximum number of stories to return.
+	 * @return the trending stories, most viewed first.
+	 */
+	public List<Story> listTrendingStories(TrendingManager.Window window, int limit) {
+		// Ask for more stories than needed, since some of them may no longer be published.
+		List<Integer> trending = trendingCache.get(window.getLabel() + ":" + limit,
+				key -> new ArrayList<>(trendingManager.getTrending(window, limit * 2).keySet()));
+		Map<Integer, Story> published = contentBroker.getPublishedStories(trending);
+		List<Story> stories = new ArrayList<>();
+		for(Integer storyId: trending) {
+			Story story = published.get(storyId);
+			if(story != null && stories.size() < limit)
+				stories.add(story);
+		}
+		return stories;
+	}
+
+	/**
+	 * Returns the number of views of several stories.
+	 * @param storyIds the story ids.
+	 * @return the number of views per story id.
+	 */
+	public Map<Integer, Long> getStoryViews(Collection<Integer> storyIds) {
+		return storyViewManager.getViews(storyIds);
+	}
+
+	/**
+	 * Returns the most viewed stories along with their number of views.
+	 * @param limit maximum number of stories to return.
+	 * @return the story titles and number of views, most viewed first.
+	 */
+	public List<ReportElement> getMostViewedStories(int limit) {
+		Map<Integer, Long> mostViewed = storyViewManager.getMostViewed(limit);
+		Map<Integer, String> titles = contentBroker.getStoryTitles(mostViewed.keySet());
+		List<ReportElement> report = new ArrayList<>();
+		for(Map.Entry<Integer, Long> entry: mostViewed.entrySet()) {
+			String title = titles.get(entry.getKey());
+			if(title != null)
+				report.add(new ReportElement(title, entry.getValue()));
+		}
+		return report;
+	}
+
 	/**
 	 * Returns a list of active (not disabled) Story objects.
 	 * @return list of Story objects
@@ -4,42 +4,58 @@ import com.asylumproject.asylumproject.problemdomain.User;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
-import org.springframework.mail.SimpleMailMessage;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.util.HtmlUtils;
 
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
+import javax.annotation.PostConstruct;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
 @Component
 public class EmailServiceManager {
 
-    private JavaMailSender emailSender;
+    private static final String RESET_PASSWORD_TEMPLATE = "static/MailTemplates/reset_password.html";
+
+    private MailOutboxManager mailOutboxManager;
     private ResourceLoader resourceLoader;
 
+    /**
+     * The reset password mail template, parsed once.
+     */
+    private volatile MailTemplate resetPasswordTemplate;
+
     @Autowired
-    public EmailServiceManager(JavaMailSender emailSender, ResourceLoader resourceLoader) {
-        this.emailSender = emailSender;
+    public EmailServiceManager(MailOutboxManager mailOutboxManager, ResourceLoader resourceLoader) {
+        this.mailOutboxManager = mailOutboxManager;
         this.resourceLoader = resourceLoader;
     }
 
     /**
-     * Send a simple email message.
+     * Used to parse the mail templates.
+     */
+    @PostConstruct
+    private void initialize() {
+        try {
+            resetPasswordTemplate = loadTemplate(RESET_PASSWORD_TEMPLATE);
+        } catch (IOException e) {
+            // Loading is retried when the first mail is sent.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Send a simple email message. The message is queued and sent in the background.
      * @param to the destination email address.
      * @param subject the subject of the email address.
      * @param text the message's text.
-     * @return true if message was sent, otherwise false.
+     * @return true if message was queued, otherwise false.
      */
     public boolean sendSimpleMessage(String to, String subject, String text) {
         try {
-            SimpleMailMessage message = new SimpleMailMessage();
-            message.setTo(to);
-            message.setSubject(subject);
-            message.setText(text);
-            emailSender.send(message);
-            System.out.println(message);
+            mailOutboxManager.enqueue(to, subject, text, false);
             return true;
         } catch (Exception e) {
             System.out.println(e.getMessage());
@@ -49,43 +65,40 @@ public class EmailServiceManager {
     }
 
     /**
-     * Sent an email message wit information to reset a user's password.
+     * Sent an email message wit information to reset a user's password. The message is queued and sent in the
+     * background.
      * @param contextPath the context path of the message.
      * @param user the receiver of the message.
-     * @return true if message was sent, otherwise false.
+     * @return true if message was queued, otherwise false.
      */
     public boolean sendResetPasswordMail(String contextPath, User user) {
-//        MailType mailType = MailType.RESET_PASSWORD;
-        MimeMessage mimeMessage = emailSender.createMimeMessage();
-            StringBuilder content = new StringBuilder();
-
-            try {
-//                Resource resource = resourceLoader.getResource("classpath:" + mailType.getMailTemplate());
-                Resource resource = resourceLoader.getResource("classpath:" + "static/MailTemplates/reset_password.html");
+        try {
+            MailTemplate template = resetPasswordTemplate;
+            if(template == null) {
+                template = loadTemplate(RESET_PASSWORD_TEMPLATE);
+                resetPasswordTemplate = template;
+            }
 
-                BufferedReader br = new BufferedReader(new InputStreamReader(resource.getInputStream()));
-                String line = br.readLine();
-                while (line != null) {
-                    content.append(line);
-                    line = br.readLine();
-                }
+            Map<String, String> values = new HashMap<>();
+            values.put("name", HtmlUtils.htmlEscape(user.getFirstName() + " " + user.getLastName()));
+            values.put("reset_link", HtmlUtils.htmlEscape(contextPath + "/auth/changePassword?id=" + user.getID() +
+                    "&token=" + user.getResetToken()));
 
-                content = new StringBuilder(content.toString().replace("%name%", user.getFirstName() + " " + user.getLastName()));
-                content = new StringBuilder(content.toString().replace("%reset_link%",
-                        contextPath + "/auth/changePassword?id=" + user.getID() +
-                                "&token=" + user.getResetToken()));
+            mailOutboxManager.enqueue(user.getEmail(), "Reset Your Password", template.render(values), true);
+            return true;
 
-                mimeMessage.setContent(content.toString(), "text/html");
-//                mimeMessage.setSubject(mailType.getMailSubject());
-                mimeMessage.setSubject("Reset Your Password");
-                MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, false);
-                helper.setTo(user.getEmail());
-                emailSender.send(mimeMessage);
-                return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-            } catch (IOException | MessagingException e) {
-                e.printStackTrace();
-                return  false;
-            }
+    private MailTemplate loadTemplate(String path) throws IOException {
+        Resource resource = resourceLoader.getResource("classpath:" + path);
+        try (InputStream in = resource.getInputStream()) {
+            // Line breaks were dropped when the template was read line by line, keep doing so.
+            String template = StreamUtils.copyToString(in, StandardCharsets.UTF_8).replace("\r", "").replace("\n", "");
+            return MailTemplate.compile(template);
+        }
     }
 }
@@ -12,13 +12,13 @@ import com.asylumproject.asylumproject.reports.responses.StoryEvent;
 import com.asylumproject.asylumproject.reports.responses.StoryReport;
 import com.asylumproject.asylumproject.reports.responses.UserEvent;
 import com.asylumproject.asylumproject.security.JwtTokenProvider;
-import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -67,6 +67,27 @@ public class EventManager {
         actingUser.ifPresent(user -> eventBroker.logEvent(EventLog.getInstance(user, operation, item, uuid)));
     }
 
+    /**
+     * Log the same operation on several items at once, with one event per item sharing the same id.
+     * @param jwt the acting user JWT token.
+     * @param operation the type of operation.
+     * @param items the items affected by the event.
+     * @param uuid the id shared by the events.
+     */
+    public void logEvents(String jwt, Event.Operation operation, Collection<?> items, String uuid) {
+        if(items.isEmpty())
+            return;
+        String cleanJwt = jwt.substring(7);
+        int userId = tokenProvider.getUserIdFromJWT(cleanJwt);
+        Optional<User> actingUser = accountBroker.getUserById(userId);
+        actingUser.ifPresent(user -> {
+            List<EventLog> events = new ArrayList<>(items.size());
+            for(Object item: items)
+                events.add(EventLog.getInstance(user, operation, item, uuid));
+            eventBroker.logEvents(events);
+        });
+    }
+
     /**
      * Log an event with details about the acting user, the type of operation and the item affected by the event.
      * @param actingUser the acting user.
@@ -84,29 +105,16 @@ public class EventManager {
      * @param dateTimeFormatter date time format.
      */
     public void buildEventsDataSheet(ReportEvents reportEvents, Sheet sheet, DateTimeFormatter dateTimeFormatter) {
-        List<EventLog> events = eventBroker.getAllEvents();
-        Row headerRow = sheet.createRow(0);
-        int cellNum = 0;
-        headerRow.createCell(cellNum++).setCellValue("ID");
-        headerRow.createCell(cellNum++).setCellValue("Date Time");
-        headerRow.createCell(cellNum++).setCellValue("Acting Username");
-        headerRow.createCell(cellNum++).setCellValue("Action");
-        headerRow.createCell(cellNum++).setCellValue("Type of Element");
-        headerRow.createCell(cellNum++).setCellValue("Element ID");
-        int rowNum = 1;
-        for(EventLog e: events) {
-            Row row = sheet.createRow(rowNum++);
-            int index = 0;
-            row.createCell(index++).setCellValue(e.getEventId());
-            row.createCell(index++).setCellValue(dateTimeFormatter.format(e.getDateTime().toLocalDateTime()));
-            row.createCell(index++).setCellValue(e.getActingUser().getName());
-            row.createCell(index++).setCellValue(e.getOperation());
-            row.createCell(index++).setCellValue(e.getAffectedItem().getClass().getName());
-            row.createCell(index).setCellValue(e.getAffectedItem().getClass().getName());
-        }
-        for(int i = 0; i < cellNum; i++) {
-            sheet.autoSizeColumn(i);
-        }
+        ReportSheetWriter writer = new ReportSheetWriter(sheet,
+                "ID", "Date Time", "Acting Username", "Action", "Type of Element", "Element ID");
+        eventBroker.forEachEvent(e -> writer.writeRow(
+                e.getEventId(),
+                dateTimeFormatter.format(e.getDateTime().toLocalDateTime()),
+                e.getActingUser().getName(),
+                e.getOperation(),
+                e.getAffectedItem().getClass().getName(),
+                e.getAffectedItem().getClass().getName()));
+        writer.finish();
     }
 
     /**
@@ -0,0 +1,226 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A bounded in-memory cache whose entries expire after a fixed time to live.
+ * Entries are also queued in the order they were written, which with a fixed time to live is the order they
+ * expire in, so expired entries and entries over the size limit are removed from the head of the queue, at a
+ * constant cost per write rather than a scan of the cache.
+ * Concurrent loads of the same missing key are coalesced, so the loader runs once per key at a time. The loader
+ * runs outside of any lock, so a slow load only holds up the callers asking for the same key.
+ * Invalidating a key bumps the generation of its stripe, and a load only keeps its value cached if the generation
+ * did not change while it ran, so a value loaded before an invalidation is never served after it.
+ *
+ * @param <K> the type of keys.
+ * @param <V> the type of cached values.
+ */
+public class ExpiringCache<K, V> {
+
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<K, V>> writeOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLongArray generations = new AtomicLongArray(64);
+    private final long ttlMillis;
+    private final int maxSize;
+
+    /**
+     * A constructor for ExpiringCache class.
+     *
+     * @param ttlMillis how long an entry is kept, in milliseconds.
+     * @param maxSize maximum number of entries kept.
+     */
+    public ExpiringCache(long ttlMillis, int maxSize) {
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Retrieve a cached value, loading and caching it if missing or expired. Null values are not cached.
+     * @param key the key.
+     * @param loader loads the value for the key.
+     * @return the cached or loaded value.
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        return get(key, loader, value -> true);
+    }
+
+    /**
+     * Retrieve a cached value, loading it if missing or expired. The loaded value is only cached if it is not null
+     * and accepted by the provided condition; callers waiting on the same load receive it either way.
+     * @param key the key.
+     * @param loader loads the value for the key.
+     * @param cacheable tells whether a loaded value can be cached.
+     * @return the cached or loaded value.
+     */
+    public V get(K key, Function<? super K, ? extends V> loader, Predicate<? super V> cacheable) {
+        Optional<V> cached = getIfPresent(key);
+        if(cached.isPresent())
+            return cached.get();
+
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> running = loading.putIfAbsent(key, load);
+        if(running != null)
+            return await(running);
+        try {
+            long generation = generations.get(stripe(key));
+            // Another caller may have finished loading the key between the lookup and the claim.
+            cached = getIfPresent(key);
+            V value = cached.isPresent() ? cached.get() : loader.apply(key);
+            if(!cached.isPresent() && value != null && cacheable.test(value)) {
+                Entry<K, V> entry = store(key, value);
+                // The key was invalidated while loading: the value may be stale.
+                if(generations.get(stripe(key)) != generation)
+                    entries.remove(key, entry);
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Retrieve a cached value without loading it.
+     * @param key the key.
+     * @return the cached value, empty if missing or expired.
+     */
+    public Optional<V> getIfPresent(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if(entry == null || entry.expiresAt <= System.currentTimeMillis())
+            return Optional.empty();
+        return Optional.of(entry.value);
+    }
+
+    /**
+     * Cache a value.
+     * @param key the key.
+     * @param value the value to cache.
+     */
+    public void put(K key, V value) {
+        store(key, value);
+    }
+
+    /**
+     * Cache a value derived from the value of another key, unless that key was invalidated since a generation of
+     * it was read.
+     * @param key the key.
+     * @param value the value to cache.
+     * @param source the key the value was derived from.
+     * @param generation the generation of the source key, read before its value was loaded.
+     */
+    public void putIfNotInvalidated(K key, V value, K source, long generation) {
+        if(generations.get(stripe(source)) != generation)
+            return;
+        Entry<K, V> entry = store(key, value);
+        if(generations.get(stripe(source)) != generation)
+            entries.remove(key, entry);
+    }
+
+    /**
+     * Retrieve the invalidation generation of a key, which changes whenever the key is invalidated.
+     * @param key the key.
+     * @return the generation.
+     */
+    public long generation(K key) {
+        return generations.get(stripe(key));
+    }
+
+    /**
+     * Remove a cached value. A load of the key already running is not cached, and callers asking for the key
+     * from now on load it again rather than wait for that load.
+     * @param key the key.
+     */
+    public void invalidate(K key) {
+        generations.incrementAndGet(stripe(key));
+        loading.remove(key);
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all cached values. Loads already running are not cached.
+     */
+    public void invalidateAll() {
+        for(int i = 0; i < generations.length(); i++)
+            generations.incrementAndGet(i);
+        loading.clear();
+        entries.clear();
+    }
+
+    private Entry<K, V> store(K key, V value) {
+        Entry<K, V> entry = new Entry<>(key, value, System.currentTimeMillis() + ttlMillis);
+        entries.put(key, entry);
+        writeOrder.add(entry);
+        queued.incrementAndGet();
+        evict();
+        return entry;
+    }
+
+    private int stripe(K key) {
+        return key.hashCode() & (generations.length() - 1);
+    }
+
+    /**
+     * Remove the oldest writes while they are expired, replaced or removed, or the cache is too large.
+     * Replaced and removed writes are dropped from the queue as they reach its head, and the queue is kept to
+     * twice the size limit, so it does not grow when the same keys are written over and over.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Entry<K, V> oldest;
+        while((oldest = writeOrder.peek()) != null) {
+            if(entries.get(oldest.key) == oldest && oldest.expiresAt > now
+                    && entries.size() <= maxSize && queued.get() <= 2 * maxSize)
+                return;
+            // Another writer may have taken the head first, in which case the next oldest write goes instead.
+            Entry<K, V> polled = writeOrder.poll();
+            if(polled == null)
+                return;
+            queued.decrementAndGet();
+            entries.remove(polled.key, polled);
+        }
+    }
+
+    /**
+     * Wait for a load started by another caller.
+     */
+    private static <V> V await(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if(e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * A cached value, its key and its expiry time.
+     */
+    private static final class Entry<K, V> {
+
+        final K key;
+        final V value;
+        final long expiresAt;
+
+        Entry(K key, V value, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates the number of distinct values added to it in a fixed amount of memory, using the HyperLogLog
+ * algorithm with 2^12 registers (about 1.6% standard error in 4 KB). Sketches are merged by keeping the highest
+ * value of each register, so merging is exact and can be repeated safely.
+ * Registers are packed four to an int and raised with compare-and-set, so values can be added from many threads
+ * without locking. Once a sketch has seen some values, most additions do not raise any register and only read.
+ */
+public class HyperLogLog {
+
+    private static final int PRECISION = 12;
+
+    /**
+     * Number of registers, which is also the size in bytes of an encoded sketch.
+     */
+    public static final int REGISTERS = 1 << PRECISION;
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final AtomicIntegerArray registers;
+
+    /**
+     * A constructor for HyperLogLog class, creating an empty sketch.
+     */
+    public HyperLogLog() {
+        this.registers = new AtomicIntegerArray(REGISTERS / 4);
+    }
+
+    /**
+     * A constructor for HyperLogLog class, restoring an encoded sketch.
+     *
+     * @param encoded the registers of the sketch, as returned by {@link #toBytes()}.
+     */
+    public HyperLogLog(byte[] encoded) {
+        this();
+        merge(encoded);
+    }
+
+    /**
+     * Add a value to the sketch.
+     * @param hash a uniformly distributed 64 bit hash of the value.
+     * @return true if the sketch changed.
+     */
+    public boolean add(long hash) {
+        int register = (int) (hash >>> (64 - PRECISION));
+        // Position of the first 1 bit in the remaining bits, the guard bit keeps it within 64 - PRECISION + 1.
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        return raise(register, rank);
+    }
+
+    /**
+     * Add the values of another sketch to this one.
+     * @param other the sketch to merge.
+     */
+    public void merge(HyperLogLog other) {
+        merge(other.toBytes());
+    }
+
+    /**
+     * Add the values of an encoded sketch to this one.
+     * @param encoded the registers of the sketch to merge.
+     */
+    public void merge(byte[] encoded) {
+        if(encoded == null)
+            return;
+        for(int i = 0; i < REGISTERS && i < encoded.length; i++) {
+            if(encoded[i] > 0)
+                raise(i, encoded[i]);
+        }
+    }
+
+    /**
+     * Estimate the number of distinct values added.
+     * @return the estimated number of distinct values.
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for(int i = 0; i < REGISTERS; i++) {
+            int register = register(i);
+            sum += 1.0 / (1L << register);
+            if(register == 0)
+                zeros++;
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        // Small cardinalities are estimated more accurately by counting the empty registers.
+        if(estimate <= 2.5 * REGISTERS && zeros > 0)
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        return Math.round(estimate);
+    }
+
+    /**
+     * Encode the sketch for storage.
+     * @return a copy of the registers.
+     */
+    public byte[] toBytes() {
+        byte[] encoded = new byte[REGISTERS];
+        for(int i = 0; i < REGISTERS; i++) {
+            encoded[i] = (byte) register(i);
+        }
+        return encoded;
+    }
+
+    private int register(int register) {
+        return (registers.get(register >>> 2) >>> ((register & 3) << 3)) & 0xFF;
+    }
+
+    /**
+     * Set a register to a rank if the rank is higher than its value.
+     * @return true if the register was raised.
+     */
+    private boolean raise(int register, int rank) {
+        int index = register >>> 2;
+        int shift = (register & 3) << 3;
+        while(true) {
+            int packed = registers.get(index);
+            if(rank <= ((packed >>> shift) & 0xFF))
+                return false;
+            if(registers.compareAndSet(index, packed, (packed & ~(0xFF << shift)) | (rank << shift)))
+                return true;
+        }
+    }
+}
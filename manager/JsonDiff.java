@@ -0,0 +1,124 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Structural diffs between JSON documents, in the JSON merge patch format: an object patch lists the changed
+ * fields, with null for a removed field, and any other value replaces the original.
+ * Arrays are patched element by element when that is smaller than the new array, as an object with a single
+ * {@value #ARRAY_FIELD} field holding the new length and the patches of the changed elements by index.
+ * Fields set to null are removed rather than kept as null, which reads back the same once mapped to an object.
+ */
+public final class JsonDiff {
+
+    static final String ARRAY_FIELD = "@array";
+    private static final String LENGTH_FIELD = "length";
+
+    private JsonDiff() {
+    }
+
+    /**
+     * Compute the patch turning a document into another.
+     * @param from the original document.
+     * @param to the new document.
+     * @return the patch, or null if the documents are equal.
+     */
+    public static JsonNode diff(JsonNode from, JsonNode to) {
+        if(from != null && from.equals(to))
+            return null;
+        if(from != null && from.isObject() && to.isObject())
+            return diffObjects((ObjectNode) from, (ObjectNode) to);
+        if(from != null && from.isArray() && to.isArray()) {
+            JsonNode patch = diffArrays((ArrayNode) from, (ArrayNode) to);
+            return patch.toString().length() < to.toString().length() ? patch : to;
+        }
+        return to;
+    }
+
+    /**
+     * Apply a patch to a document.
+     * @param target the original document, which is not changed, or null.
+     * @param patch the patch.
+     * @return the new document.
+     */
+    public static JsonNode apply(JsonNode target, JsonNode patch) {
+        if(!patch.isObject())
+            return patch;
+        if(patch.size() == 1 && patch.has(ARRAY_FIELD))
+            return applyArray(target, patch.get(ARRAY_FIELD));
+
+        ObjectNode result = target != null && target.isObject() ? ((ObjectNode) target).deepCopy()
+                : JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+        while(fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if(field.getValue().isNull())
+                result.remove(field.getKey());
+            else
+                result.set(field.getKey(), apply(result.get(field.getKey()), field.getValue()));
+        }
+        return result;
+    }
+
+    private static JsonNode diffObjects(ObjectNode from, ObjectNode to) {
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = to.fields();
+        while(fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode original = from.get(field.getKey());
+            if(original == null || original.isNull()) {
+                if(!field.getValue().isNull())
+                    patch.set(field.getKey(), field.getValue());
+            }
+            else {
+                JsonNode change = diff(original, field.getValue());
+                if(change != null)
+                    patch.set(field.getKey(), change);
+            }
+        }
+        Iterator<String> names = from.fieldNames();
+        while(names.hasNext()) {
+            String name = names.next();
+            if(!to.has(name) && !from.get(name).isNull())
+                patch.set(name, NullNode.getInstance());
+        }
+        return patch;
+    }
+
+    private static JsonNode diffArrays(ArrayNode from, ArrayNode to) {
+        ObjectNode elements = JsonNodeFactory.instance.objectNode();
+        elements.put(LENGTH_FIELD, to.size());
+        for(int i = 0; i < to.size(); i++) {
+            // Elements past the array end are never removals, so a null element is kept as null.
+            JsonNode change = i < from.size() ? diff(from.get(i), to.get(i)) : to.get(i);
+            if(change != null)
+                elements.set(Integer.toString(i), change);
+        }
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+        patch.set(ARRAY_FIELD, elements);
+        return patch;
+    }
+
+    private static JsonNode applyArray(JsonNode target, JsonNode elements) {
+        ArrayNode result = JsonNodeFactory.instance.arrayNode();
+        int length = elements.get(LENGTH_FIELD).asInt();
+        for(int i = 0; i < length; i++) {
+            JsonNode original = target != null && target.isArray() && i < target.size() ? target.get(i) : null;
+            JsonNode change = elements.get(Integer.toString(i));
+            if(change == null)
+                result.add(original != null ? original.deepCopy() : NullNode.getInstance());
+            else if(change.isNull())
+                result.add(NullNode.getInstance());
+            else
+                result.add(apply(original, change));
+        }
+        return result;
+    }
+}
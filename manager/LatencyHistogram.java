@@ -0,0 +1,150 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets. Each power of two is split in four buckets, so
+ * recorded values are kept with at most 25% error while the whole range fits in a fixed number of counters.
+ * Values are in microseconds.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets each power of two is split in, as a number of bits.
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+
+    /**
+     * Number of buckets, enough for values up to 2^41 microseconds.
+     */
+    public static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Record a value.
+     * @param micros the value in microseconds.
+     */
+    public void record(long micros) {
+        counts.incrementAndGet(bucketOf(micros));
+    }
+
+    /**
+     * Retrieve a copy of the bucket counts.
+     * @return the bucket counts.
+     */
+    public long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Find the bucket a value falls in.
+     * @param micros the value in microseconds.
+     * @return the bucket index.
+     */
+    static int bucketOf(long micros) {
+        if(micros < SUB_BUCKETS)
+            return (int) Math.max(0, micros);
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        if(exponent == MAX_EXPONENT && micros >= (1L << (MAX_EXPONENT + 1)))
+            return BUCKETS - 1;
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Retrieve the highest value a bucket holds.
+     * @param bucket the bucket index.
+     * @return the highest value in microseconds.
+     */
+    static long upperBoundOf(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+
+    /**
+     * Calculate a percentile of the values counted in a set of buckets.
+     * @param counts the bucket counts.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the percentile value in microseconds, 0 if nothing was counted.
+     */
+    public static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for(long count: counts) {
+            total += count;
+        }
+        if(total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank)
+                return upperBoundOf(i);
+        }
+        return upperBoundOf(counts.length - 1);
+    }
+
+    /**
+     * Add the bucket counts of a histogram to another.
+     * @param target the counts to add to.
+     * @param source the counts to add.
+     */
+    public static void merge(long[] target, long[] source) {
+        for(int i = 0; i < BUCKETS && i < source.length; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    /**
+     * Encode bucket counts compactly for storage, keeping only the buckets that counted something.
+     * @param counts the bucket counts.
+     * @return the encoded counts.
+     */
+    public static byte[] encode(long[] counts) {
+        int used = 0;
+        for(long count: counts) {
+            if(count > 0)
+                used++;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(used * (Short.BYTES + Long.BYTES));
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] > 0) {
+                buffer.putShort((short) i);
+                buffer.putLong(counts[i]);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decode bucket counts encoded with {@link #encode(long[])}.
+     * @param encoded the encoded counts, may be null.
+     * @return the bucket counts.
+     */
+    public static long[] decode(byte[] encoded) {
+        long[] counts = new long[BUCKETS];
+        if(encoded == null)
+            return counts;
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        while(buffer.remaining() >= Short.BYTES + Long.BYTES) {
+            int bucket = buffer.getShort();
+            long count = buffer.getLong();
+            if(bucket >= 0 && bucket < BUCKETS)
+                counts[bucket] += count;
+        }
+        return counts;
+    }
+}
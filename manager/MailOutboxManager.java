@@ -0,0 +1,175 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.dataaccess.MailOutboxDB;
+import com.asylumproject.asylumproject.dataaccess.MailOutboxDB.Mail;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends mail through a persistent outbox, so requests only wait for a database insert and mails survive a
+ * restart. A single worker sends the due mails in batches over one SMTP connection per batch, and retries failed
+ * mails with exponential backoff until they are given up.
+ * The SMTP server is the one configured with the spring.mail properties, so a local SMTP stand-in can be used
+ * by pointing spring.mail.host and spring.mail.port at it.
+ */
+@Service
+public class MailOutboxManager {
+
+    private MailOutboxDB mailOutboxDB;
+    private JavaMailSender emailSender;
+
+    @Value("${mail.outbox.pollSeconds:5}")
+    private long pollSeconds;
+    @Value("${mail.outbox.batchSize:50}")
+    private int batchSize;
+    @Value("${mail.outbox.leaseSeconds:120}")
+    private long leaseSeconds;
+    @Value("${mail.outbox.maxAttempts:8}")
+    private int maxAttempts;
+    @Value("${mail.outbox.retryBaseSeconds:30}")
+    private long retryBaseSeconds;
+    @Value("${mail.outbox.retryMaxSeconds:3600}")
+    private long retryMaxSeconds;
+
+    private ScheduledExecutorService worker;
+    private final AtomicBoolean drainRequested = new AtomicBoolean();
+
+    @Autowired
+    public MailOutboxManager(MailOutboxDB mailOutboxDB, JavaMailSender emailSender) {
+        this.mailOutboxDB = mailOutboxDB;
+        this.emailSender = emailSender;
+    }
+
+    /**
+     * Used to start the worker, which also sends the mails left over from before a restart.
+     */
+    @PostConstruct
+    private void initialize() {
+        worker = Executors.newSingleThreadScheduledExecutor();
+        worker.scheduleWithFixedDelay(this::drain, 0, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        worker.shutdown();
+        try {
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add a mail to the outbox and wake the worker up to send it.
+     * @param to the destination email address.
+     * @param subject the subject.
+     * @param body the message text.
+     * @param html true if the text is HTML.
+     */
+    public void enqueue(String to, String subject, String body, boolean html) {
+        mailOutboxDB.enqueue(to, subject, body, html);
+        if(drainRequested.compareAndSet(false, true))
+            worker.execute(this::drain);
+    }
+
+    /**
+     * Retrieve the outbox metrics.
+     * @return the number of pending and failed mails.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pending", mailOutboxDB.count(MailOutboxDB.PENDING));
+        metrics.put("failed", mailOutboxDB.count(MailOutboxDB.FAILED));
+        return metrics;
+    }
+
+    /**
+     * Send the due mails, one batch at a time, until none are left.
+     */
+    private void drain() {
+        drainRequested.set(false);
+        try {
+            List<Mail> due;
+            do {
+                due = mailOutboxDB.findDue(System.currentTimeMillis(), batchSize);
+                sendBatch(due);
+            } while(due.size() == batchSize);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sendBatch(List<Mail> due) {
+        long leaseUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseSeconds);
+        Map<MimeMessage, Mail> messages = new IdentityHashMap<>();
+        for(Mail mail: due) {
+            if(!mailOutboxDB.claim(mail, leaseUntil))
+                continue;
+            try {
+                messages.put(toMimeMessage(mail), mail);
+            } catch (MessagingException e) {
+                // The mail itself is invalid, so retrying will not help.
+                mailOutboxDB.recordFailure(mail.getId(), leaseUntil, true, e.getMessage());
+            }
+        }
+        if(messages.isEmpty())
+            return;
+
+        Map<Object, Exception> failed = new IdentityHashMap<>();
+        try {
+            emailSender.send(messages.keySet().toArray(new MimeMessage[0]));
+        } catch (MailSendException e) {
+            failed.putAll(e.getFailedMessages());
+            if(failed.isEmpty()) {
+                for(MimeMessage message: messages.keySet())
+                    failed.put(message, e);
+            }
+        } catch (Exception e) {
+            for(MimeMessage message: messages.keySet())
+                failed.put(message, e);
+        }
+
+        List<Long> sent = new ArrayList<>(messages.size());
+        for(Map.Entry<MimeMessage, Mail> entry: messages.entrySet()) {
+            Exception error = failed.get(entry.getKey());
+            if(error == null) {
+                sent.add(entry.getValue().getId());
+            }
+            else {
+                Mail mail = entry.getValue();
+                int attempts = mail.getAttempts() + 1;
+                long backoffSeconds = Math.min(retryMaxSeconds, retryBaseSeconds << Math.min(attempts - 1, 20));
+                mailOutboxDB.recordFailure(mail.getId(), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(backoffSeconds),
+                        attempts >= maxAttempts, error.getMessage());
+            }
+        }
+        mailOutboxDB.delete(sent);
+    }
+
+    private MimeMessage toMimeMessage(Mail mail) throws MessagingException {
+        MimeMessage message = emailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(message, false, "UTF-8");
+        helper.setTo(mail.getRecipient());
+        helper.setSubject(mail.getSubject());
+        helper.setText(mail.getBody(), mail.isHtml());
+        return message;
+    }
+}
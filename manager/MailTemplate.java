@@ -0,0 +1,84 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mail template parsed once into its literal text and its %placeholder% names, so that rendering a mail is a
+ * single pass that appends the parts in order.
+ */
+public final class MailTemplate {
+
+    private final String[] literals;
+    private final String[] placeholders;
+    private final int literalLength;
+
+    private MailTemplate(String[] literals, String[] placeholders) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+        int length = 0;
+        for(String literal: literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Parse a template. Placeholders are names made of letters, digits and underscores between percent signs,
+     * e.g. %reset_link%; any other percent sign is kept as text.
+     * @param template the template text.
+     * @return the parsed template.
+     */
+    public static MailTemplate compile(String template) {
+        List<String> literals = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        int literalStart = 0;
+        int i = 0;
+        while(i < template.length()) {
+            int end = template.charAt(i) == '%' ? placeholderEnd(template, i) : -1;
+            if(end > 0) {
+                literals.add(template.substring(literalStart, i));
+                placeholders.add(template.substring(i + 1, end));
+                i = end + 1;
+                literalStart = i;
+            }
+            else {
+                i++;
+            }
+        }
+        literals.add(template.substring(literalStart));
+        return new MailTemplate(literals.toArray(new String[0]), placeholders.toArray(new String[0]));
+    }
+
+    /**
+     * Render the template.
+     * @param values the value of each placeholder. Placeholders without a value are rendered empty.
+     * @return the rendered text.
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder text = new StringBuilder(literalLength + placeholders.length * 32);
+        for(int i = 0; i < placeholders.length; i++) {
+            text.append(literals[i]);
+            String value = values.get(placeholders[i]);
+            if(value != null)
+                text.append(value);
+        }
+        return text.append(literals[placeholders.length]).toString();
+    }
+
+    /**
+     * Find the closing percent sign of a placeholder starting at start.
+     * @return its index, or -1 if the text at start is not a placeholder.
+     */
+    private static int placeholderEnd(String template, int start) {
+        for(int i = start + 1; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if(c == '%')
+                return i > start + 1 ? i : -1;
+            if(!Character.isLetterOrDigit(c) && c != '_')
+                return -1;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,32 @@
+package com.asylumproject.asylumproject.manager;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * Tracks whether the application is in maintenance mode. While in maintenance mode, calls that change data are
+ * turned away (see the maintenance filter), the story scheduler stops publishing and unpublishing stories, and a
+ * backup can be restored into the database.
+ * The mode is kept in memory and only applies to this node, so on a cluster it must be turned on on every node
+ * before restoring a backup.
+ */
+@Service
+public class MaintenanceManager {
+
+    private volatile boolean enabled;
+
+    /**
+     * Check if the application is in maintenance mode.
+     * @return true if in maintenance mode.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn maintenance mode on or off.
+     * @param enabled true to turn maintenance mode on.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+}
@@ -0,0 +1,217 @@
+package com.asylumproject.asylumproject.manager;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password hashing and verification on a dedicated, bounded pool of threads, so that a burst of sign ins
+ * cannot take every request thread. When the pool and its queue are full, new work is rejected right away
+ * instead of waiting. The time spent hashing and waiting in the queue is recorded.
+ */
+@Service
+public class PasswordHashingManager {
+
+    private PasswordEncoder passwordEncoder;
+
+    @Value("${security.hashing.threads:0}")
+    private int threads;
+    @Value("${security.hashing.queueSize:32}")
+    private int queueSize;
+    @Value("${security.hashing.timeoutMillis:5000}")
+    private long timeoutMillis;
+
+    private ThreadPoolExecutor executor;
+    private final LatencyHistogram hashTimes = new LatencyHistogram();
+    private final LatencyHistogram queueWaits = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    @Autowired
+    public PasswordHashingManager(PasswordEncoder passwordEncoder) {
+        this.passwordEncoder = passwordEncoder;
+    }
+
+    /**
+     * Used to start the hashing pool, with one thread per processor unless configured otherwise.
+     */
+    @PostConstruct
+    private void initialize() {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Hash a password.
+     * @param rawPassword the password.
+     * @return the hashed password.
+     * @throws RejectedExecutionException if too many passwords are already being hashed.
+     */
+    public String encode(CharSequence rawPassword) {
+        return execute(() -> passwordEncoder.encode(rawPassword));
+    }
+
+    /**
+     * Check a password against a hashed password.
+     * @param rawPassword the password.
+     * @param encodedPassword the hashed password.
+     * @return true if they match.
+     * @throws RejectedExecutionException if too many passwords are already being hashed.
+     */
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return execute(() -> passwordEncoder.matches(rawPassword, encodedPassword));
+    }
+
+    /**
+     * Run work that hashes or verifies passwords, such as authenticating a user, on the hashing pool and wait for
+     * its result. Runtime exceptions thrown by the work are thrown again to the caller.
+     * @param work the work to run.
+     * @param <T> the type of the result.
+     * @return the result of the work.
+     * @throws RejectedExecutionException if the pool is overloaded or the work did not finish in time.
+     */
+    public <T> T execute(Callable<T> work) {
+        Future<T> future;
+        try {
+            future = executor.submit(timed(work));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.increment();
+            throw new RejectedExecutionException("Password hashing timed out", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new RejectedExecutionException("Interrupted while waiting for password hashing", e);
+        }
+    }
+
+    /**
+     * Hash many passwords, such as those of imported users. At most half of the pool is used at once, and work is
+     * only queued when the pool has room, so that sign ins are not turned away while the passwords are hashed.
+     * @param rawPasswords the passwords.
+     * @return the hashed passwords, in the same order.
+     * @throws RejectedExecutionException if the pool stayed full for longer than the timeout.
+     */
+    public List<String> encodeAll(List<? extends CharSequence> rawPasswords) {
+        Semaphore window = new Semaphore(Math.max(1, executor.getMaximumPoolSize() / 2));
+        List<Future<String>> futures = new ArrayList<>(rawPasswords.size());
+        try {
+            for(CharSequence rawPassword: rawPasswords) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                long backoffMillis = 1;
+                while(true) {
+                    if(!window.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+                        throw new RejectedExecutionException("Password hashing timed out");
+                    Callable<String> work = timed(() -> passwordEncoder.encode(rawPassword));
+                    try {
+                        futures.add(executor.submit(() -> {
+                            try {
+                                return work.call();
+                            } finally {
+                                window.release();
+                            }
+                        }));
+                        break;
+                    } catch (RejectedExecutionException e) {
+                        window.release();
+                        if(System.nanoTime() >= deadline) {
+                            rejected.increment();
+                            throw e;
+                        }
+                        Thread.sleep(backoffMillis);
+                        backoffMillis = Math.min(backoffMillis * 2, 100);
+                    }
+                }
+            }
+
+            List<String> hashes = new ArrayList<>(futures.size());
+            for(Future<String> future: futures) {
+                hashes.add(future.get(timeoutMillis, TimeUnit.MILLISECONDS));
+            }
+            return hashes;
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw new RejectedExecutionException("Password hashing timed out", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(f -> f.cancel(true));
+            throw new RejectedExecutionException("Interrupted while waiting for password hashing", e);
+        } catch (RejectedExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap work so that its queue wait and run time are recorded.
+     */
+    private <T> Callable<T> timed(Callable<T> work) {
+        long submittedAt = System.nanoTime();
+        return () -> {
+            long startedAt = System.nanoTime();
+            queueWaits.record(TimeUnit.NANOSECONDS.toMicros(startedAt - submittedAt));
+            try {
+                return work.call();
+            } finally {
+                hashTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt));
+                completed.increment();
+            }
+        };
+    }
+
+    /**
+     * Retrieve the hashing pool metrics.
+     * @return the number of completed and rejected tasks, the current queue depth, and percentiles of the hashing
+     * time and queue wait in milliseconds.
+     */
+    public Map<String, Object> getMetrics() {
+        long[] hashTimeCounts = hashTimes.snapshot();
+        long[] queueWaitCounts = queueWaits.snapshot();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("threads", executor.getMaximumPoolSize());
+        metrics.put("activeThreads", executor.getActiveCount());
+        metrics.put("queueDepth", executor.getQueue().size());
+        metrics.put("queueCapacity", queueSize);
+        metrics.put("completed", completed.sum());
+        metrics.put("rejected", rejected.sum());
+        metrics.put("hashMillisP50", LatencyHistogram.percentile(hashTimeCounts, 50) / 1000.0);
+        metrics.put("hashMillisP95", LatencyHistogram.percentile(hashTimeCounts, 95) / 1000.0);
+        metrics.put("hashMillisP99", LatencyHistogram.percentile(hashTimeCounts, 99) / 1000.0);
+        metrics.put("queueWaitMillisP50", LatencyHistogram.percentile(queueWaitCounts, 50) / 1000.0);
+        metrics.put("queueWaitMillisP95", LatencyHistogram.percentile(queueWaitCounts, 95) / 1000.0);
+        metrics.put("queueWaitMillisP99", LatencyHistogram.percentile(queueWaitCounts, 99) / 1000.0);
+        return metrics;
+    }
+}
@@ -0,0 +1,148 @@
+package com.asylumproject.asylumproject.manager;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how often the most expensive endpoints can be called, per client and per user, so that a burst from one
+ * client is turned away before it uses the threads, password hashing and mail capacity shared by everyone.
+ * Each limit keeps its own buckets; idle buckets are removed periodically.
+ */
+@Service
+public class RateLimitManager {
+
+    /**
+     * The limits applied, with their default rate and burst. Each can be changed with the
+     * ratelimit.&lt;name&gt;.perMinute and ratelimit.&lt;name&gt;.burst properties.
+     */
+    public enum Limit {
+        SIGN_IN_CLIENT("signInClient", 20, 10),
+        SIGN_IN_ACCOUNT("signInAccount", 5, 10),
+        PASSWORD_RESET_CLIENT("passwordResetClient", 2, 5),
+        PASSWORD_RESET_ACCOUNT("passwordResetAccount", 0.1, 3),
+        UPLOAD_CLIENT("uploadClient", 60, 20),
+        UPLOAD_USER("uploadUser", 30, 10);
+
+        private final String name;
+        private final double perMinute;
+        private final int burst;
+
+        Limit(String name, double perMinute, int burst) {
+            this.name = name;
+            this.perMinute = perMinute;
+            this.burst = burst;
+        }
+    }
+
+    private Environment environment;
+
+    @Value("${ratelimit.enabled:true}")
+    private boolean enabled;
+    @Value("${ratelimit.maxKeys:100000}")
+    private int maxKeys;
+    @Value("${ratelimit.evictSeconds:60}")
+    private long evictSeconds;
+
+    private final Map<Limit, RateLimiter> limiters = new EnumMap<>(Limit.class);
+    private final Map<Limit, LongAdder> rejected = new EnumMap<>(Limit.class);
+    private ScheduledExecutorService evictor;
+
+    @Autowired
+    public RateLimitManager(Environment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Used to create the limiters and start removing idle buckets periodically.
+     */
+    @PostConstruct
+    private void initialize() {
+        for(Limit limit: Limit.values()) {
+            double perMinute = environment.getProperty("ratelimit." + limit.name + ".perMinute", Double.class, limit.perMinute);
+            int burst = environment.getProperty("ratelimit." + limit.name + ".burst", Integer.class, limit.burst);
+            limiters.put(limit, new RateLimiter(perMinute, burst, maxKeys));
+            rejected.put(limit, new LongAdder());
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor();
+        evictor.scheduleWithFixedDelay(this::evictIdle, evictSeconds, evictSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        evictor.shutdownNow();
+    }
+
+    /**
+     * Use a permit of a limit for a key.
+     * @param limit the limit.
+     * @param key the client or user the permit is used by.
+     * @return 0 if the call is allowed, otherwise the number of seconds to wait before retrying.
+     */
+    public long tryAcquire(Limit limit, String key) {
+        if(!enabled)
+            return 0;
+        long waitNanos = limiters.get(limit).tryAcquire(key);
+        if(waitNanos == 0)
+            return 0;
+        rejected.get(limit).increment();
+        return toRetryAfterSeconds(waitNanos);
+    }
+
+    /**
+     * Check whether a key has a permit left for a limit, without using it. Used for limits that only count
+     * failed calls.
+     * @param limit the limit.
+     * @param key the client or user.
+     * @return 0 if the call is allowed, otherwise the number of seconds to wait before retrying.
+     */
+    public long check(Limit limit, String key) {
+        if(!enabled)
+            return 0;
+        long waitNanos = limiters.get(limit).check(key);
+        if(waitNanos == 0)
+            return 0;
+        rejected.get(limit).increment();
+        return toRetryAfterSeconds(waitNanos);
+    }
+
+    /**
+     * Retrieve the limiter metrics.
+     * @return the number of tracked keys and rejected calls per limit.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        for(Limit limit: Limit.values()) {
+            Map<String, Object> limitMetrics = new LinkedHashMap<>();
+            limitMetrics.put("keys", limiters.get(limit).size());
+            limitMetrics.put("rejected", rejected.get(limit).sum());
+            metrics.put(limit.name, limitMetrics);
+        }
+        return metrics;
+    }
+
+    private void evictIdle() {
+        try {
+            for(RateLimiter limiter: limiters.values()) {
+                limiter.evictIdle();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long toRetryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+    }
+}
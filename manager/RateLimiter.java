@@ -0,0 +1,141 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free token bucket rate limiter with one bucket per key. Each bucket is a single theoretical arrival
+ * time (the time at which the bucket is full again), updated with compare and set, so keys never wait on each
+ * other. Buckets that are full again hold no information and are removed. When the number of keys reaches the
+ * limit, new keys share a fixed set of overflow buckets chosen by hash, so memory stays bounded under a flood of
+ * distinct keys.
+ */
+public class RateLimiter {
+
+    /**
+     * Number of overflow buckets. Many enough that a flood of new keys spread over all of them uses up each one
+     * far more slowly than a single key would, so the legitimate clients sharing them are rarely turned away.
+     */
+    private static final int OVERFLOW_STRIPES = 4096;
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLongArray overflow = new AtomicLongArray(OVERFLOW_STRIPES);
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime() - SWEEP_INTERVAL_NANOS);
+
+    /**
+     * A constructor for RateLimiter class.
+     *
+     * @param permitsPerMinute number of permits refilled per minute for each key.
+     * @param burst number of permits a key can use at once after being idle.
+     * @param maxKeys maximum number of keys with their own bucket.
+     */
+    public RateLimiter(double permitsPerMinute, int burst, int maxKeys) {
+        this.intervalNanos = Math.max(1, (long) (60_000_000_000L / permitsPerMinute));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.maxKeys = maxKeys;
+        for(int i = 0; i < OVERFLOW_STRIPES; i++)
+            overflow.set(i, Long.MIN_VALUE);
+    }
+
+    /**
+     * Check whether a key may use a permit, without using it.
+     * @param key the key.
+     * @return 0 if a permit is available, otherwise the nanoseconds until one is.
+     */
+    public long check(String key) {
+        AtomicLong bucket = buckets.get(key);
+        long arrival = bucket != null ? bucket.get() : overflowIfFull(key);
+        long now = System.nanoTime();
+        return waitTime(Math.max(arrival, now) + intervalNanos, now);
+    }
+
+    /**
+     * Use a permit of a key if one is available.
+     * @param key the key.
+     * @return 0 if a permit was used, otherwise the nanoseconds until one is available.
+     */
+    public long tryAcquire(String key) {
+        AtomicLong bucket = buckets.get(key);
+        if(bucket == null) {
+            if(buckets.size() >= maxKeys) {
+                long sweptAt = lastSweep.get();
+                if(System.nanoTime() - sweptAt >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(sweptAt, System.nanoTime()))
+                    evictIdle();
+                if(buckets.size() >= maxKeys)
+                    return tryAcquireOverflow(key);
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+        }
+
+        while(true) {
+            long now = System.nanoTime();
+            long current = bucket.get();
+            long next = Math.max(current, now) + intervalNanos;
+            long wait = waitTime(next, now);
+            if(wait > 0)
+                return wait;
+            if(bucket.compareAndSet(current, next))
+                return 0;
+        }
+    }
+
+    /**
+     * Remove the buckets that are full again, which behave exactly like missing ones. When the key limit is
+     * reached this runs at most once a second, so a flood of new keys does not sweep on every request.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        for(Map.Entry<String, AtomicLong> entry: buckets.entrySet()) {
+            long arrival = entry.getValue().get();
+            if(arrival <= now)
+                buckets.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Retrieve the number of keys with their own bucket.
+     * @return the number of keys.
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    private long tryAcquireOverflow(String key) {
+        int stripe = stripe(key);
+        while(true) {
+            long now = System.nanoTime();
+            long current = overflow.get(stripe);
+            long next = Math.max(current, now) + intervalNanos;
+            long wait = waitTime(next, now);
+            if(wait > 0)
+                return wait;
+            if(overflow.compareAndSet(stripe, current, next))
+                return 0;
+        }
+    }
+
+    private long overflowIfFull(String key) {
+        if(buckets.size() < maxKeys)
+            return Long.MIN_VALUE;
+        return overflow.get(stripe(key));
+    }
+
+    /**
+     * Time to wait before a bucket whose next arrival time would become next can grant a permit.
+     */
+    private long waitTime(long next, long now) {
+        return Math.max(0, next - now - burstNanos);
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % OVERFLOW_STRIPES;
+    }
+}
@@ -0,0 +1,207 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.broker.DatabaseRestoredEvent;
+import com.asylumproject.asylumproject.dataaccess.StoryRatingDB;
+import com.asylumproject.asylumproject.payload.StoryRating;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects story ratings. Ratings are added to striped in-memory counters and periodically added to the saved
+ * ratings in a single batch, so rating a story never writes to or locks the story. Each client can rate a story
+ * once within the configured window. After each batch only the saved ratings of the stories in it are read back;
+ * the ratings of the other stories, which other application nodes may have changed, are reloaded at a much
+ * longer interval.
+ */
+@Service
+public class RatingManager {
+
+    private StoryRatingDB storyRatingDB;
+
+    @Value("${stories.ratings.flushSeconds:10}")
+    private long flushSeconds;
+    @Value("${stories.ratings.dedupeHours:24}")
+    private long dedupeHours;
+    @Value("${stories.ratings.dedupeMaxClients:100000}")
+    private int dedupeMaxClients;
+    @Value("${stories.ratings.reloadMinutes:10}")
+    private long reloadMinutes;
+
+    private final ConcurrentHashMap<Integer, RatingCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, long[]> savedRatings = new ConcurrentHashMap<>();
+    private ExpiringCache<String, Boolean> recentRatings;
+    private ScheduledExecutorService flusher;
+
+    @Autowired
+    public RatingManager(StoryRatingDB storyRatingDB) {
+        this.storyRatingDB = storyRatingDB;
+    }
+
+    /**
+     * Used to load the saved ratings and start saving new ratings periodically.
+     */
+    @PostConstruct
+    private void initialize() {
+        recentRatings = new ExpiringCache<>(TimeUnit.HOURS.toMillis(dedupeHours), dedupeMaxClients);
+        savedRatings.putAll(storyRatingDB.findAll());
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        flusher.scheduleWithFixedDelay(this::reload, reloadMinutes, reloadMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Used to save the ratings not saved yet before shutting down.
+     */
+    @PreDestroy
+    private void shutdown() {
+        flusher.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Used to replace the saved ratings with the ones of a restored backup.
+     * @param event the restore event.
+     */
+    @EventListener
+    public synchronized void databaseRestored(DatabaseRestoredEvent event) {
+        try {
+            Map<Integer, long[]> restored = storyRatingDB.findAll();
+            savedRatings.keySet().retainAll(restored.keySet());
+            savedRatings.putAll(restored);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rate a story.
+     * @param storyId the id of the rated story.
+     * @param rating the rating.
+     * @param clientKey identifies the client rating the story. It must not be a value the client can choose, such
+     *                  as a header, or the client could rate the same story again by changing it.
+     * @return false if the client already rated the story within the window, in which case the rating is ignored.
+     */
+    public boolean rate(int storyId, int rating, String clientKey) {
+        String key = storyId + ":" + UUID.nameUUIDFromBytes(clientKey.getBytes(StandardCharsets.UTF_8));
+        boolean[] first = new boolean[1];
+        recentRatings.get(key, k -> {
+            first[0] = true;
+            return Boolean.TRUE;
+        });
+        if(!first[0])
+            return false;
+
+        RatingCounter counter = counters.get(storyId);
+        if(counter == null)
+            counter = counters.computeIfAbsent(storyId, k -> new RatingCounter());
+        counter.add(rating);
+        return true;
+    }
+
+    /**
+     * Retrieve the average rating of a story.
+     * @param storyId the story id.
+     * @return the average rating and number of ratings, including the ones not saved yet.
+     */
+    public StoryRating getRating(int storyId) {
+        long[] saved = savedRatings.get(storyId);
+        long sum = saved != null ? saved[0] : 0;
+        long count = saved != null ? saved[1] : 0;
+        RatingCounter counter = counters.get(storyId);
+        if(counter != null) {
+            sum += Math.max(0, counter.sum.sum() - counter.savedSum);
+            count += Math.max(0, counter.count.sum() - counter.savedCount);
+        }
+        return new StoryRating(storyId, count == 0 ? 0 : (double) sum / count, count);
+    }
+
+    /**
+     * Retrieve the average rating of several stories.
+     * @param storyIds the story ids.
+     * @return the average rating and number of ratings per story id.
+     */
+    public Map<Integer, StoryRating> getRatings(Collection<Integer> storyIds) {
+        Map<Integer, StoryRating> ratings = new LinkedHashMap<>();
+        for(Integer storyId: storyIds) {
+            ratings.put(storyId, getRating(storyId));
+        }
+        return ratings;
+    }
+
+    /**
+     * Add the ratings collected since the last flush to the saved ratings, then read back the saved ratings of the
+     * stories that had new ratings, so that ratings saved by other application nodes for them are included.
+     * The ratings are marked saved as soon as they are written, so a failed read back cannot save them twice.
+     */
+    private synchronized void flush() {
+        try {
+            Map<Integer, long[]> newRatings = new HashMap<>();
+            Map<RatingCounter, long[]> totals = new HashMap<>();
+            for(Map.Entry<Integer, RatingCounter> entry: counters.entrySet()) {
+                RatingCounter counter = entry.getValue();
+                // The count is read first, so the sum read after it covers at least those ratings.
+                long count = counter.count.sum();
+                long sum = counter.sum.sum();
+                if(count > counter.savedCount) {
+                    newRatings.put(entry.getKey(), new long[]{sum - counter.savedSum, count - counter.savedCount});
+                    totals.put(counter, new long[]{sum, count});
+                }
+            }
+            if(newRatings.isEmpty())
+                return;
+
+            storyRatingDB.addRatings(newRatings);
+            for(Map.Entry<Integer, long[]> ratings: newRatings.entrySet()) {
+                savedRatings.merge(ratings.getKey(), ratings.getValue(),
+                        (saved, added) -> new long[]{saved[0] + added[0], saved[1] + added[1]});
+            }
+            for(Map.Entry<RatingCounter, long[]> total: totals.entrySet()) {
+                total.getKey().savedSum = total.getValue()[0];
+                total.getKey().savedCount = total.getValue()[1];
+            }
+
+            savedRatings.putAll(storyRatingDB.findByIds(newRatings.keySet()));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reload the saved ratings of all stories, including the ratings saved by other application nodes.
+     */
+    private synchronized void reload() {
+        try {
+            savedRatings.putAll(storyRatingDB.findAll());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The ratings of a story collected by this application node, and how much of them was saved already.
+     */
+    private static final class RatingCounter {
+
+        final LongAdder sum = new LongAdder();
+        final LongAdder count = new LongAdder();
+        volatile long savedSum;
+        volatile long savedCount;
+
+        void add(int rating) {
+            sum.add(rating);
+            count.increment();
+        }
+    }
+}
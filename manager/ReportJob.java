@@ -0,0 +1,125 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.io.File;
+
+/**
+ * A report data file being generated in the background, along with its progress and result.
+ */
+public class ReportJob {
+
+    /**
+     * The states a report job goes through.
+     */
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String jobId;
+    private final String requestHash;
+    private final long createdAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile int progress;
+    private volatile File file;
+    private volatile String link;
+    private volatile String error;
+    private volatile long finishedAt;
+
+    /**
+     * A constructor for ReportJob class.
+     *
+     * @param jobId the job id.
+     * @param requestHash the hash of the report request this job was created for.
+     */
+    public ReportJob(String jobId, String requestHash) {
+        this.jobId = jobId;
+        this.requestHash = requestHash;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    @JsonIgnore
+    public String getRequestHash() {
+        return requestHash;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Retrieve the progress of the job.
+     * @return percentage of the report sections completed.
+     */
+    public int getProgress() {
+        return progress;
+    }
+
+    /**
+     * Retrieve the name of the generated file, available once the job is done.
+     * @return the file name or null if the job is not done.
+     */
+    public String getFileName() {
+        return file != null ? file.getName() : null;
+    }
+
+    @JsonIgnore
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Retrieve the link to the copy uploaded to the cloud based storage service, if uploads are enabled.
+     * @return the external link or null.
+     */
+    public String getLink() {
+        return link;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * Check whether the job is still queued or running.
+     * @return true if the job has not finished yet.
+     */
+    @JsonIgnore
+    public boolean isActive() {
+        return status == Status.QUEUED || status == Status.RUNNING;
+    }
+
+    void started() {
+        this.status = Status.RUNNING;
+    }
+
+    void setProgress(int progress) {
+        this.progress = progress;
+    }
+
+    void completed(File file, String link) {
+        this.file = file;
+        this.link = link;
+        this.progress = 100;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = Status.DONE;
+    }
+
+    void failed(String error) {
+        this.error = error;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = Status.FAILED;
+    }
+}
@@ -0,0 +1,159 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.reports.dropbox.DBoxManager;
+import com.asylumproject.asylumproject.reports.requests.ReportDataRequest;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Runs report data generation in the background. Jobs run on a bounded executor, identical requests that are
+ * in progress at the same time share a single job, and generated files are deleted once they expire.
+ */
+@Service
+public class ReportJobManager {
+
+    private ReportManager reportManager;
+    private ObjectMapper objectMapper;
+
+    @Value("${reports.jobs.threads:2}")
+    private int threads;
+    @Value("${reports.jobs.queueSize:8}")
+    private int queueSize;
+    @Value("${reports.jobs.ttlMinutes:30}")
+    private long ttlMinutes;
+    @Value("${reports.jobs.dropboxUpload:false}")
+    private boolean dropboxUpload;
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService cleaner;
+    private final ConcurrentHashMap<String, ReportJob> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReportJob> activeJobs = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ReportJobManager(ReportManager reportManager, ObjectMapper objectMapper) {
+        this.reportManager = reportManager;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Used to start the job executor and the expired files clean up.
+     */
+    @PostConstruct
+    private void initialize() {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+        cleaner = Executors.newSingleThreadScheduledExecutor();
+        cleaner.scheduleWithFixedDelay(this::removeExpiredJobs, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdownNow();
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * Submit a report request to be generated in the background. If an identical request is already queued or
+     * running, its job is returned instead of starting a new one.
+     * @param request the report request containing the report filters.
+     * @return the job generating the report.
+     * @throws RejectedExecutionException if too many reports are already waiting to be generated.
+     */
+    public ReportJob submit(ReportDataRequest request) {
+        String requestHash = hash(request);
+        ReportJob[] created = new ReportJob[1];
+        ReportJob job = activeJobs.compute(requestHash, (key, existing) -> {
+            if(existing != null && existing.isActive())
+                return existing;
+            created[0] = new ReportJob(UUID.randomUUID().toString(), key);
+            return created[0];
+        });
+
+        if(created[0] != null) {
+            jobs.put(job.getJobId(), job);
+            try {
+                executor.execute(() -> run(job, request));
+            } catch (RejectedExecutionException e) {
+                jobs.remove(job.getJobId());
+                activeJobs.remove(requestHash, job);
+                throw e;
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Retrieve a report job based on its id.
+     * @param jobId the job id.
+     * @return the matching job, empty if not found or expired.
+     */
+    public Optional<ReportJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    /**
+     * Generate the report file for a job and optionally upload it to the cloud based storage service.
+     * @param job the job to run.
+     * @param request the report request containing the report filters.
+     */
+    private void run(ReportJob job, ReportDataRequest request) {
+        job.started();
+        try {
+            File file = reportManager.writeReportFile(request, job::setProgress);
+            String link = dropboxUpload ? DBoxManager.uploadFile(DBoxManager.FileType.REPORT, file, file.getName()) : null;
+            job.completed(file, link);
+        } catch (Exception e) {
+            e.printStackTrace();
+            job.failed(e.getMessage());
+        } finally {
+            activeJobs.remove(job.getRequestHash(), job);
+        }
+    }
+
+    /**
+     * Remove finished jobs older than the configured time to live and delete their files.
+     */
+    private void removeExpiredJobs() {
+        long expiredBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ttlMinutes);
+        jobs.values().removeIf(job -> {
+            if(job.isActive() || job.getFinishedAt() > expiredBefore)
+                return false;
+            if(job.getFile() != null && !job.getFile().delete())
+                job.getFile().deleteOnExit();
+            return true;
+        });
+    }
+
+    /**
+     * Hash a report request so that identical requests can be detected.
+     * @param request the report request.
+     * @return hex encoded SHA-256 of the request contents.
+     */
+    private String hash(ReportDataRequest request) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(objectMapper.writeValueAsString(request).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for(byte b: digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            // Requests that cannot be hashed are never coalesced.
+            return UUID.randomUUID().toString();
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.asylumproject.asylumproject.manager;
 import com.asylumproject.asylumproject.broker.AccountBroker;
 import com.asylumproject.asylumproject.broker.ContentBroker;
 import com.asylumproject.asylumproject.broker.ContentElementBroker;
+import com.asylumproject.asylumproject.payload.KeysetPage;
+import com.asylumproject.asylumproject.payload.KeysetPageRequest;
 import com.asylumproject.asylumproject.problemdomain.User;
 import com.asylumproject.asylumproject.reports.ExistingUsers;
 import com.asylumproject.asylumproject.reports.ReportElement;
@@ -11,17 +13,27 @@ import com.asylumproject.asylumproject.reports.requests.ListUsernames;
 import com.asylumproject.asylumproject.reports.requests.ReportDataRequest;
 import com.asylumproject.asylumproject.reports.responses.*;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
  * Manages creation of Content user traffic, viewing traffic reports, and sharing traffic reports.
@@ -29,22 +41,129 @@ import java.util.List;
 @Service
 public class ReportManager{
 
+    /**
+     * Number of rows per sheet kept in memory while a report data file is being written.
+     */
+    private static final int ROW_ACCESS_WINDOW = 100;
+
     private UserManager userManager;
     private AccountBroker accountBroker;
     private EventManager eventManager;
     private ContentBroker contentBroker;
     private ContentElementBroker contentElementBroker;
+    private ContentManager contentManager;
+    private TrafficManager trafficManager;
+    private UniqueVisitorManager uniqueVisitorManager;
+
+    @Value("${reports.tempFilesPath:src/main/resources/static/tempFiles/}")
+    private String tempFilesPath;
+    @Value("${reports.sectionThreads:4}")
+    private int sectionThreads;
+    @Value("${reports.dashboard.threads:4}")
+    private int dashboardThreads;
+    @Value("${reports.dashboard.tileTimeoutMillis:2000}")
+    private long tileTimeoutMillis;
+    @Value("${reports.dashboard.cacheSeconds:15}")
+    private long dashboardCacheSeconds;
+    @Value("${reports.usersCacheSeconds:60}")
+    private long usersCacheSeconds;
+
+    private ExecutorService sectionExecutor;
+    private ThreadPoolExecutor dashboardExecutor;
+    private ExpiringCache<String, DashboardReport> dashboardCache;
+    private ExpiringCache<String, ExistingUsers> usersCache;
 
 
     @Autowired
     public ReportManager(UserManager userManager, ContentElementBroker contentElementBroker,
                          EventManager eventManager, ContentBroker contentBroker,
-                         AccountBroker accountBroker){
+                         AccountBroker accountBroker, ContentManager contentManager,
+                         TrafficManager trafficManager, UniqueVisitorManager uniqueVisitorManager){
         this.userManager = userManager;
         this.eventManager = eventManager;
         this.contentBroker = contentBroker;
         this.accountBroker = accountBroker;
         this.contentElementBroker = contentElementBroker;
+        this.contentManager = contentManager;
+        this.trafficManager = trafficManager;
+        this.uniqueVisitorManager = uniqueVisitorManager;
+    }
+
+    /**
+     * Used to start the executor that builds report sections concurrently.
+     */
+    @PostConstruct
+    private void initialize() {
+        sectionExecutor = Executors.newFixedThreadPool(sectionThreads);
+        dashboardExecutor = new ThreadPoolExecutor(dashboardThreads, dashboardThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(64), new ThreadPoolExecutor.AbortPolicy());
+        dashboardCache = new ExpiringCache<>(TimeUnit.SECONDS.toMillis(dashboardCacheSeconds), 1);
+        usersCache = new ExpiringCache<>(TimeUnit.SECONDS.toMillis(usersCacheSeconds), 1);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        sectionExecutor.shutdownNow();
+        dashboardExecutor.shutdownNow();
+    }
+
+    /**
+     * Retrieves all the admin dashboard tiles at once. Tiles are loaded concurrently, each within a time limit;
+     * tiles that fail or time out are reported as failed instead of failing the whole dashboard.
+     * A complete result is cached for a short time; one with failed tiles is not cached, so the next request
+     * tries the failed tiles again.
+     * @return the dashboard tiles.
+     */
+    public DashboardReport getDashboard() {
+        return dashboardCache.get("dashboard", key -> loadDashboard(), report -> report.getFailedTiles().isEmpty());
+    }
+
+    /**
+     * Load all the dashboard tiles concurrently.
+     * @return the dashboard tiles.
+     */
+    private DashboardReport loadDashboard() {
+        Map<String, Callable<Object>> tiles = new LinkedHashMap<>();
+        tiles.put("users", this::getReportTotalUsers);
+        tiles.put("content_elements", this::getReportNumElements);
+        tiles.put("contents", this::getReportNumContents);
+        tiles.put("storage", this::getStorageReport);
+        tiles.put("user_language", this::getReportUsersPerLanguage);
+        tiles.put("curator_stories", this::getStoriesPerCurator);
+        tiles.put("story_status", this::getStoriesPerStatus);
+        tiles.put("story_country", this::getStoriesPerCountry);
+        tiles.put("story_language", this::getStoriesPerLanguage);
+        tiles.put("traffic", () -> getTrafficData(24, 60, null));
+        tiles.put("story_views", () -> getMostViewedStories(10));
+        tiles.put("unique_visitors", () -> getDailyUniqueVisitors(30));
+        tiles.put("story_unique_visitors", () -> getMostVisitedStories(7, 10));
+
+        Map<String, Future<Object>> futures = new LinkedHashMap<>();
+        DashboardReport report = new DashboardReport();
+        for(Map.Entry<String, Callable<Object>> tile: tiles.entrySet()) {
+            try {
+                futures.put(tile.getKey(), dashboardExecutor.submit(tile.getValue()));
+            } catch (RejectedExecutionException e) {
+                report.addFailedTile(tile.getKey());
+            }
+        }
+
+        // Tiles run concurrently, so every tile gets the same deadline measured from the start.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(tileTimeoutMillis);
+        for(Map.Entry<String, Future<Object>> future: futures.entrySet()) {
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                report.addTile(future.getKey(), future.getValue().get(remaining, TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.getValue().cancel(true);
+                report.addFailedTile(future.getKey());
+            } catch (ExecutionException | TimeoutException e) {
+                future.getValue().cancel(true);
+                report.addFailedTile(future.getKey());
+            }
+        }
+        return report;
     }
 
     /**
@@ -56,11 +175,12 @@ public class ReportManager{
     }
 
     /**
-     * Retrieves the number of existing users.
+     * Retrieves the number of existing users. The counts are cached for a short time, so refreshing the
+     * dashboard does not query the users every time.
      * @return existing users.
      */
     public ExistingUsers getReportTotalUsers() {
-        return accountBroker.getReportExistingUsers();
+        return usersCache.get("users", key -> accountBroker.getReportExistingUsers());
     }
 
     /**
@@ -77,47 +197,96 @@ public class ReportManager{
      * @return report data.
      */
     public String getReportData(ReportDataRequest request) {
+        try {
+            File uploadFile = writeReportFile(request, progress -> {});
+            return DBoxManager.uploadFile(DBoxManager.FileType.REPORT, uploadFile, uploadFile.getName());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    /**
+     * Writes the raw data report to a file in the temporary files directory.
+     * @param request the report request containing the report filters.
+     * @param progress receives the percentage of report sections completed after each section is written.
+     * @return the generated report file.
+     * @throws IOException if the report file could not be written.
+     */
+    public File writeReportFile(ReportDataRequest request, IntConsumer progress) throws IOException {
 
         DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("MMM-dd-yyyy (hh:mm:ss a)");
 
-        Workbook workbook = new XSSFWorkbook();
+        // Only ROW_ACCESS_WINDOW rows per sheet are kept in memory, the rest are flushed to temporary files.
+        // Each sheet streams to its own temporary file, so different sheets can be written from different threads
+        // as long as the sheets themselves are created up front and shared strings are not used.
+        SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_ACCESS_WINDOW);
+        workbook.setCompressTempFiles(true);
 
+        List<Runnable> sections = new ArrayList<>();
         if(request.getReportUsers().getInclude()) {
             Sheet sheet = workbook.createSheet("Users");
-            userManager.buildUserDataSheet(request.getReportUsers(), sheet, dateTimeFormatter);
+            sections.add(() -> userManager.buildUserDataSheet(request.getReportUsers(), sheet, dateTimeFormatter));
         }
         if(request.getReportStories().getInclude()) {
-//            Sheet sheet = workbook.createSheet("Stories"); TODO
-//            buildStoriesDataSheet(request.getReportStories(), sheet, dateTimeFormatter);
+            Sheet sheet = workbook.createSheet("Stories");
+            sections.add(() -> contentManager.buildStoriesDataSheet(request.getReportStories(), sheet, dateTimeFormatter));
         }
         if(request.getReportResources().getInclude()) {
-//            Sheet sheet = workbook.createSheet("Resources"); TODO
-//            buildResourcesDataSheet(request.getReportResources(), sheet, dateTimeFormatter);
+            Sheet sheet = workbook.createSheet("Resources");
+            sections.add(() -> contentManager.buildContentDataSheet("Resource", sheet));
         }
         if(request.getReportFaqs().getInclude()) {
-//            Sheet sheet = workbook.createSheet("FAQs"); TODO
-//            buildFaqsDataSheet(request.getReportFaqs(), sheet, dateTimeFormatter);
+            Sheet sheet = workbook.createSheet("FAQs");
+            sections.add(() -> contentManager.buildContentDataSheet("FAQ", sheet));
         }
         if(request.getReportEvents().getInclude()) {
             Sheet sheet = workbook.createSheet("Events");
-            eventManager.buildEventsDataSheet(request.getReportEvents(), sheet, dateTimeFormatter);
+            sections.add(() -> eventManager.buildEventsDataSheet(request.getReportEvents(), sheet, dateTimeFormatter));
         }
 
         DateTimeFormatter form = DateTimeFormatter.ofPattern("yyyyMMddhhmmssa");
-        String path = "src/main/resources/static/tempFiles/";
-        String fileName = "REPORT" + form.format((new Timestamp(System.currentTimeMillis()).toLocalDateTime())) + ".xlsx";
+        String fileName = "REPORT" + form.format((new Timestamp(System.currentTimeMillis()).toLocalDateTime()))
+                + "-" + UUID.randomUUID().toString().substring(0, 8) + ".xlsx";
+        File file = new File(tempFilesPath, fileName);
 
         try {
-            FileOutputStream out = new FileOutputStream(path + fileName);
-            workbook.write(out);
-            out.close();
-//            workbook.close();
+            buildSections(sections, progress);
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        } finally {
+            workbook.dispose();
+        }
+        return file;
+    }
 
-            File uploadFile = new File(path + fileName);
-            return DBoxManager.uploadFile(DBoxManager.FileType.REPORT, uploadFile, fileName);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "";
+    /**
+     * Build all report sections concurrently and wait for them to finish.
+     * @param sections the report sections to build.
+     * @param progress receives the percentage of report sections completed after each section is built.
+     * @throws IOException if any of the sections failed.
+     */
+    private void buildSections(List<Runnable> sections, IntConsumer progress) throws IOException {
+        AtomicInteger completed = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for(Runnable section: sections) {
+            futures.add(sectionExecutor.submit(() -> {
+                section.run();
+                progress.accept(completed.incrementAndGet() * 100 / sections.size());
+            }));
+        }
+        try {
+            for(Future<?> future: futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(f -> f.cancel(true));
+            throw new IOException("Report generation interrupted", e);
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw new IOException("Unable to build report section", e.getCause());
         }
     }
 
@@ -170,13 +339,74 @@ public class ReportManager{
     }
 
     /**
-     * Retrieve a list containing all traffic data.
-     * @return a list containing all traffic data.
+     * Retrieve the traffic of the last hours, formatted for a line chart report.
+     * @param hours how many hours back the report starts.
+     * @param bucketMinutes the length of each point of the report, in minutes.
+     * @param endpoint only include the requests of this endpoint, or all requests if null.
+     * @return the request count and latencies per point in time.
+     */
+    public List<TrafficPoint> getTrafficData(int hours, int bucketMinutes, String endpoint) {
+        long now = System.currentTimeMillis();
+        return trafficManager.getTraffic(now - TimeUnit.HOURS.toMillis(hours), now, bucketMinutes, endpoint);
+    }
+
+    /**
+     * Retrieve the traffic of the last hours per endpoint.
+     * @param hours how many hours back the report starts.
+     * @return the request count and latencies per endpoint, busiest endpoints first.
+     */
+    public List<TrafficPoint> getTrafficPerEndpoint(int hours) {
+        long now = System.currentTimeMillis();
+        return trafficManager.getTrafficPerEndpoint(now - TimeUnit.HOURS.toMillis(hours), now);
+    }
+
+    /**
+     * Retrieve the most viewed stories.
+     * @param limit maximum number of stories to return.
+     * @return the story titles and number of views, most viewed first.
+     */
+    public List<ReportElement> getMostViewedStories(int limit) {
+        return contentManager.getMostViewedStories(limit);
+    }
+
+    /**
+     * Retrieve the estimated number of unique visitors of the stories for each of the last days.
+     * @param days the number of days, including today.
+     * @return the day and its estimated number of unique visitors, oldest day first.
+     */
+    public List<ReportElement> getDailyUniqueVisitors(int days) {
+        List<ReportElement> report = new ArrayList<>();
+        for(Map.Entry<LocalDate, Long> day: uniqueVisitorManager.getDailyVisitors(UniqueVisitorManager.ALL_STORIES, days).entrySet()) {
+            report.add(new ReportElement(day.getKey().toString(), day.getValue()));
+        }
+        return report;
+    }
+
+    /**
+     * Retrieve the stories with the most unique visitors over the last days.
+     * @param days the number of days, including today.
+     * @param limit maximum number of stories to return.
+     * @return the story titles and estimated number of unique visitors, most visited first.
+     */
+    public List<ReportElement> getMostVisitedStories(int days, int limit) {
+        Map<Integer, Long> mostVisited = uniqueVisitorManager.getMostVisitedStories(days, limit);
+        Map<Integer, String> titles = contentBroker.getStoryTitles(mostVisited.keySet());
+        List<ReportElement> report = new ArrayList<>();
+        for(Map.Entry<Integer, Long> story: mostVisited.entrySet()) {
+            String title = titles.get(story.getKey());
+            if(title != null)
+                report.add(new ReportElement(title, story.getValue()));
+        }
+        return report;
+    }
+
+    /**
+     * Retrieve the traffic of the last hours on the content endpoints.
+     * @param hours how many hours back the report starts.
+     * @return the request count and latencies per content endpoint, busiest endpoints first.
      */
-    public List<TrafficData> getTrafficData() {
-        List<TrafficData> data = new ArrayList<>();
-        data.add(new TrafficData());
-        return data;
+    public List<TrafficPoint> getContentTraffic(int hours) {
+        return contentManager.viewTrafficReport(hours);
     }
 
     /**
@@ -186,4 +416,38 @@ public class ReportManager{
     public List<User> getAllUsers() {
         return accountBroker.getAllUsersAdm();
     }
+
+    /**
+     * Retrieve a page of all users including the soft-deleted.
+     * @param request the page request.
+     * @return the page of users.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    public KeysetPage<User> getAllUsersPage(KeysetPageRequest request) {
+        return accountBroker.getUsersPage(null, request);
+    }
+
+    /**
+     * Retrieve a page of a recycle bin.
+     * @param type the type of deleted items: users, contents, content_elements, map_points or tags.
+     * @param request the page request.
+     * @return the page of deleted items, or null if the type is unknown.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    public KeysetPage<?> getRecycleBin(String type, KeysetPageRequest request) {
+        switch(type) {
+            case "users":
+                return accountBroker.getUsersPage(true, request);
+            case "contents":
+                return contentBroker.getDeletedContentsPage(request);
+            case "content_elements":
+                return contentElementBroker.getDeletedContentElementsPage(request);
+            case "map_points":
+                return contentElementBroker.getDeletedMapPointsPage(request);
+            case "tags":
+                return contentBroker.getDeletedTagsPage(request);
+            default:
+                return null;
+        }
+    }
 }
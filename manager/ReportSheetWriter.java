@@ -0,0 +1,81 @@
+package com.asylumproject.asylumproject.manager;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * Writes rows to a report data sheet one at a time and sizes its columns without re-reading the written cells.
+ * Column widths are estimated from the longest value seen in each column, so the sheet can be backed by a streaming
+ * workbook where rows already flushed to disk are no longer accessible.
+ */
+public class ReportSheetWriter {
+
+    /**
+     * Maximum column width allowed by Excel, in characters.
+     */
+    private static final int MAX_COLUMN_CHARS = 255;
+
+    private Sheet sheet;
+    private int[] columnChars;
+    private int rowNum;
+
+    /**
+     * A constructor for ReportSheetWriter class.
+     *
+     * @param sheet the data sheet where rows are written to.
+     * @param headers the column headers, written as the first row of the sheet.
+     */
+    public ReportSheetWriter(Sheet sheet, String... headers) {
+        this.sheet = sheet;
+        this.columnChars = new int[headers.length];
+        writeRow((Object[]) headers);
+    }
+
+    /**
+     * Write a new row to the sheet. Numbers and booleans are written as such, any other value as text.
+     * @param values the cell values of the row, in column order.
+     */
+    public void writeRow(Object... values) {
+        Row row = sheet.createRow(rowNum++);
+        for(int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if(value == null)
+                continue;
+            Cell cell = row.createCell(i);
+            String text;
+            if(value instanceof Number) {
+                cell.setCellValue(((Number) value).doubleValue());
+                text = value.toString();
+            }
+            else if(value instanceof Boolean) {
+                cell.setCellValue((Boolean) value);
+                text = value.toString().toUpperCase();
+            }
+            else {
+                text = value.toString();
+                cell.setCellValue(text);
+            }
+            if(i < columnChars.length && text.length() > columnChars[i])
+                columnChars[i] = text.length();
+        }
+    }
+
+    /**
+     * Retrieve the number of rows written so far, including the header row.
+     * @return the number of rows written.
+     */
+    public int getRowCount() {
+        return rowNum;
+    }
+
+    /**
+     * Apply the estimated column widths to the sheet. Must be called once all rows have been written.
+     */
+    public void finish() {
+        for(int i = 0; i < columnChars.length; i++) {
+            int chars = Math.min(columnChars[i] + 2, MAX_COLUMN_CHARS);
+            sheet.setColumnWidth(i, chars * 256);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.broker.RestoreBroker;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * A database restore running in the background, along with its progress and result.
+ */
+public class RestoreJob {
+
+    private final String jobId;
+    private final String source;
+    private final long createdAt;
+    private volatile BackupJob.Status status = BackupJob.Status.QUEUED;
+    private volatile RestoreBroker.Phase phase;
+    private volatile int files;
+    private volatile int filesRestored;
+    private volatile long totalBytes;
+    private volatile long bytesRead;
+    private volatile int tablesStarted;
+    private volatile long statementsExecuted;
+    private volatile String error;
+    private volatile long finishedAt;
+
+    /**
+     * A constructor for RestoreJob class.
+     *
+     * @param jobId the job id.
+     * @param source the backup being restored.
+     */
+    public RestoreJob(String jobId, String source) {
+        this.jobId = jobId;
+        this.source = source;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Retrieve the backup being restored.
+     * @return the manifest id or the cloud storage path.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public BackupJob.Status getStatus() {
+        return status;
+    }
+
+    public RestoreBroker.Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Retrieve the progress of the job.
+     * @return percentage of the backup files read.
+     */
+    public int getProgress() {
+        if(status == BackupJob.Status.DONE)
+            return 100;
+        return totalBytes == 0 ? 0 : (int) Math.min(99, bytesRead * 100 / totalBytes);
+    }
+
+    /**
+     * Retrieve the number of backup files to restore: the full backup and the incremental backups after it.
+     * @return the number of files.
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    public int getFilesRestored() {
+        return filesRestored;
+    }
+
+    public int getTablesStarted() {
+        return tablesStarted;
+    }
+
+    public long getStatementsExecuted() {
+        return statementsExecuted;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * Check whether the job is still queued or running.
+     * @return true if the job has not finished yet.
+     */
+    @JsonIgnore
+    public boolean isActive() {
+        return status == BackupJob.Status.QUEUED || status == BackupJob.Status.RUNNING;
+    }
+
+    void started(int files, long totalBytes) {
+        this.files = files;
+        this.totalBytes = totalBytes;
+        this.status = BackupJob.Status.RUNNING;
+    }
+
+    void setPhase(RestoreBroker.Phase phase) {
+        this.phase = phase;
+    }
+
+    void addBytesRead(long bytes) {
+        this.bytesRead += bytes;
+    }
+
+    synchronized void tableStarted() {
+        this.tablesStarted++;
+    }
+
+    synchronized void statementsExecuted(int statements) {
+        this.statementsExecuted += statements;
+    }
+
+    void fileRestored() {
+        this.filesRestored++;
+    }
+
+    void completed() {
+        this.finishedAt = System.currentTimeMillis();
+        this.status = BackupJob.Status.DONE;
+    }
+
+    void failed(String error) {
+        this.error = error;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = BackupJob.Status.FAILED;
+    }
+}
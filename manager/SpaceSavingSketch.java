@@ -0,0 +1,136 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.util.*;
+
+/**
+ * Finds the most frequent keys of a stream in bounded memory, using the Space-Saving algorithm.
+ * At most a fixed number of keys are tracked; when a new key arrives and the sketch is full, it replaces the
+ * least counted key and inherits its count, so counts can only be overestimated, never underestimated.
+ * Counters are kept in an indexed min-heap, so every update takes logarithmic time.
+ * Not thread safe.
+ *
+ * @param <K> the type of keys.
+ */
+public class SpaceSavingSketch<K> {
+
+    private final int capacity;
+    private final Object[] keys;
+    private final long[] counts;
+    private final Map<K, Integer> positions;
+    private int size;
+
+    /**
+     * A constructor for SpaceSavingSketch class.
+     *
+     * @param capacity maximum number of keys tracked.
+     */
+    public SpaceSavingSketch(int capacity) {
+        this.capacity = capacity;
+        this.keys = new Object[capacity];
+        this.counts = new long[capacity];
+        this.positions = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * Count occurrences of a key.
+     * @param key the key.
+     * @param count the number of occurrences.
+     */
+    public void add(K key, long count) {
+        Integer position = positions.get(key);
+        if(position != null) {
+            counts[position] += count;
+            siftDown(position);
+        } else if(size < capacity) {
+            keys[size] = key;
+            counts[size] = count;
+            positions.put(key, size);
+            siftUp(size++);
+        } else {
+            // Replace the least counted key, which is at the top of the heap.
+            positions.remove(keys[0]);
+            keys[0] = key;
+            counts[0] += count;
+            positions.put(key, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Add the counts of another sketch to this one.
+     * @param other the sketch to merge.
+     */
+    @SuppressWarnings("unchecked")
+    public void merge(SpaceSavingSketch<K> other) {
+        for(int i = 0; i < other.size; i++) {
+            add((K) other.keys[i], other.counts[i]);
+        }
+    }
+
+    /**
+     * Remove all counts.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        positions.clear();
+        size = 0;
+    }
+
+    /**
+     * Retrieve the keys with the highest counts.
+     * @param limit maximum number of keys to return.
+     * @return the estimated count per key, highest first.
+     */
+    @SuppressWarnings("unchecked")
+    public LinkedHashMap<K, Long> top(int limit) {
+        Integer[] order = new Integer[size];
+        for(int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+
+        LinkedHashMap<K, Long> top = new LinkedHashMap<>();
+        for(int i = 0; i < size && i < limit; i++) {
+            top.put((K) keys[order[i]], counts[order[i]]);
+        }
+        return top;
+    }
+
+    private void siftUp(int position) {
+        while(position > 0) {
+            int parent = (position - 1) / 2;
+            if(counts[parent] <= counts[position])
+                return;
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while(true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if(left < size && counts[left] < counts[smallest])
+                smallest = left;
+            if(right < size && counts[right] < counts[smallest])
+                smallest = right;
+            if(smallest == position)
+                return;
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void swap(int a, int b) {
+        Object key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+        positions.put((K) keys[a], a);
+        positions.put((K) keys[b], b);
+    }
+}
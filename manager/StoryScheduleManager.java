@@ -0,0 +1,247 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.broker.ContentBroker;
+import com.asylumproject.asylumproject.broker.DatabaseRestoredEvent;
+import com.asylumproject.asylumproject.broker.StoryTransition;
+import com.asylumproject.asylumproject.dataaccess.ScheduleWatermarkDB;
+import com.asylumproject.asylumproject.problemdomain.Story;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes stories when their available date comes and unpublishes them when their end date comes.
+ * The stories whose dates fall within the next few minutes are loaded with a range query on the dates, and their
+ * timers are kept in a hashed timer wheel, so each tick only looks at the timers of one bucket and the content
+ * table is read once per window rather than once per tick. Edited stories are rescheduled right away.
+ * A watermark of the time up to which timers were processed is saved, so after a restart the stories whose dates
+ * passed while the application was down are published or unpublished on the first tick.
+ * Timers only fire if the story's date still matches and its state allows the change, so a stale timer does
+ * nothing. Nothing is published or unpublished in maintenance mode; the timers that expire meanwhile fire once it
+ * is turned off, and the window is loaded again after a backup is restored.
+ * Expired timers are scheduled again if the stories could not be changed, so a failed tick is retried. Window
+ * loads and reschedules of edited stories hold the same lock, so a load cannot replace the timer of a story edited
+ * while its window was being read.
+ */
+@Service
+public class StoryScheduleManager {
+
+    private static final String WATERMARK_NAME = "story_schedule";
+
+    /**
+     * Interval at which the watermark is saved when no timer expires.
+     */
+    private static final long WATERMARK_SAVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Delay before the timers of a failed tick are retried.
+     */
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private ContentBroker contentBroker;
+    private ScheduleWatermarkDB scheduleWatermarkDB;
+    private MaintenanceManager maintenanceManager;
+
+    @Value("${stories.schedule.enabled:true}")
+    private boolean enabled;
+    @Value("${stories.schedule.tickMillis:1000}")
+    private long tickMillis;
+    @Value("${stories.schedule.wheelBuckets:512}")
+    private int wheelBuckets;
+    @Value("${stories.schedule.windowMinutes:10}")
+    private long windowMinutes;
+
+    private ScheduledExecutorService scheduler;
+    private TimerWheel<Long> wheel;
+    private volatile long loadedUntil;
+    private long watermark;
+    private long watermarkSavedAt;
+    private volatile boolean reloadWindow;
+
+    @Autowired
+    public StoryScheduleManager(ContentBroker contentBroker, ScheduleWatermarkDB scheduleWatermarkDB,
+                                MaintenanceManager maintenanceManager) {
+        this.contentBroker = contentBroker;
+        this.scheduleWatermarkDB = scheduleWatermarkDB;
+        this.maintenanceManager = maintenanceManager;
+    }
+
+    /**
+     * Used to load the timers from the saved watermark on and start ticking.
+     */
+    @PostConstruct
+    private void initialize() {
+        if(!enabled)
+            return;
+        long now = System.currentTimeMillis();
+        Long saved = scheduleWatermarkDB.find(WATERMARK_NAME);
+        watermark = saved != null ? saved : now;
+        watermarkSavedAt = now;
+        loadedUntil = watermark;
+        wheel = new TimerWheel<>(tickMillis, wheelBuckets, now);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::tick, 0, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if(scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Reschedule a story whose dates may have changed. Called once the story is saved.
+     * @param story the saved story.
+     */
+    public synchronized void storyChanged(Story story) {
+        if(wheel == null || story == null)
+            return;
+        reschedule(key(story.getContentID(), false), story.isDeleted() ? null : toMillis(story.getAvailableDate()));
+        reschedule(key(story.getContentID(), true), story.isDeleted() ? null : toMillis(story.getEndDate()));
+    }
+
+    /**
+     * Used to load the window again from the stories of a restored backup, on the next tick.
+     * @param event the restore event.
+     */
+    @EventListener
+    public void databaseRestored(DatabaseRestoredEvent event) {
+        reloadWindow = true;
+    }
+
+    /**
+     * Retrieve the scheduler metrics.
+     * @return the number of pending timers and the time up to which timers were processed and loaded.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("timers", wheel != null ? wheel.size() : 0);
+        metrics.put("watermark", watermark);
+        metrics.put("loadedUntil", loadedUntil);
+        return metrics;
+    }
+
+    private void tick() {
+        if(maintenanceManager.isEnabled())
+            return;
+        long now = System.currentTimeMillis();
+        List<Long> expired = Collections.emptyList();
+        try {
+            loadWindow(now);
+
+            expired = wheel.advance(now);
+            List<Integer> starting = new ArrayList<>();
+            List<Integer> ending = new ArrayList<>();
+            for(Long key: expired) {
+                if(isEnd(key))
+                    ending.add(storyId(key));
+                else
+                    starting.add(storyId(key));
+            }
+            // The dates are checked again, in case a story was edited after its timer was loaded.
+            if(!starting.isEmpty())
+                contentBroker.changeStoryStates(contentBroker.getStoryIdsAvailableBy(starting, now), StoryTransition.RELEASE);
+            if(!ending.isEmpty())
+                contentBroker.changeStoryStates(contentBroker.getStoryIdsEndedBy(ending, now), StoryTransition.UNPUBLISH);
+
+            watermark = now;
+            if(!starting.isEmpty() || !ending.isEmpty() || now - watermarkSavedAt >= WATERMARK_SAVE_MILLIS) {
+                scheduleWatermarkDB.save(WATERMARK_NAME, now);
+                watermarkSavedAt = now;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            // The expired timers were removed from the wheel, unless a story was rescheduled since.
+            for(Long key: expired)
+                wheel.scheduleIfAbsent(key, now + RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Load the next window of timers once half of the loaded window has passed, or the whole window again after a
+     * backup was restored.
+     * @param now the current time, in epoch milliseconds.
+     */
+    private synchronized void loadWindow(long now) {
+        if(reloadWindow) {
+            reloadWindow = false;
+            loadedUntil = watermark;
+        }
+        long windowMillis = TimeUnit.MINUTES.toMillis(windowMinutes);
+        if(loadedUntil < now + windowMillis / 2)
+            load(now + windowMillis);
+    }
+
+    /**
+     * Load the timers of the stories whose dates fall between the end of the loaded window and a time.
+     * @param until the new end of the loaded window, in epoch milliseconds.
+     */
+    private void load(long until) {
+        long from = loadedUntil;
+        for(Object[] row: contentBroker.getStoriesAvailableBetween(from, until)) {
+            Long deadline = toMillis(row[1]);
+            if(deadline != null)
+                wheel.schedule(key((Integer) row[0], false), deadline);
+        }
+        for(Object[] row: contentBroker.getStoriesEndingBetween(from, until)) {
+            Long deadline = toMillis(row[1]);
+            if(deadline != null)
+                wheel.schedule(key((Integer) row[0], true), deadline);
+        }
+        loadedUntil = until;
+    }
+
+    /**
+     * Schedule a timer if its deadline is within the loaded window, otherwise leave it for the window load.
+     */
+    private void reschedule(long key, Long deadline) {
+        if(deadline != null && deadline <= loadedUntil)
+            wheel.schedule(key, deadline);
+        else
+            wheel.cancel(key);
+    }
+
+    private static long key(int storyId, boolean end) {
+        return (long) storyId << 1 | (end ? 1 : 0);
+    }
+
+    private static int storyId(long key) {
+        return (int) (key >> 1);
+    }
+
+    private static boolean isEnd(long key) {
+        return (key & 1) == 1;
+    }
+
+    /**
+     * Convert a story date, whichever date type it is mapped to, to epoch milliseconds.
+     * @param date the date.
+     * @return the time in epoch milliseconds, or null if there is no date.
+     */
+    private static Long toMillis(Object date) {
+        if(date instanceof Date)
+            return ((Date) date).getTime();
+        if(date instanceof LocalDateTime)
+            return ((LocalDateTime) date).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        if(date instanceof LocalDate)
+            return ((LocalDate) date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return null;
+    }
+}
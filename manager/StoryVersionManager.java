@@ -0,0 +1,240 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.dataaccess.StoryVersionDB;
+import com.asylumproject.asylumproject.payload.StoryVersion;
+import com.asylumproject.asylumproject.problemdomain.Story;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the version history of the stories. Each saved story is compared with its previous version, and only the
+ * structural diff is stored, so the history grows with the size of the edits rather than the size of the stories.
+ * Every few versions, or when the diff would not be smaller, the whole story is stored instead, so rebuilding a
+ * version never applies more diffs than the snapshot interval.
+ * The latest version of recently edited stories is kept in memory, so saving a story does not rebuild its previous
+ * version from the database. Version numbers are taken from the database: if another application node took the
+ * same number first, the version is diffed again against that node's version and saved under the next number.
+ */
+@Service
+public class StoryVersionManager {
+
+    private StoryVersionDB storyVersionDB;
+    private ObjectMapper objectMapper;
+
+    /**
+     * Number of times a version is saved again after another node took its version number.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    @Value("${stories.versions.snapshotInterval:10}")
+    private int snapshotInterval;
+    @Value("${stories.versions.cacheMinutes:60}")
+    private long cacheMinutes;
+    @Value("${stories.versions.cacheSize:1000}")
+    private int cacheSize;
+
+    /**
+     * The latest version of recently edited stories, keyed by story id.
+     */
+    private ExpiringCache<Integer, Latest> latestVersions;
+
+    /**
+     * Serializes the versioning of each story, so two edits of a story never take the same version number.
+     */
+    private final Object[] locks = new Object[64];
+
+    @Autowired
+    public StoryVersionManager(StoryVersionDB storyVersionDB, ObjectMapper objectMapper) {
+        this.storyVersionDB = storyVersionDB;
+        this.objectMapper = objectMapper;
+        for(int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * Used to create the cache of latest versions.
+     */
+    @PostConstruct
+    private void initialize() {
+        latestVersions = new ExpiringCache<>(TimeUnit.MINUTES.toMillis(cacheMinutes), cacheSize);
+    }
+
+    /**
+     * Record a story as its first version if it has no history yet, such as a story created before versions
+     * were kept. Called before the story is edited, so the state before the first edit can be restored.
+     * @param story the story before the edit.
+     */
+    public void recordInitialVersion(Story story) {
+        if(story == null)
+            return;
+        try {
+            synchronized(lockOf(story.getContentID())) {
+                if(storyVersionDB.findLatestVersion(story.getContentID()) == 0)
+                    storyVersionDB.insert(story.getContentID(), 1, true, objectMapper.valueToTree(story).toString());
+            }
+        } catch (DuplicateKeyException e) {
+            // Another node recorded the first version at the same time.
+        } catch (Exception e) {
+            // The history is best effort: a failure must not fail the edit.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Record a saved story as a new version, unless nothing changed since the previous version.
+     * @param story the saved story.
+     */
+    public void recordVersion(Story story) {
+        if(story == null)
+            return;
+        try {
+            record(story.getContentID(), objectMapper.valueToTree(story));
+        } catch (Exception e) {
+            // The history is best effort: a failure must not fail the edit.
+            e.printStackTrace();
+        }
+    }
+
+    private void record(int storyId, JsonNode current) {
+        synchronized(lockOf(storyId)) {
+            for(int attempt = 1; ; attempt++) {
+                try {
+                    insertNext(storyId, current);
+                    return;
+                } catch (DuplicateKeyException e) {
+                    // Another node saved a version of the story under the same number.
+                    latestVersions.invalidate(storyId);
+                    if(attempt == MAX_ATTEMPTS)
+                        throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Save a story as the version after the latest one, diffed against the latest one.
+     */
+    private void insertNext(int storyId, JsonNode current) {
+        int latest = storyVersionDB.findLatestVersion(storyId);
+        if(latest == 0) {
+            storyVersionDB.insert(storyId, 1, true, current.toString());
+            latestVersions.put(storyId, new Latest(1, current));
+            return;
+        }
+        JsonNode previous = latestVersion(storyId, latest);
+        JsonNode patch = JsonDiff.diff(previous, current);
+        if(patch == null || (patch.isObject() && patch.size() == 0))
+            return;
+
+        int version = latest + 1;
+        String snapshot = current.toString();
+        String diff = patch.toString();
+        boolean storeSnapshot = (version - 1) % snapshotInterval == 0 || diff.length() >= snapshot.length();
+        storyVersionDB.insert(storyId, version, storeSnapshot, storeSnapshot ? snapshot : diff);
+        latestVersions.put(storyId, new Latest(version, current));
+    }
+
+    /**
+     * Retrieve the latest version of a story from memory, or rebuild it if it is not there or another node saved
+     * a newer version.
+     */
+    private JsonNode latestVersion(int storyId, int latest) {
+        Optional<Latest> cached = latestVersions.getIfPresent(storyId);
+        if(cached.isPresent() && cached.get().version == latest)
+            return cached.get().story;
+        JsonNode previous = rebuild(storyId, latest)
+                .orElseThrow(() -> new IllegalStateException("Version " + latest + " of story " + storyId + " cannot be rebuilt"));
+        latestVersions.put(storyId, new Latest(latest, previous));
+        return previous;
+    }
+
+    /**
+     * Retrieve the versions of a story.
+     * @param storyId the story id.
+     * @return the versions, newest first.
+     */
+    public List<StoryVersion> getVersions(int storyId) {
+        List<StoryVersion> versions = new ArrayList<>();
+        for(StoryVersionDB.Version version: storyVersionDB.findVersions(storyId)) {
+            versions.add(new StoryVersion(version.getStoryId(), version.getVersion(), version.isSnapshot(),
+                    version.getSize(), version.getCreatedAt()));
+        }
+        return versions;
+    }
+
+    /**
+     * Retrieve a version of a story.
+     * @param storyId the story id.
+     * @param version the version number.
+     * @return the story as it was in that version, as JSON; empty if the version does not exist.
+     */
+    public Optional<JsonNode> getVersion(int storyId, int version) {
+        return rebuild(storyId, version);
+    }
+
+    /**
+     * Retrieve a version of a story as a story object, to be saved over the current story.
+     * @param storyId the story id.
+     * @param version the version number.
+     * @return the story as it was in that version; empty if the version does not exist.
+     * @throws IllegalStateException if the version no longer maps to a story.
+     */
+    public Optional<Story> getStoryVersion(int storyId, int version) {
+        return rebuild(storyId, version).map(json -> {
+            try {
+                return objectMapper.treeToValue(json, Story.class);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Version " + version + " of story " + storyId + " cannot be read", e);
+            }
+        });
+    }
+
+    /**
+     * Rebuild a version from the closest snapshot before it and the diffs after that snapshot.
+     */
+    private Optional<JsonNode> rebuild(int storyId, int version) {
+        List<StoryVersionDB.Version> chain = storyVersionDB.findChain(storyId, version);
+        if(chain.isEmpty() || chain.get(chain.size() - 1).getVersion() != version)
+            return Optional.empty();
+        try {
+            JsonNode story = null;
+            for(StoryVersionDB.Version stored: chain) {
+                JsonNode data = objectMapper.readTree(stored.getData());
+                story = stored.isSnapshot() ? data : JsonDiff.apply(story, data);
+            }
+            return Optional.ofNullable(story);
+        } catch (IOException e) {
+            throw new IllegalStateException("Version " + version + " of story " + storyId + " is corrupt", e);
+        }
+    }
+
+    private Object lockOf(int storyId) {
+        return locks[Math.floorMod(storyId, locks.length)];
+    }
+
+    /**
+     * The latest version of a story and its number.
+     */
+    private static final class Latest {
+
+        final int version;
+        final JsonNode story;
+
+        Latest(int version, JsonNode story) {
+            this.version = version;
+            this.story = story;
+        }
+    }
+}
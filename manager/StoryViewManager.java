@@ -0,0 +1,197 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.broker.DatabaseRestoredEvent;
+import com.asylumproject.asylumproject.dataaccess.StoryViewDB;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts story views. Views are added to striped in-memory counters, so recording a view never locks or writes
+ * to the database; the new views are periodically added to the saved counts in a single batch.
+ * After each batch only the saved counts of the stories in it are read back. The counts of the other stories,
+ * which other application nodes may have changed, are reloaded at a much longer interval.
+ */
+@Service
+public class StoryViewManager {
+
+    private StoryViewDB storyViewDB;
+
+    @Value("${stories.views.flushSeconds:10}")
+    private long flushSeconds;
+    @Value("${stories.views.reloadMinutes:10}")
+    private long reloadMinutes;
+
+    private final ConcurrentHashMap<Integer, ViewCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Long> savedViews = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    @Autowired
+    public StoryViewManager(StoryViewDB storyViewDB) {
+        this.storyViewDB = storyViewDB;
+    }
+
+    /**
+     * Used to load the saved view counts and start saving new views periodically.
+     */
+    @PostConstruct
+    private void initialize() {
+        savedViews.putAll(storyViewDB.findAll());
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        flusher.scheduleWithFixedDelay(this::reload, reloadMinutes, reloadMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Used to save the views not saved yet before shutting down.
+     */
+    @PreDestroy
+    private void shutdown() {
+        flusher.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Used to replace the saved counts with the ones of a restored backup.
+     * @param event the restore event.
+     */
+    @EventListener
+    public synchronized void databaseRestored(DatabaseRestoredEvent event) {
+        try {
+            Map<Integer, Long> restored = storyViewDB.findAll();
+            savedViews.keySet().retainAll(restored.keySet());
+            savedViews.putAll(restored);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Record a view of a story.
+     * @param storyId the id of the viewed story.
+     */
+    public void recordView(int storyId) {
+        ViewCounter counter = counters.get(storyId);
+        if(counter == null)
+            counter = counters.computeIfAbsent(storyId, key -> new ViewCounter());
+        counter.views.increment();
+    }
+
+    /**
+     * Retrieve the number of views of a story.
+     * @param storyId the story id.
+     * @return the number of views, including the ones not saved yet.
+     */
+    public long getViews(int storyId) {
+        long views = savedViews.getOrDefault(storyId, 0L);
+        ViewCounter counter = counters.get(storyId);
+        return counter != null ? views + counter.unsaved() : views;
+    }
+
+    /**
+     * Retrieve the number of views of several stories.
+     * @param storyIds the story ids.
+     * @return the number of views per story id.
+     */
+    public Map<Integer, Long> getViews(Collection<Integer> storyIds) {
+        Map<Integer, Long> views = new LinkedHashMap<>();
+        for(Integer storyId: storyIds) {
+            views.put(storyId, getViews(storyId));
+        }
+        return views;
+    }
+
+    /**
+     * Retrieve the most viewed stories.
+     * @param limit maximum number of stories to return.
+     * @return the number of views per story id, most viewed first.
+     */
+    public Map<Integer, Long> getMostViewed(int limit) {
+        Set<Integer> storyIds = new HashSet<>(savedViews.keySet());
+        storyIds.addAll(counters.keySet());
+
+        PriorityQueue<Map.Entry<Integer, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for(Integer storyId: storyIds) {
+            top.add(new AbstractMap.SimpleImmutableEntry<>(storyId, getViews(storyId)));
+            if(top.size() > limit)
+                top.poll();
+        }
+
+        List<Map.Entry<Integer, Long>> sorted = new ArrayList<>(top);
+        sorted.sort(Map.Entry.<Integer, Long>comparingByValue().reversed());
+        Map<Integer, Long> mostViewed = new LinkedHashMap<>();
+        for(Map.Entry<Integer, Long> entry: sorted) {
+            mostViewed.put(entry.getKey(), entry.getValue());
+        }
+        return mostViewed;
+    }
+
+    /**
+     * Add the views recorded since the last flush to the saved counts, then read back the saved counts of the
+     * stories that had new views, so that views saved by other application nodes for them are included.
+     * The views are marked saved as soon as they are written, so a failed read back cannot save them twice.
+     */
+    private synchronized void flush() {
+        try {
+            Map<Integer, Long> newViews = new HashMap<>();
+            Map<ViewCounter, Long> totals = new HashMap<>();
+            for(Map.Entry<Integer, ViewCounter> entry: counters.entrySet()) {
+                // Counters are never reset, so views recorded while flushing are simply saved next time.
+                long total = entry.getValue().views.sum();
+                long unsaved = total - entry.getValue().saved;
+                if(unsaved > 0) {
+                    newViews.put(entry.getKey(), unsaved);
+                    totals.put(entry.getValue(), total);
+                }
+            }
+            if(newViews.isEmpty())
+                return;
+
+            storyViewDB.addViews(newViews);
+            for(Map.Entry<Integer, Long> views: newViews.entrySet()) {
+                savedViews.merge(views.getKey(), views.getValue(), Long::sum);
+            }
+            for(Map.Entry<ViewCounter, Long> total: totals.entrySet()) {
+                total.getKey().saved = total.getValue();
+            }
+
+            savedViews.putAll(storyViewDB.findByIds(newViews.keySet()));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reload the saved counts of all stories, including the views saved by other application nodes.
+     */
+    private synchronized void reload() {
+        try {
+            savedViews.putAll(storyViewDB.findAll());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The views of a story recorded by this application node, and how many of them were saved already.
+     */
+    private static final class ViewCounter {
+
+        final LongAdder views = new LongAdder();
+        volatile long saved;
+
+        long unsaved() {
+            return Math.max(0, views.sum() - saved);
+        }
+    }
+}
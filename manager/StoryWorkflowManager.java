@@ -0,0 +1,79 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.broker.ContentBroker;
+import com.asylumproject.asylumproject.broker.StoryTransition;
+import com.asylumproject.asylumproject.payload.StoryTransitionResult;
+import com.asylumproject.asylumproject.problemdomain.Content;
+import com.asylumproject.asylumproject.problemdomain.Event;
+import com.asylumproject.asylumproject.problemdomain.Story;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Moves stories through the workflow (submit, publish, archive and so on) many at once. The ids of the stories in
+ * a state the transition is allowed from are selected and locked in one query, then moved with a single UPDATE,
+ * so the other stories are skipped without being loaded and the moved stories are exactly the locked ones. The
+ * moved stories are logged with one batch of events sharing the transition id, and the story report projection
+ * is updated for those stories only.
+ */
+@Service
+public class StoryWorkflowManager {
+
+    private ContentBroker contentBroker;
+    private EventManager eventManager;
+    private StoryScheduleManager storyScheduleManager;
+
+    @Value("${stories.transition.maxIds:1000}")
+    private int maxIds;
+
+    @Autowired
+    public StoryWorkflowManager(ContentBroker contentBroker, EventManager eventManager,
+                                StoryScheduleManager storyScheduleManager) {
+        this.contentBroker = contentBroker;
+        this.eventManager = eventManager;
+        this.storyScheduleManager = storyScheduleManager;
+    }
+
+    /**
+     * Move several stories through a transition.
+     * @param action the transition name, such as publish or archive.
+     * @param storyIds the story ids.
+     * @param jwt the acting user JWT token, used to log the transition.
+     * @return the stories moved and the stories skipped.
+     * @throws IllegalArgumentException if the action is unknown or there are too many stories.
+     */
+    public StoryTransitionResult transition(String action, Collection<Integer> storyIds, String jwt) {
+        StoryTransition transition = StoryTransition.of(action);
+        Set<Integer> ids = new LinkedHashSet<>(storyIds);
+        if(ids.size() > maxIds)
+            throw new IllegalArgumentException("At most " + maxIds + " stories can be changed at once");
+
+        String transitionId = UUID.randomUUID().toString();
+        StoryTransitionResult result = new StoryTransitionResult(transitionId, transition.name(),
+                transition.getTarget().name(), ids.size());
+        List<Integer> changed = contentBroker.changeStoryStates(ids, transition);
+        result.getChanged().addAll(changed);
+        Set<Integer> changedIds = new HashSet<>(changed);
+        for(Integer id: ids) {
+            if(!changedIds.contains(id))
+                result.getSkipped().add(id);
+        }
+
+        List<Content> stories = contentBroker.getContents(changed);
+        eventManager.logEvents(jwt, Event.Operation.MODIFIED, stories, transitionId);
+        // A story approved after its available date is released on the next tick.
+        for(Content story: stories) {
+            if(story instanceof Story)
+                storyScheduleManager.storyChanged((Story) story);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,107 @@
+package com.asylumproject.asylumproject.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel: timers are spread over a ring of buckets by their deadline, so scheduling and cancelling
+ * take constant time and each tick only looks at one bucket. Timers further away than one turn of the wheel stay
+ * in their bucket until a later turn reaches their deadline.
+ * Each key has at most one timer; scheduling a key again moves its timer.
+ *
+ * @param <K> the type of timer keys.
+ */
+public class TimerWheel<K> {
+
+    private final long tickMillis;
+    private final List<Map<K, Long>> buckets;
+    private final Map<K, Integer> bucketOfKey = new HashMap<>();
+    private long lastTick;
+
+    /**
+     * A constructor for TimerWheel class.
+     *
+     * @param tickMillis the length of a tick, in milliseconds.
+     * @param bucketCount the number of buckets, so one turn lasts bucketCount ticks.
+     * @param startMillis the current time, in epoch milliseconds.
+     */
+    public TimerWheel(long tickMillis, int bucketCount, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<>(bucketCount);
+        for(int i = 0; i < bucketCount; i++)
+            buckets.add(new HashMap<>());
+        this.lastTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedule a timer, replacing the key's previous timer if any. A deadline already passed expires on the next
+     * tick.
+     * @param key the timer key.
+     * @param deadline when the timer expires, in epoch milliseconds.
+     */
+    public synchronized void schedule(K key, long deadline) {
+        cancel(key);
+        long tick = Math.max(deadline / tickMillis, lastTick + 1);
+        int bucket = (int) (tick % buckets.size());
+        buckets.get(bucket).put(key, deadline);
+        bucketOfKey.put(key, bucket);
+    }
+
+    /**
+     * Schedule a timer unless the key already has one.
+     * @param key the timer key.
+     * @param deadline when the timer expires, in epoch milliseconds.
+     * @return true if the timer was scheduled.
+     */
+    public synchronized boolean scheduleIfAbsent(K key, long deadline) {
+        if(bucketOfKey.containsKey(key))
+            return false;
+        schedule(key, deadline);
+        return true;
+    }
+
+    /**
+     * Cancel a timer.
+     * @param key the timer key.
+     * @return true if the key had a timer.
+     */
+    public synchronized boolean cancel(K key) {
+        Integer bucket = bucketOfKey.remove(key);
+        if(bucket == null)
+            return false;
+        buckets.get(bucket).remove(key);
+        return true;
+    }
+
+    /**
+     * Move the wheel forward to the current time and remove the expired timers.
+     * @param now the current time, in epoch milliseconds.
+     * @return the keys of the expired timers.
+     */
+    public synchronized List<K> advance(long now) {
+        List<K> expired = new ArrayList<>();
+        long nowTick = now / tickMillis;
+        // After a pause longer than a turn, visiting every bucket once is enough.
+        long ticks = Math.min(nowTick - lastTick, buckets.size());
+        for(long t = nowTick - ticks + 1; t <= nowTick; t++) {
+            Iterator<Map.Entry<K, Long>> timers = buckets.get((int) (t % buckets.size())).entrySet().iterator();
+            while(timers.hasNext()) {
+                Map.Entry<K, Long> timer = timers.next();
+                if(timer.getValue() <= now) {
+                    expired.add(timer.getKey());
+                    bucketOfKey.remove(timer.getKey());
+                    timers.remove();
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, nowTick);
+        return expired;
+    }
+
+    public synchronized int size() {
+        return bucketOfKey.size();
+    }
+}
@@ -0,0 +1,268 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.dataaccess.TrafficSeriesDB;
+import com.asylumproject.asylumproject.reports.responses.TrafficPoint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Records the number of requests and their latency per endpoint, in one minute buckets. Requests are recorded
+ * without locking; finished minutes are periodically saved to the traffic series table, which the traffic
+ * reports are built from.
+ */
+@Service
+public class TrafficManager {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Maximum number of points returned in a traffic report.
+     */
+    private static final int MAX_POINTS = 1440;
+
+    /**
+     * Endpoint name used once too many different endpoints were recorded in the same minute.
+     */
+    static final String OTHER_ENDPOINT = "OTHER";
+
+    private TrafficSeriesDB trafficSeriesDB;
+
+    @Value("${reports.traffic.retentionDays:30}")
+    private int retentionDays;
+    @Value("${reports.traffic.maxEndpoints:500}")
+    private int maxEndpoints;
+
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<String, EndpointMetrics>> minutes = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    @Autowired
+    public TrafficManager(TrafficSeriesDB trafficSeriesDB) {
+        this.trafficSeriesDB = trafficSeriesDB;
+    }
+
+    /**
+     * Used to start saving the finished minutes periodically.
+     */
+    @PostConstruct
+    private void initialize() {
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Used to save the recorded minutes, including the current one, before shutting down.
+     */
+    @PreDestroy
+    private void shutdown() {
+        flusher.shutdownNow();
+        flushBefore(Long.MAX_VALUE);
+    }
+
+    /**
+     * Record a request.
+     * @param endpoint the endpoint that handled the request.
+     * @param durationNanos how long the request took, in nanoseconds.
+     * @param error whether the request failed.
+     */
+    public void record(String endpoint, long durationNanos, boolean error) {
+        long minuteStart = System.currentTimeMillis() / MINUTE * MINUTE;
+        ConcurrentHashMap<String, EndpointMetrics> endpoints =
+                minutes.computeIfAbsent(minuteStart, key -> new ConcurrentHashMap<>());
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if(metrics == null) {
+            String key = endpoints.size() < maxEndpoints ? endpoint : OTHER_ENDPOINT;
+            metrics = endpoints.computeIfAbsent(key, k -> new EndpointMetrics());
+        }
+        metrics.record(TimeUnit.NANOSECONDS.toMicros(durationNanos), error);
+    }
+
+    /**
+     * Retrieve the traffic of a period of time, split in buckets of equal length.
+     * Buckets without any request are included with zero requests.
+     * @param from the start of the period, in milliseconds since the epoch.
+     * @param to the end of the period, in milliseconds since the epoch.
+     * @param bucketMinutes the length of each bucket, in minutes. Increased if the period would have too many buckets.
+     * @param endpoint only include the requests of this endpoint, or all requests if null.
+     * @return one point per bucket, in time order.
+     */
+    public List<TrafficPoint> getTraffic(long from, long to, int bucketMinutes, String endpoint) {
+        from = from / MINUTE * MINUTE;
+        long minimumBucket = ((to - from) / MAX_POINTS + MINUTE - 1) / MINUTE * MINUTE;
+        long bucketMillis = Math.max(Math.max(1, bucketMinutes) * MINUTE, minimumBucket);
+        int bucketCount = (int) Math.max(1, (to - from + bucketMillis - 1) / bucketMillis);
+
+        Accumulator[] buckets = new Accumulator[bucketCount];
+        for(int i = 0; i < bucketCount; i++) {
+            buckets[i] = new Accumulator();
+        }
+        long start = from;
+        forEachSample(from, to, endpoint, sample -> {
+            int bucket = (int) ((sample.getMinuteStart() - start) / bucketMillis);
+            if(bucket >= 0 && bucket < buckets.length)
+                buckets[bucket].add(sample);
+        });
+
+        List<TrafficPoint> points = new ArrayList<>(bucketCount);
+        for(int i = 0; i < bucketCount; i++) {
+            points.add(buckets[i].toPoint(from + i * bucketMillis, endpoint));
+        }
+        return points;
+    }
+
+    /**
+     * Retrieve the traffic of a period of time per endpoint.
+     * @param from the start of the period, in milliseconds since the epoch.
+     * @param to the end of the period, in milliseconds since the epoch.
+     * @return one point per endpoint, busiest endpoints first.
+     */
+    public List<TrafficPoint> getTrafficPerEndpoint(long from, long to) {
+        long start = from / MINUTE * MINUTE;
+        Map<String, Accumulator> endpoints = new HashMap<>();
+        forEachSample(start, to, null,
+                sample -> endpoints.computeIfAbsent(sample.getEndpoint(), key -> new Accumulator()).add(sample));
+
+        List<TrafficPoint> points = new ArrayList<>(endpoints.size());
+        for(Map.Entry<String, Accumulator> entry: endpoints.entrySet()) {
+            points.add(entry.getValue().toPoint(start, entry.getKey()));
+        }
+        points.sort(Comparator.comparingLong(TrafficPoint::getRequests).reversed());
+        return points;
+    }
+
+    /**
+     * Visit the metrics of a period of time, both the saved ones and the ones not saved yet.
+     * @param from the start of the period, in milliseconds since the epoch.
+     * @param to the end of the period, in milliseconds since the epoch.
+     * @param endpoint only visit the metrics of this endpoint, or all endpoints if null.
+     * @param consumer visits the metrics of each endpoint and minute.
+     */
+    private void forEachSample(long from, long to, String endpoint,
+                               Consumer<TrafficSeriesDB.Sample> consumer) {
+        trafficSeriesDB.forEachSample(from, to, endpoint, consumer);
+        for(Map.Entry<Long, ConcurrentHashMap<String, EndpointMetrics>> minute: minutes.entrySet()) {
+            if(minute.getKey() < from || minute.getKey() >= to)
+                continue;
+            for(Map.Entry<String, EndpointMetrics> metrics: minute.getValue().entrySet()) {
+                if(endpoint == null || endpoint.equals(metrics.getKey()))
+                    consumer.accept(metrics.getValue().toSample(minute.getKey(), metrics.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Save the finished minutes and delete the ones older than the retention period.
+     * The previous minute is kept in memory until the next flush, so that requests still being recorded
+     * into it are not lost.
+     */
+    private void flush() {
+        try {
+            long currentMinute = System.currentTimeMillis() / MINUTE * MINUTE;
+            flushBefore(currentMinute - MINUTE);
+            trafficSeriesDB.deleteBefore(currentMinute - TimeUnit.DAYS.toMillis(retentionDays));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Save the minutes that started before a point in time and stop keeping them in memory.
+     * Metrics already saved for the same minute, e.g. before a restart, are merged in.
+     * @param before the point in time, in milliseconds since the epoch.
+     */
+    private void flushBefore(long before) {
+        for(Long minuteStart: new TreeSet<>(minutes.keySet())) {
+            if(minuteStart >= before)
+                break;
+            ConcurrentHashMap<String, EndpointMetrics> endpoints = minutes.remove(minuteStart);
+            if(endpoints == null)
+                continue;
+
+            Map<String, Accumulator> merged = new HashMap<>();
+            for(TrafficSeriesDB.Sample saved: trafficSeriesDB.findByMinute(minuteStart)) {
+                merged.computeIfAbsent(saved.getEndpoint(), key -> new Accumulator()).add(saved);
+            }
+            for(Map.Entry<String, EndpointMetrics> metrics: endpoints.entrySet()) {
+                merged.computeIfAbsent(metrics.getKey(), key -> new Accumulator())
+                        .add(metrics.getValue().toSample(minuteStart, metrics.getKey()));
+            }
+
+            List<TrafficSeriesDB.Sample> samples = new ArrayList<>(merged.size());
+            for(Map.Entry<String, Accumulator> entry: merged.entrySet()) {
+                samples.add(entry.getValue().toSample(minuteStart, entry.getKey()));
+            }
+            trafficSeriesDB.saveAll(samples);
+        }
+    }
+
+    /**
+     * The metrics of one endpoint during the current minute, updated without locking.
+     */
+    private static final class EndpointMetrics {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        void record(long micros, boolean error) {
+            requests.increment();
+            if(error)
+                errors.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+            histogram.record(micros);
+        }
+
+        TrafficSeriesDB.Sample toSample(long minuteStart, String endpoint) {
+            return new TrafficSeriesDB.Sample(minuteStart, endpoint, requests.sum(), errors.sum(),
+                    totalMicros.sum(), maxMicros.get(), LatencyHistogram.encode(histogram.snapshot()));
+        }
+    }
+
+    /**
+     * Adds up the metrics of several minutes or endpoints.
+     */
+    private static final class Accumulator {
+
+        private long requests;
+        private long errors;
+        private long totalMicros;
+        private long maxMicros;
+        private final long[] histogram = new long[LatencyHistogram.BUCKETS];
+
+        void add(TrafficSeriesDB.Sample sample) {
+            requests += sample.getRequests();
+            errors += sample.getErrors();
+            totalMicros += sample.getTotalMicros();
+            maxMicros = Math.max(maxMicros, sample.getMaxMicros());
+            LatencyHistogram.merge(histogram, LatencyHistogram.decode(sample.getHistogram()));
+        }
+
+        TrafficSeriesDB.Sample toSample(long minuteStart, String endpoint) {
+            return new TrafficSeriesDB.Sample(minuteStart, endpoint, requests, errors, totalMicros, maxMicros,
+                    LatencyHistogram.encode(histogram));
+        }
+
+        TrafficPoint toPoint(long time, String endpoint) {
+            double average = requests == 0 ? 0 : totalMicros / (double) requests / 1000.0;
+            return new TrafficPoint(time, endpoint, requests, errors, average,
+                    LatencyHistogram.percentile(histogram, 50) / 1000.0,
+                    LatencyHistogram.percentile(histogram, 95) / 1000.0,
+                    LatencyHistogram.percentile(histogram, 99) / 1000.0,
+                    maxMicros / 1000.0);
+        }
+    }
+}
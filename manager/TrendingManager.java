@@ -0,0 +1,159 @@
+package com.asylumproject.asylumproject.manager;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the most viewed stories over sliding windows. Each window is a ring of time slots, each slot holding a
+ * bounded Space-Saving sketch of the views recorded during that slot; the trending stories of a window are found
+ * by merging the sketches of its slots. Memory use does not depend on the number of stories or views.
+ * Each slot is split into stripes, each with its own sketch and lock, and a view goes to the stripe of the thread
+ * recording it, so concurrent views rarely wait for each other. The stripes are merged when the window is read.
+ */
+@Service
+public class TrendingManager {
+
+    /**
+     * The windows trending stories can be retrieved for.
+     */
+    public enum Window {
+        HOUR("1h", TimeUnit.MINUTES.toMillis(5), 12),
+        DAY("24h", TimeUnit.HOURS.toMillis(1), 24),
+        WEEK("7d", TimeUnit.HOURS.toMillis(6), 28);
+
+        private final String label;
+        private final long slotMillis;
+        private final int slots;
+
+        Window(String label, long slotMillis, int slots) {
+            this.label = label;
+            this.slotMillis = slotMillis;
+            this.slots = slots;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Find a window based on its label.
+         * @param label the label, e.g. "24h".
+         * @return the matching window, or null if none matches.
+         */
+        public static Window fromLabel(String label) {
+            for(Window window: values()) {
+                if(window.label.equalsIgnoreCase(label))
+                    return window;
+            }
+            return null;
+        }
+    }
+
+    @Value("${stories.trending.sketchCapacity:200}")
+    private int sketchCapacity;
+    @Value("${stories.trending.stripes:0}")
+    private int stripes;
+
+    private Ring[] rings;
+
+    /**
+     * Used to create the ring of slots of each window.
+     */
+    @PostConstruct
+    private void initialize() {
+        int requested = stripes > 0 ? stripes : Runtime.getRuntime().availableProcessors();
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(requested, 64)) * 2 - 1);
+        rings = new Ring[Window.values().length];
+        for(Window window: Window.values()) {
+            rings[window.ordinal()] = new Ring(window, sketchCapacity, stripeCount);
+        }
+    }
+
+    /**
+     * Record a view of a story in every window.
+     * @param storyId the id of the viewed story.
+     */
+    public void recordView(int storyId) {
+        long now = System.currentTimeMillis();
+        for(Ring ring: rings) {
+            ring.add(storyId, now);
+        }
+    }
+
+    /**
+     * Retrieve the most viewed stories of a window.
+     * @param window the window.
+     * @param limit maximum number of stories to return.
+     * @return the estimated number of views per story id, most viewed first.
+     */
+    public LinkedHashMap<Integer, Long> getTrending(Window window, int limit) {
+        return rings[window.ordinal()].top(limit, System.currentTimeMillis());
+    }
+
+    /**
+     * The time slots of a window. Each stripe of each slot is locked separately, so recording a view only waits
+     * for other views recorded by a thread of the same stripe in the same slot.
+     */
+    private static final class Ring {
+
+        private final Window window;
+        private final int capacity;
+        private final Stripe[][] stripes;
+
+        Ring(Window window, int capacity, int stripeCount) {
+            this.window = window;
+            this.capacity = capacity;
+            this.stripes = new Stripe[window.slots][stripeCount];
+            for(int slot = 0; slot < window.slots; slot++) {
+                for(int stripe = 0; stripe < stripeCount; stripe++) {
+                    stripes[slot][stripe] = new Stripe(capacity);
+                }
+            }
+        }
+
+        void add(int storyId, long now) {
+            long epoch = now / window.slotMillis;
+            Stripe[] slot = stripes[(int) (epoch % window.slots)];
+            Stripe stripe = slot[(int) Thread.currentThread().getId() & (slot.length - 1)];
+            synchronized(stripe) {
+                // The stripe still holds an older period of time, which is now outside the window.
+                if(stripe.epoch != epoch) {
+                    stripe.sketch.clear();
+                    stripe.epoch = epoch;
+                }
+                stripe.sketch.add(storyId, 1);
+            }
+        }
+
+        LinkedHashMap<Integer, Long> top(int limit, long now) {
+            long currentEpoch = now / window.slotMillis;
+            SpaceSavingSketch<Integer> merged = new SpaceSavingSketch<>(capacity);
+            for(Stripe[] slot: stripes) {
+                for(Stripe stripe: slot) {
+                    synchronized(stripe) {
+                        if(stripe.epoch > currentEpoch - window.slots && stripe.epoch <= currentEpoch)
+                            merged.merge(stripe.sketch);
+                    }
+                }
+            }
+            return merged.top(limit);
+        }
+    }
+
+    /**
+     * The views recorded by one stripe of threads during one slot.
+     */
+    private static final class Stripe {
+
+        final SpaceSavingSketch<Integer> sketch;
+        long epoch = -1;
+
+        Stripe(int capacity) {
+            this.sketch = new SpaceSavingSketch<>(capacity);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.dataaccess.VisitorSketchDB;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the number of unique visitors per story and per day with HyperLogLog sketches. Visitors are
+ * identified by a salted hash of their address and user agent, so no personal data is kept. Sketches are
+ * periodically merged into the saved ones, which lets several application nodes count the same visitors
+ * without counting them twice.
+ */
+@Service
+public class UniqueVisitorManager {
+
+    /**
+     * Story id of the sketches holding the visitors of any story.
+     */
+    public static final int ALL_STORIES = 0;
+
+    private VisitorSketchDB visitorSketchDB;
+
+    /**
+     * Salt used to anonymize visitors. Application nodes must share it for their sketches to be merged, and it
+     * must not change, or the same visitor is counted again after a restart. If it is not set, a random salt is
+     * generated once and saved in the database, where every node reads it from.
+     */
+    @Value("${visitors.salt:}")
+    private String salt;
+    @Value("${visitors.flushSeconds:60}")
+    private long flushSeconds;
+
+    private byte[] saltBytes;
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private final ConcurrentHashMap<SketchKey, LocalSketch> sketches = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    @Autowired
+    public UniqueVisitorManager(VisitorSketchDB visitorSketchDB) {
+        this.visitorSketchDB = visitorSketchDB;
+    }
+
+    /**
+     * Used to prepare the salt and start saving the sketches periodically.
+     */
+    @PostConstruct
+    private void initialize() {
+        if(salt == null || salt.isEmpty()) {
+            byte[] generated = new byte[16];
+            new SecureRandom().nextBytes(generated);
+            saltBytes = visitorSketchDB.findOrSaveSalt(generated);
+        } else {
+            saltBytes = salt.getBytes(StandardCharsets.UTF_8);
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Used to save the sketches before shutting down.
+     */
+    @PreDestroy
+    private void shutdown() {
+        flusher.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Record a visit of a story, counting the visitor for the story and for all stories.
+     * @param storyId the id of the visited story.
+     * @param clientKey identifies the visitor, it is anonymized before being counted.
+     */
+    public void recordVisit(int storyId, String clientKey) {
+        long hash = anonymize(clientKey);
+        int day = today();
+        sketch(storyId, day).add(hash);
+        sketch(ALL_STORIES, day).add(hash);
+    }
+
+    /**
+     * Retrieve the estimated number of unique visitors of a story for each of the last days.
+     * @param storyId the story id, or {@link #ALL_STORIES}.
+     * @param days the number of days, including today.
+     * @return the estimated number of unique visitors per day, oldest day first.
+     */
+    public LinkedHashMap<LocalDate, Long> getDailyVisitors(int storyId, int days) {
+        int toDay = today();
+        int fromDay = toDay - days + 1;
+        Map<Integer, HyperLogLog> perDay = new HashMap<>();
+        forEachSketch(fromDay, toDay, storyId,
+                (id, day, registers) -> perDay.computeIfAbsent(day, key -> new HyperLogLog()).merge(registers));
+
+        LinkedHashMap<LocalDate, Long> visitors = new LinkedHashMap<>();
+        for(int day = fromDay; day <= toDay; day++) {
+            HyperLogLog sketch = perDay.get(day);
+            visitors.put(LocalDate.ofEpochDay(day), sketch != null ? sketch.estimate() : 0L);
+        }
+        return visitors;
+    }
+
+    /**
+     * Retrieve the stories with the most unique visitors over the last days. A visitor coming back on several
+     * days is counted once.
+     * @param days the number of days, including today.
+     * @param limit maximum number of stories to return.
+     * @return the estimated number of unique visitors per story id, most visited first.
+     */
+    public LinkedHashMap<Integer, Long> getMostVisitedStories(int days, int limit) {
+        int toDay = today();
+        Map<Integer, HyperLogLog> perStory = new HashMap<>();
+        forEachSketch(toDay - days + 1, toDay, null, (id, day, registers) -> {
+            if(id != ALL_STORIES)
+                perStory.computeIfAbsent(id, key -> new HyperLogLog()).merge(registers);
+        });
+
+        List<Map.Entry<Integer, Long>> estimates = new ArrayList<>();
+        for(Map.Entry<Integer, HyperLogLog> story: perStory.entrySet()) {
+            estimates.add(new AbstractMap.SimpleImmutableEntry<>(story.getKey(), story.getValue().estimate()));
+        }
+        estimates.sort(Map.Entry.<Integer, Long>comparingByValue().reversed());
+        LinkedHashMap<Integer, Long> top = new LinkedHashMap<>();
+        for(int i = 0; i < estimates.size() && i < limit; i++) {
+            top.put(estimates.get(i).getKey(), estimates.get(i).getValue());
+        }
+        return top;
+    }
+
+    /**
+     * Visit the sketches of a range of days, both the saved ones and the ones recorded by this node.
+     * Visiting a sketch twice does not change the result, since merging sketches is idempotent.
+     */
+    private void forEachSketch(int fromDay, int toDay, Integer storyId, VisitorSketchDB.SketchConsumer consumer) {
+        visitorSketchDB.forEachSketch(fromDay, toDay, storyId, consumer);
+        for(Map.Entry<SketchKey, LocalSketch> entry: sketches.entrySet()) {
+            SketchKey key = entry.getKey();
+            if(key.day >= fromDay && key.day <= toDay && (storyId == null || key.storyId == storyId))
+                consumer.accept(key.storyId, key.day, entry.getValue().sketch.toBytes());
+        }
+    }
+
+    /**
+     * Merge the sketches that changed since the last flush into the saved ones, and stop keeping the sketches
+     * of past days in memory.
+     */
+    private void flush() {
+        int yesterday = today() - 1;
+        for(Map.Entry<SketchKey, LocalSketch> entry: sketches.entrySet()) {
+            SketchKey key = entry.getKey();
+            LocalSketch local = entry.getValue();
+            if(local.dirty) {
+                local.dirty = false;
+                try {
+                    visitorSketchDB.merge(key.storyId, key.day, saved -> {
+                        HyperLogLog merged = new HyperLogLog(saved);
+                        merged.merge(local.sketch);
+                        return merged.toBytes();
+                    });
+                } catch (Exception e) {
+                    local.dirty = true;
+                    e.printStackTrace();
+                    continue;
+                }
+            }
+            if(key.day < yesterday && !local.dirty)
+                sketches.remove(key, local);
+        }
+    }
+
+    private LocalSketch sketch(int storyId, int day) {
+        SketchKey key = new SketchKey(storyId, day);
+        LocalSketch local = sketches.get(key);
+        if(local == null)
+            local = sketches.computeIfAbsent(key, k -> new LocalSketch());
+        return local;
+    }
+
+    /**
+     * Hash a visitor with the salt, so that the visitor cannot be identified from the stored sketches.
+     * @param clientKey identifies the visitor.
+     * @return the first 64 bits of the salted SHA-256 hash.
+     */
+    private long anonymize(String clientKey) {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        digest.update(saltBytes);
+        return ByteBuffer.wrap(digest.digest(clientKey.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    private static int today() {
+        return (int) LocalDate.now(ZoneOffset.UTC).toEpochDay();
+    }
+
+    /**
+     * Identifies the sketch of a story and day.
+     */
+    private static final class SketchKey {
+
+        final int storyId;
+        final int day;
+
+        SketchKey(int storyId, int day) {
+            this.storyId = storyId;
+            this.day = day;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof SketchKey))
+                return false;
+            SketchKey other = (SketchKey) o;
+            return storyId == other.storyId && day == other.day;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * storyId + day;
+        }
+    }
+
+    /**
+     * A sketch recorded by this node, and whether it changed since it was last saved.
+     */
+    private static final class LocalSketch {
+
+        final HyperLogLog sketch = new HyperLogLog();
+        volatile boolean dirty;
+
+        void add(long hash) {
+            // Most views do not raise a register, and then leave the flag alone rather than write it.
+            if(sketch.add(hash))
+                dirty = true;
+        }
+    }
+}
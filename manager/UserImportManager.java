@@ -0,0 +1,267 @@
+package com.asylumproject.asylumproject.manager;
+
+import com.asylumproject.asylumproject.broker.AccountBroker;
+import com.asylumproject.asylumproject.payload.SignUpRequest;
+import com.asylumproject.asylumproject.payload.UserImportResult;
+import com.asylumproject.asylumproject.problemdomain.Event;
+import com.asylumproject.asylumproject.problemdomain.User;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Creates many user accounts at once, from JSON or CSV. Uniqueness is checked for the whole import with a few
+ * set based queries, passwords are hashed in parallel on the password hashing pool, users are inserted in JDBC
+ * batches with one transaction per chunk, and a single event is logged for the import.
+ * Rows that cannot be created are reported without stopping the import.
+ */
+@Service
+public class UserImportManager {
+
+    private AccountBroker accountBroker;
+    private PasswordHashingManager passwordHashingManager;
+    private EventManager eventManager;
+    private Validator validator;
+    private ObjectMapper objectMapper;
+
+    @Value("${users.import.maxRows:5000}")
+    private int maxRows;
+    @Value("${users.import.chunkSize:500}")
+    private int chunkSize;
+
+    @Autowired
+    public UserImportManager(AccountBroker accountBroker,
+                             PasswordHashingManager passwordHashingManager,
+                             EventManager eventManager,
+                             Validator validator,
+                             ObjectMapper objectMapper) {
+        this.accountBroker = accountBroker;
+        this.passwordHashingManager = passwordHashingManager;
+        this.eventManager = eventManager;
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Import users from sign up requests.
+     * @param requests the sign up requests, one per user.
+     * @param creator the user importing the users.
+     * @param jwt the importing user JWT token, used to log the import.
+     * @return the number of users created, and the rows that were not.
+     * @throws IllegalArgumentException if there are too many rows.
+     * @throws RejectedExecutionException if the password hashing pool is overloaded.
+     */
+    public UserImportResult importUsers(List<SignUpRequest> requests, User creator, String jwt) {
+        List<Row> rows = new ArrayList<>(requests.size());
+        for(int i = 0; i < requests.size(); i++) {
+            rows.add(new Row(i + 1, requests.get(i)));
+        }
+        UserImportResult result = new UserImportResult(UUID.randomUUID().toString(), rows.size());
+        importRows(rows, creator, jwt, result);
+        return result;
+    }
+
+    /**
+     * Import users from CSV. The first line names the columns after the sign up request fields, such as
+     * userName, email and password.
+     * @param csv the CSV text.
+     * @param creator the user importing the users.
+     * @param jwt the importing user JWT token, used to log the import.
+     * @return the number of users created, and the rows that were not.
+     * @throws IllegalArgumentException if the CSV has no header or too many rows.
+     * @throws RejectedExecutionException if the password hashing pool is overloaded.
+     */
+    public UserImportResult importUsersCsv(String csv, User creator, String jwt) {
+        List<List<String>> lines = parseCsv(csv);
+        if(lines.isEmpty())
+            throw new IllegalArgumentException("The CSV must start with a header line");
+        List<String> header = lines.get(0);
+        UserImportResult result = new UserImportResult(UUID.randomUUID().toString(), lines.size() - 1);
+
+        List<Row> rows = new ArrayList<>(lines.size() - 1);
+        for(int i = 1; i < lines.size(); i++) {
+            List<String> line = lines.get(i);
+            Map<String, String> fields = new LinkedHashMap<>();
+            for(int column = 0; column < header.size() && column < line.size(); column++) {
+                if(!line.get(column).isEmpty())
+                    fields.put(header.get(column).trim(), line.get(column));
+            }
+            try {
+                rows.add(new Row(i, objectMapper.convertValue(fields, SignUpRequest.class)));
+            } catch (IllegalArgumentException e) {
+                result.addError(i, fields.get("userName"), "Invalid row: " + e.getMessage());
+            }
+        }
+        importRows(rows, creator, jwt, result);
+        return result;
+    }
+
+    private void importRows(List<Row> rows, User creator, String jwt, UserImportResult result) {
+        if(rows.size() > maxRows)
+            throw new IllegalArgumentException("At most " + maxRows + " users can be imported at once");
+
+        // Validate each row, and reject usernames and emails repeated within the import.
+        List<Row> valid = new ArrayList<>(rows.size());
+        Set<String> userNames = new HashSet<>();
+        Set<String> emails = new HashSet<>();
+        for(Row row: rows) {
+            Set<ConstraintViolation<SignUpRequest>> violations = validator.validate(row.request);
+            if(!violations.isEmpty()) {
+                result.addError(row.number, row.request.getUserName(), violations.stream()
+                        .map(v -> v.getPropertyPath() + " " + v.getMessage())
+                        .sorted()
+                        .collect(Collectors.joining(", ")));
+            }
+            else if(row.request.getUserName() == null || row.request.getEmail() == null
+                    || row.request.getPassword() == null) {
+                result.addError(row.number, row.request.getUserName(), "Username, email and password are required");
+            }
+            else if(!userNames.add(row.request.getUserName().toLowerCase(Locale.ROOT))) {
+                result.addError(row.number, row.request.getUserName(), "Username is repeated in the import");
+            }
+            else if(!emails.add(row.request.getEmail().toLowerCase(Locale.ROOT))) {
+                result.addError(row.number, row.request.getUserName(), "Email address is repeated in the import");
+            }
+            else {
+                valid.add(row);
+            }
+        }
+
+        // Check uniqueness against the existing users with one query per thousand values.
+        Set<String> takenUserNames = accountBroker.findExistingUserNames(userNames);
+        Set<String> takenEmails = accountBroker.findExistingEmails(emails);
+        List<Row> accepted = new ArrayList<>(valid.size());
+        for(Row row: valid) {
+            if(takenUserNames.contains(row.request.getUserName().toLowerCase(Locale.ROOT)))
+                result.addError(row.number, row.request.getUserName(), "Username is already taken!");
+            else if(takenEmails.contains(row.request.getEmail().toLowerCase(Locale.ROOT)))
+                result.addError(row.number, row.request.getUserName(), "Email address is already in use!");
+            else
+                accepted.add(row);
+        }
+        if(accepted.isEmpty())
+            return;
+
+        List<String> hashes = passwordHashingManager.encodeAll(accepted.stream()
+                .map(row -> row.request.getPassword())
+                .collect(Collectors.toList()));
+        List<User> users = new ArrayList<>(accepted.size());
+        List<User> created = new ArrayList<>(accepted.size());
+        for(int i = 0; i < accepted.size(); i++) {
+            SignUpRequest request = accepted.get(i).request;
+            request.setPassword(hashes.get(i));
+            request.setCreator(creator);
+            users.add(new User(request));
+        }
+
+        for(int from = 0; from < users.size(); from += chunkSize) {
+            int to = Math.min(from + chunkSize, users.size());
+            try {
+                accountBroker.registerUsers(users.subList(from, to));
+                result.addCreated(to - from);
+                created.addAll(users.subList(from, to));
+            } catch (Exception e) {
+                e.printStackTrace();
+                for(Row row: accepted.subList(from, to)) {
+                    result.addError(row.number, row.request.getUserName(), "Could not be saved, please retry this row.");
+                }
+            }
+        }
+
+        // One event per created account, all sharing the import id.
+        eventManager.logEvents(jwt, Event.Operation.CREATED, created, result.getImportId());
+    }
+
+    /**
+     * Split CSV text into lines of fields. Fields may be quoted, with doubled quotes inside quoted fields, and
+     * quoted fields may span lines. Blank lines are skipped. Unquoted fields are trimmed, while quoted fields are
+     * kept as they are, so a quoted password can start or end with spaces.
+     */
+    private static List<List<String>> parseCsv(String csv) {
+        List<List<String>> lines = new ArrayList<>();
+        List<String> line = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        boolean fieldStarted = false;
+        for(int i = 0; i < csv.length(); i++) {
+            char c = csv.charAt(i);
+            if(quoted) {
+                if(c == '"' && i + 1 < csv.length() && csv.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                }
+                else if(c == '"') {
+                    quoted = false;
+                }
+                else {
+                    field.append(c);
+                }
+            }
+            else if(c == '"' && !wasQuoted && field.toString().trim().isEmpty()) {
+                // Spaces before the opening quote are not part of the field.
+                field.setLength(0);
+                quoted = true;
+                wasQuoted = true;
+                fieldStarted = true;
+            }
+            else if(c == ',') {
+                line.add(fieldValue(field, wasQuoted));
+                field.setLength(0);
+                wasQuoted = false;
+                fieldStarted = true;
+            }
+            else if(c == '\n' || c == '\r') {
+                if(fieldStarted || field.length() > 0) {
+                    line.add(fieldValue(field, wasQuoted));
+                    lines.add(line);
+                    line = new ArrayList<>();
+                }
+                field.setLength(0);
+                wasQuoted = false;
+                fieldStarted = false;
+            }
+            else if(!wasQuoted || !Character.isWhitespace(c)) {
+                // Spaces after the closing quote are not part of the field.
+                field.append(c);
+            }
+        }
+        if(fieldStarted || field.length() > 0) {
+            line.add(fieldValue(field, wasQuoted));
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static String fieldValue(StringBuilder field, boolean quoted) {
+        return quoted ? field.toString() : field.toString().trim();
+    }
+
+    /**
+     * A sign up request and its row number in the import.
+     */
+    private static final class Row {
+
+        final int number;
+        final SignUpRequest request;
+
+        Row(int number, SignUpRequest request) {
+            this.number = number;
+            this.request = request;
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package com.asylumproject.asylumproject.manager;
 import com.asylumproject.asylumproject.broker.AccountBroker;
+import com.asylumproject.asylumproject.broker.DatabaseRestoredEvent;
+import com.asylumproject.asylumproject.payload.KeysetPage;
+import com.asylumproject.asylumproject.payload.KeysetPageRequest;
 import com.asylumproject.asylumproject.payload.UpdateUserRequest;
 import com.asylumproject.asylumproject.permission.Permission;
 import com.asylumproject.asylumproject.permission.PermissionName;
 import com.asylumproject.asylumproject.problemdomain.User;
 import com.asylumproject.asylumproject.reports.requests.utils.ReportUsers;
-import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -14,8 +19,10 @@ import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class description: This class takes care of creating, editing, and deleting users. The operations in this class
@@ -26,11 +33,38 @@ public class UserManager implements UserDetailsService {
 
     private AccountBroker accountBroker;
 
+    @Value("${users.detailsCache.ttlSeconds:300}")
+    private long detailsCacheTtlSeconds;
+    @Value("${users.detailsCache.maxSize:10000}")
+    private int detailsCacheMaxSize;
+
+    /**
+     * Users loaded for authentication, keyed by lowercase username and email address.
+     */
+    private ExpiringCache<String, CachedUserDetails> userDetailsCache;
+
     @Autowired
     public UserManager(AccountBroker accountBroker){
         this.accountBroker = accountBroker;
     }
 
+    /**
+     * Used to create the cache of users loaded for authentication.
+     */
+    @PostConstruct
+    private void initialize() {
+        userDetailsCache = new ExpiringCache<>(TimeUnit.SECONDS.toMillis(detailsCacheTtlSeconds), detailsCacheMaxSize);
+    }
+
+    /**
+     * Used to forget the users loaded before a backup was restored.
+     * @param event the restore event.
+     */
+    @EventListener
+    public void databaseRestored(DatabaseRestoredEvent event) {
+        userDetailsCache.invalidateAll();
+    }
+
     /**
      * Edits the attributes of a User which already exists in the system.
      * Attributes that can be edited:
@@ -65,6 +99,8 @@ public class UserManager implements UserDetailsService {
                 return accountBroker.updateUserInfo(oldUser);
             }catch (IllegalArgumentException e) {
                 return null;
+            } finally {
+                evictUserDetails(oldUser);
             }
     }
 
@@ -106,6 +142,7 @@ public class UserManager implements UserDetailsService {
      */
     public void deleteUser(User user){
         accountBroker.deleteUser(user);
+        evictUserDetails(user);
     }
 
     /**
@@ -121,7 +158,11 @@ public class UserManager implements UserDetailsService {
         if(userOpt.isPresent()) {
             User user = userOpt.get();
             user.setPassword(newPassword);
-            return accountBroker.resetPassword(user);
+            try {
+                return accountBroker.resetPassword(user);
+            } finally {
+                evictUserDetails(user);
+            }
         }
         return null;
     }
@@ -143,24 +184,58 @@ public class UserManager implements UserDetailsService {
         return accountBroker.getAllUsers();
     }
 
+    /**
+     * Retrieves a page of the users that were not deleted.
+     * @param request the page request.
+     * @return the page of users.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    public KeysetPage<User> getUsersPage(KeysetPageRequest request) {
+        return accountBroker.getUsersPage(false, request);
+    }
+
     @Override
     public UserDetails loadUserByUsername(String usernameOrEmail) throws UsernameNotFoundException {
-        //Allow login with username or email
-        Optional<User> userOptional = accountBroker.findByUserNameOrEmailAddress(usernameOrEmail, usernameOrEmail);
-        if(userOptional.isPresent()) {
-            User user = userOptional.get();
-            return new org.springframework.security.core.userdetails.User(
-                    user.getUsername(),
-                    user.getPassword(),
-                    true,
-                    true,
-                    true,
-                    true,
-                    getAuthorities(user.getPermissions()));
-        }
-        else {
+        if(usernameOrEmail == null)
             return null;
-        }
+        String key = usernameOrEmail.toLowerCase(Locale.ROOT);
+        long generation = userDetailsCache.generation(key);
+        CachedUserDetails cached = userDetailsCache.get(key, k -> {
+            //Allow login with username or email
+            Optional<User> userOptional = accountBroker.findByUserNameOrEmailAddress(usernameOrEmail, usernameOrEmail);
+            return userOptional.map(user -> new CachedUserDetails(user.getUsername(), user.getEmail(),
+                    user.getPassword(), getAuthorities(user.getPermissions()))).orElse(null);
+        });
+        if(cached == null)
+            return null;
+
+        // Cache the user under both its username and email address, so either one finds it, unless the user was
+        // changed since it was loaded.
+        if(cached.username != null && !cached.username.equalsIgnoreCase(usernameOrEmail))
+            userDetailsCache.putIfNotInvalidated(cached.username.toLowerCase(Locale.ROOT), cached, key, generation);
+        if(cached.email != null && !cached.email.equalsIgnoreCase(usernameOrEmail))
+            userDetailsCache.putIfNotInvalidated(cached.email.toLowerCase(Locale.ROOT), cached, key, generation);
+
+        // A new UserDetails is built every time, since authentication erases the password of the one it receives.
+        return new org.springframework.security.core.userdetails.User(
+                cached.username,
+                cached.password,
+                true,
+                true,
+                true,
+                true,
+                cached.authorities);
+    }
+
+    /**
+     * Remove a user from the cache of users loaded for authentication, so its changes apply on the next sign in.
+     * @param user the changed user.
+     */
+    private void evictUserDetails(User user) {
+        if(user.getUsername() != null)
+            userDetailsCache.invalidate(user.getUsername().toLowerCase(Locale.ROOT));
+        if(user.getEmail() != null)
+            userDetailsCache.invalidate(user.getEmail().toLowerCase(Locale.ROOT));
     }
 
     /**
@@ -181,6 +256,26 @@ public class UserManager implements UserDetailsService {
         return accountBroker.checkEmailExists(email);
     }
 
+    /**
+     * Hints whether a username is in use, without querying the database when it is definitely not.
+     * Not authoritative: use {@link #checkUserNameExists(String)} before saving a user.
+     * @param userName username to validate.
+     * @return true if exists, otherwise false.
+     */
+    public boolean quickCheckUserNameExists(String userName) {
+        return accountBroker.quickCheckUserNameExists(userName);
+    }
+
+    /**
+     * Hints whether an email address is in use, without querying the database when it is definitely not.
+     * Not authoritative: use {@link #checkEmailExists(String)} before saving a user.
+     * @param email email address to validate.
+     * @return true if exists, otherwise false.
+     */
+    public boolean quickCheckEmailExists(String email) {
+        return accountBroker.quickCheckEmailExists(email);
+    }
+
     /**
      * Retrieve a list of granted authorities based on a set of permissions.
      * @param permissions a set of permissions.
@@ -239,60 +334,36 @@ public class UserManager implements UserDetailsService {
      */
     public void buildUserDataSheet(ReportUsers reportUsers, Sheet sheet, DateTimeFormatter dateTimeFormatter) {
 
-//        List<User> users = accountBroker.getAllUsersAdmin();
-        List<User> users = accountBroker.getAllUsers();
-
-        Row headerRow = sheet.createRow(0);
-
-        int cellNum = 0;
-        headerRow.createCell(cellNum++).setCellValue("ID");
-        headerRow.createCell(cellNum++).setCellValue("Username");
-        headerRow.createCell(cellNum++).setCellValue("First Name");
-        headerRow.createCell(cellNum++).setCellValue("Last Name");
-        headerRow.createCell(cellNum++).setCellValue("Email Address");
-        headerRow.createCell(cellNum++).setCellValue("Phone Number");
-        headerRow.createCell(cellNum++).setCellValue("Language");
-        headerRow.createCell(cellNum++).setCellValue("Creator");
-        headerRow.createCell(cellNum++).setCellValue("Create Date Time");
-        headerRow.createCell(cellNum++).setCellValue("Last Update Date Time");
-        headerRow.createCell(cellNum++).setCellValue("Deleted");
-        headerRow.createCell(cellNum++).setCellValue("Site User");
-        headerRow.createCell(cellNum++).setCellValue("Teacher");
-        headerRow.createCell(cellNum++).setCellValue("Content Curator");
-        headerRow.createCell(cellNum++).setCellValue("System Administrator");
-        headerRow.createCell(cellNum++).setCellValue("Photo Path");
-
-        int rowNum = 1;
-        for(User u: users) {
-            Row row = sheet.createRow(rowNum++);
-            int index = 0;
-            row.createCell(index++).setCellValue(u.getID());
-            row.createCell(index++).setCellValue(u.getUsername());
-            row.createCell(index++).setCellValue(u.getFirstName());
-            row.createCell(index++).setCellValue(u.getLastName());
-            row.createCell(index++).setCellValue(u.getEmail());
-            row.createCell(index++).setCellValue(u.getPhoneNumber());
-            row.createCell(index++).setCellValue(u.getDefaultLanguage());
-            row.createCell(index++).setCellValue(u.getCreatorUserName());
-            row.createCell(index++).setCellValue(dateTimeFormatter.format(u.getCreateDateTime().toLocalDateTime()));
-            row.createCell(index++).setCellValue(dateTimeFormatter.format(u.getUpdateDateTime().toLocalDateTime()));
-            row.createCell(index++).setCellValue(u.isDeleted());
-            Iterator<Permission> permissions = u.getPermissions().iterator();
-            ArrayList<String> perms = new ArrayList<>();
-            while(permissions.hasNext()) {
-                perms.add(permissions.next().getName().name());
-            }
-            row.createCell(index++).setCellValue(perms.contains(PermissionName.ROLE_SITE_USER.name())? "YES": "");
-            row.createCell(index++).setCellValue(perms.contains(PermissionName.ROLE_TEACHER.name())? "YES": "");
-            row.createCell(index++).setCellValue(perms.contains(PermissionName.ROLE_CONTENT_CURATOR.name())? "YES": "");
-            row.createCell(index++).setCellValue(perms.contains(PermissionName.ROLE_SYSTEM_ADMIN.name())? "YES": "");
-            row.createCell(index).setCellValue(u.getPhotoPath());
-        }
-
-        for(int i = 0; i < cellNum; i++) {
-            sheet.autoSizeColumn(i);
-        }
+        ReportSheetWriter writer = new ReportSheetWriter(sheet,
+                "ID", "Username", "First Name", "Last Name", "Email Address", "Phone Number", "Language",
+                "Creator", "Create Date Time", "Last Update Date Time", "Deleted", "Site User", "Teacher",
+                "Content Curator", "System Administrator", "Photo Path");
 
+        accountBroker.forEachUser(u -> {
+            Set<String> perms = new HashSet<>();
+            for(Permission permission: u.getPermissions()) {
+                perms.add(permission.getName().name());
+            }
+            writer.writeRow(
+                    u.getID(),
+                    u.getUsername(),
+                    u.getFirstName(),
+                    u.getLastName(),
+                    u.getEmail(),
+                    u.getPhoneNumber(),
+                    u.getDefaultLanguage(),
+                    u.getCreatorUserName(),
+                    dateTimeFormatter.format(u.getCreateDateTime().toLocalDateTime()),
+                    dateTimeFormatter.format(u.getUpdateDateTime().toLocalDateTime()),
+                    u.isDeleted(),
+                    perms.contains(PermissionName.ROLE_SITE_USER.name())? "YES": "",
+                    perms.contains(PermissionName.ROLE_TEACHER.name())? "YES": "",
+                    perms.contains(PermissionName.ROLE_CONTENT_CURATOR.name())? "YES": "",
+                    perms.contains(PermissionName.ROLE_SYSTEM_ADMIN.name())? "YES": "",
+                    u.getPhotoPath());
+        });
+
+        writer.finish();
     }
 
     /**
@@ -303,4 +374,32 @@ public class UserManager implements UserDetailsService {
         return accountBroker.getDeletedUsers();
     }
 
+    /**
+     * Retrieve a page of the soft-deleted users.
+     * @param request the page request.
+     * @return the page of soft-deleted users.
+     * @throws IllegalArgumentException if the sort attribute, a filter or the cursor is not valid.
+     */
+    public KeysetPage<User> getDeletedUsersPage(KeysetPageRequest request) {
+        return accountBroker.getUsersPage(true, request);
+    }
+
+    /**
+     * The details of a user needed for authentication, kept in the cache instead of the UserDetails object.
+     */
+    private static final class CachedUserDetails {
+
+        final String username;
+        final String email;
+        final String password;
+        final List<GrantedAuthority> authorities;
+
+        CachedUserDetails(String username, String email, String password, List<GrantedAuthority> authorities) {
+            this.username = username;
+            this.email = email;
+            this.password = password;
+            this.authorities = Collections.unmodifiableList(authorities);
+        }
+    }
+
 }
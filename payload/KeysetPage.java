@@ -0,0 +1,40 @@
+package com.asylumproject.asylumproject.payload;
+
+import java.util.List;
+
+/**
+ * One page of a list, with the cursor to request the next page and a hint of the total number of items.
+ *
+ * @param <T> the type of items.
+ */
+public class KeysetPage<T> {
+
+    private List<T> items;
+    private String nextCursor;
+    private long totalCountHint;
+
+    /**
+     * A constructor for KeysetPage class.
+     *
+     * @param items the items of the page.
+     * @param nextCursor the cursor of the next page, null if this is the last page.
+     * @param totalCountHint number of items matching the filters. It may be up to a minute old.
+     */
+    public KeysetPage(List<T> items, String nextCursor, long totalCountHint) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+        this.totalCountHint = totalCountHint;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public long getTotalCountHint() {
+        return totalCountHint;
+    }
+}
@@ -0,0 +1,101 @@
+package com.asylumproject.asylumproject.payload;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A request for one page of a list ordered by a sort attribute. The next page starts after the cursor returned
+ * with the previous one, so pages stay as fast to read at the end of the list as at its start.
+ */
+public class KeysetPageRequest {
+
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 500;
+
+    private String cursor;
+    private int limit = DEFAULT_LIMIT;
+    private String sort;
+    private boolean descending;
+    private Map<String, String> filters = new LinkedHashMap<>();
+
+    /**
+     * Build a page request from query parameters. The cursor, limit, sort and direction parameters describe the
+     * page; any other parameter is a filter on the attribute of the same name.
+     * @param params the query parameters.
+     * @return the page request.
+     * @throws IllegalArgumentException if the limit or direction is not valid.
+     */
+    public static KeysetPageRequest of(Map<String, String> params) {
+        KeysetPageRequest request = new KeysetPageRequest();
+        for(Map.Entry<String, String> param: params.entrySet()) {
+            String value = param.getValue();
+            switch(param.getKey()) {
+                case "cursor":
+                    request.cursor = value == null || value.isEmpty() ? null : value;
+                    break;
+                case "limit":
+                    try {
+                        request.limit = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid limit: " + value);
+                    }
+                    if(request.limit < 1 || request.limit > MAX_LIMIT)
+                        throw new IllegalArgumentException("The limit must be between 1 and " + MAX_LIMIT);
+                    break;
+                case "sort":
+                    request.sort = value == null || value.isEmpty() ? null : value;
+                    break;
+                case "direction":
+                    if("desc".equalsIgnoreCase(value))
+                        request.descending = true;
+                    else if(!"asc".equalsIgnoreCase(value))
+                        throw new IllegalArgumentException("The direction must be asc or desc");
+                    break;
+                default:
+                    if(value != null && !value.isEmpty())
+                        request.filters.put(param.getKey(), value);
+            }
+        }
+        return request;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public void setSort(String sort) {
+        this.sort = sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    public Map<String, String> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(Map<String, String> filters) {
+        this.filters = filters;
+    }
+}
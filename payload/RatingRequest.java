@@ -0,0 +1,22 @@
+package com.asylumproject.asylumproject.payload;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+/**
+ * A rating of a story submitted by a reader.
+ */
+public class RatingRequest {
+
+    @Min(1)
+    @Max(5)
+    private int rating;
+
+    public int getRating() {
+        return rating;
+    }
+
+    public void setRating(int rating) {
+        this.rating = rating;
+    }
+}
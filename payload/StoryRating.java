@@ -0,0 +1,29 @@
+package com.asylumproject.asylumproject.payload;
+
+/**
+ * The average rating of a story and the number of ratings it is based on.
+ */
+public class StoryRating {
+
+    private int storyId;
+    private double average;
+    private long count;
+
+    public StoryRating(int storyId, double average, long count) {
+        this.storyId = storyId;
+        this.average = average;
+        this.count = count;
+    }
+
+    public int getStoryId() {
+        return storyId;
+    }
+
+    public double getAverage() {
+        return average;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
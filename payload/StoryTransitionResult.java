@@ -0,0 +1,57 @@
+package com.asylumproject.asylumproject.payload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of moving several stories through a workflow transition: which stories were moved, and which were
+ * left as they were because they do not exist, are deleted or are in a state the transition is not allowed from.
+ */
+public class StoryTransitionResult {
+
+    private String transitionId;
+    private String action;
+    private String state;
+    private int requested;
+    private List<Integer> changed = new ArrayList<>();
+    private List<Integer> skipped = new ArrayList<>();
+
+    public StoryTransitionResult(String transitionId, String action, String state, int requested) {
+        this.transitionId = transitionId;
+        this.action = action;
+        this.state = state;
+        this.requested = requested;
+    }
+
+    /**
+     * Retrieve the id shared by the events logged for the transition.
+     * @return the transition id.
+     */
+    public String getTransitionId() {
+        return transitionId;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * Retrieve the state the stories were moved to.
+     * @return the state name.
+     */
+    public String getState() {
+        return state;
+    }
+
+    public int getRequested() {
+        return requested;
+    }
+
+    public List<Integer> getChanged() {
+        return changed;
+    }
+
+    public List<Integer> getSkipped() {
+        return skipped;
+    }
+}
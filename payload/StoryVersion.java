@@ -0,0 +1,49 @@
+package com.asylumproject.asylumproject.payload;
+
+/**
+ * A version of a story in its history.
+ */
+public class StoryVersion {
+
+    private int storyId;
+    private int version;
+    private boolean snapshot;
+    private int size;
+    private long createdAt;
+
+    public StoryVersion(int storyId, int version, boolean snapshot, int size, long createdAt) {
+        this.storyId = storyId;
+        this.version = version;
+        this.snapshot = snapshot;
+        this.size = size;
+        this.createdAt = createdAt;
+    }
+
+    public int getStoryId() {
+        return storyId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Check whether the version is stored whole rather than as a diff against the previous version.
+     * @return true for a full snapshot.
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Retrieve the storage used by the version.
+     * @return the size in bytes.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+}
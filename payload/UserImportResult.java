@@ -0,0 +1,78 @@
+package com.asylumproject.asylumproject.payload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of a bulk user import: how many rows were received and created, and why the other rows were not.
+ */
+public class UserImportResult {
+
+    private String importId;
+    private int received;
+    private int created;
+    private List<RowError> errors = new ArrayList<>();
+
+    public UserImportResult(String importId, int received) {
+        this.importId = importId;
+        this.received = received;
+    }
+
+    /**
+     * Record a row that was not imported.
+     * @param row the row number, starting at 1.
+     * @param userName the username of the row, if known.
+     * @param message why the row was not imported.
+     */
+    public void addError(int row, String userName, String message) {
+        errors.add(new RowError(row, userName, message));
+    }
+
+    public void addCreated(int count) {
+        created += count;
+    }
+
+    public String getImportId() {
+        return importId;
+    }
+
+    public int getReceived() {
+        return received;
+    }
+
+    public int getCreated() {
+        return created;
+    }
+
+    public List<RowError> getErrors() {
+        return errors;
+    }
+
+    /**
+     * A row that was not imported.
+     */
+    public static class RowError {
+
+        private int row;
+        private String userName;
+        private String message;
+
+        public RowError(int row, String userName, String message) {
+            this.row = row;
+            this.userName = userName;
+            this.message = message;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.asylumproject.asylumproject.reports.responses;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the admin dashboard tiles in a single response. Tiles that failed or took too long to load are left out
+ * of the tiles and listed by name in the failed tiles instead.
+ */
+public class DashboardReport {
+
+    private Map<String, Object> tiles = new LinkedHashMap<>();
+    private List<String> failedTiles = new ArrayList<>();
+    private long generatedAt = System.currentTimeMillis();
+
+    public Map<String, Object> getTiles() {
+        return tiles;
+    }
+
+    public List<String> getFailedTiles() {
+        return failedTiles;
+    }
+
+    public long getGeneratedAt() {
+        return generatedAt;
+    }
+
+    /**
+     * Add the data of a tile that loaded successfully.
+     * @param name the tile name.
+     * @param data the tile data.
+     */
+    public void addTile(String name, Object data) {
+        tiles.put(name, data);
+    }
+
+    /**
+     * Add the name of a tile that failed or timed out.
+     * @param name the tile name.
+     */
+    public void addFailedTile(String name) {
+        failedTiles.add(name);
+    }
+}
@@ -0,0 +1,75 @@
+package com.asylumproject.asylumproject.reports.responses;
+
+/**
+ * The request count and latencies of a period of time, formatted for a line chart report.
+ * Latencies are in milliseconds.
+ */
+public class TrafficPoint {
+
+    private long time;
+    private String endpoint;
+    private long requests;
+    private long errors;
+    private double averageMillis;
+    private double p50Millis;
+    private double p95Millis;
+    private double p99Millis;
+    private double maxMillis;
+
+    public TrafficPoint(long time, String endpoint, long requests, long errors, double averageMillis,
+                        double p50Millis, double p95Millis, double p99Millis, double maxMillis) {
+        this.time = time;
+        this.endpoint = endpoint;
+        this.requests = requests;
+        this.errors = errors;
+        this.averageMillis = averageMillis;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Retrieve the start of the period.
+     * @return the start of the period, in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Retrieve the endpoint the point is about.
+     * @return the endpoint, or null if the point covers all endpoints.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getAverageMillis() {
+        return averageMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP95Millis() {
+        return p95Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+}